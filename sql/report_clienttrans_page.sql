@@ -0,0 +1,64 @@
+/*
+ * Постраничная выборка транзакций клиента по ключу (DTSTART, IDDAZS, IDD) для выгрузки и отчёта по транзакциям без
+ * курсора (db.streaming="false").
+ *
+ * Процедура опирается только на WP_REPORT_CLIENTTRANS: выборка идёт по дням (каждый день - отдельный вызов исходной
+ * процедуры с сортировкой только этого дня) начиная с дня последней загруженной транзакции, строки выдаются в порядке
+ * ключа. Поэтому внешний SELECT FIRST без ORDER BY останавливает процедуру, как только страница набрана: страница
+ * стоит столько, сколько дней она охватывает (плюс повтор дня, на котором остановилась предыдущая страница), а не весь
+ * остаток периода.
+ *
+ * Продолжение (AAFTERDT, AAFTERAZS, AAFTERIDD) - ключ последней загруженной транзакции, строка с этим ключом выдаётся
+ * повторно (первой) - так вызывающий видит, что ключ на границе страниц не повторяется. NULL - с начала периода.
+ * Типы параметров должны совпадать с WP_REPORT_CLIENTTRANS.
+ */
+
+SET TERM ^ ;
+
+CREATE OR ALTER PROCEDURE WP_REPORT_CLIENTTRANS_PAGE (
+    AIDDFIRM   INTEGER,
+    AIDDCLIENT INTEGER,
+    AIDDSUB    INTEGER,
+    ADTSTART   DATE,
+    ADTEND     DATE,
+    AIDDAZS    INTEGER,
+    AIDDCARD   VARCHAR(64),
+    AAFTERDT   TIMESTAMP,
+    AAFTERAZS  INTEGER,
+    AAFTERIDD  INTEGER)
+RETURNS (
+    DTSTART  TIMESTAMP,
+    DTEND    TIMESTAMP,
+    IDDCARD  VARCHAR(64),
+    CCARD    VARCHAR(255),
+    IDD      INTEGER,
+    IDDAZS   INTEGER,
+    IDDTRK   INTEGER,
+    IDDOIL   INTEGER,
+    IACCTYPE INTEGER,
+    DBPRICE  BIGINT,
+    DBVOLREQ BIGINT,
+    DBVOLUME BIGINT,
+    DBSUMMA  BIGINT)
+AS
+DECLARE VARIABLE D DATE;
+BEGIN
+    D = ADTSTART;
+    IF (AAFTERDT IS NOT NULL AND CAST(AAFTERDT AS DATE) > D) THEN D = CAST(AAFTERDT AS DATE);
+    WHILE (D <= ADTEND) DO
+    BEGIN
+        FOR SELECT DTSTART, DTEND, IDDCARD, CCARD, IDD, IDDAZS, IDDTRK, IDDOIL, IACCTYPE,
+                   DBPRICE, DBVOLREQ, DBVOLUME, DBSUMMA
+            FROM WP_REPORT_CLIENTTRANS(:AIDDFIRM, :AIDDCLIENT, :AIDDSUB, :D, :D, :AIDDAZS, :AIDDCARD)
+            WHERE :AAFTERDT IS NULL OR DTSTART > :AAFTERDT
+               OR (DTSTART = :AAFTERDT AND (IDDAZS > :AAFTERAZS OR (IDDAZS = :AAFTERAZS AND IDD >= :AAFTERIDD)))
+            ORDER BY DTSTART, IDDAZS, IDD
+            INTO :DTSTART, :DTEND, :IDDCARD, :CCARD, :IDD, :IDDAZS, :IDDTRK, :IDDOIL, :IACCTYPE,
+                 :DBPRICE, :DBVOLREQ, :DBVOLUME, :DBSUMMA
+        DO
+            SUSPEND;
+        D = D + 1;
+    END
+END^
+
+SET TERM ; ^
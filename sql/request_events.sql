@@ -0,0 +1,24 @@
+/*
+ * События БД для пробуждения сервиса (секция events в app.config): при появлении заявки для обработки или ответа для
+ * рассылки триггер посылает событие, сервис получает его после фиксации транзакции и запрашивает заявки сразу, не
+ * дожидаясь интервала опроса.
+ *
+ * Имена событий должны совпадать с events.processor и events.sender (по умолчанию WP_REQUEST_PROCESS и
+ * WP_REQUEST_SEND). Триггер создаётся на таблице заявок WP_REQUEST (как в sql/test/request_standin.sql) - если в
+ * рабочей БД заявки хранятся в таблице с другим именем, имя таблицы в скрипте заменяется.
+ *
+ * Состояния заявки (ISTATE): 1 - обработка, 2 - отправка. Событие посылается только при переходе в состояние (новая
+ * заявка или смена состояния), повторная попытка отправки без смены состояния выполняется по интервалу опроса.
+ */
+
+SET TERM ^ ;
+
+CREATE OR ALTER TRIGGER WP_REQUEST_AIU_EVENTS FOR WP_REQUEST
+ACTIVE AFTER INSERT OR UPDATE POSITION 100
+AS
+BEGIN
+    IF (NEW.ISTATE = 1 AND (INSERTING OR OLD.ISTATE IS DISTINCT FROM 1)) THEN POST_EVENT 'WP_REQUEST_PROCESS';
+    IF (NEW.ISTATE = 2 AND (INSERTING OR OLD.ISTATE IS DISTINCT FROM 2)) THEN POST_EVENT 'WP_REQUEST_SEND';
+END^
+
+SET TERM ; ^
@@ -0,0 +1,118 @@
+/*
+ * Аренда заявок для совместной обработки одной очереди несколькими экземплярами сервиса (секция cluster в app.config).
+ *
+ * Объекты опираются только на WP_REQUEST_LIST, поэтому скрипт применим как к рабочей БД, так и к локальной
+ * тестовой БД с упрощенными WP_REQUEST_LIST/WP_REQUEST_PROCESS/WP_REQUEST_SEND.
+ * Типы выходных параметров WP_REQUEST_CLAIM должны совпадать с WP_REQUEST_LIST.
+ */
+
+SET TERM ^ ;
+
+CREATE EXCEPTION E_REQUEST_LEASE_LOST 'Заявка арендована другим узлом!'^
+
+/* Аренда заявки узлом. Запись удаляется при изменении состояния заявки узлом-владельцем. */
+CREATE TABLE WP_REQUEST_LEASE (
+    ID       INTEGER     NOT NULL,
+    CNODE    VARCHAR(64) NOT NULL,
+    DTEXPIRE TIMESTAMP   NOT NULL,
+    CONSTRAINT PK_WP_REQUEST_LEASE PRIMARY KEY (ID)
+)^
+
+/*
+ * Выборка заявок с захватом в аренду. Заявка захватывается, если она не арендована, арендована этим же узлом или
+ * срок аренды истек. Если заявку одновременно захватывает другой узел - она пропускается (конфликт обновления).
+ */
+CREATE OR ALTER PROCEDURE WP_REQUEST_CLAIM (
+    ASTATE    INTEGER,
+    ANODE     VARCHAR(64),
+    ALEASE    INTEGER,
+    AMAXCOUNT INTEGER)
+RETURNS (
+    ID             INTEGER,
+    IDUSER         INTEGER,
+    IDDCLIENT      INTEGER,
+    IDDSUB         INTEGER,
+    DTCREATE       TIMESTAMP,
+    ITYPE          INTEGER,
+    ISUBTYPE       INTEGER,
+    CPARAMSTITLE   VARCHAR(1024),
+    CPARAMS        VARCHAR(4096),
+    CCOMMENT       VARCHAR(1024),
+    ISTATE         INTEGER,
+    DTPROCESS      TIMESTAMP,
+    CFILENAME      VARCHAR(255),
+    IFILESIZE      INTEGER,
+    ISENDTRYREMAIN INTEGER,
+    DTSENDTRY      TIMESTAMP,
+    DTSEND         TIMESTAMP,
+    CRESULT        VARCHAR(1024))
+AS
+DECLARE VARIABLE N INTEGER = 0;
+DECLARE VARIABLE DTNOW TIMESTAMP;
+DECLARE VARIABLE ISCLAIMED SMALLINT;
+BEGIN
+    DTNOW = CURRENT_TIMESTAMP;
+    FOR SELECT ID, IDUSER, IDDCLIENT, IDDSUB, DTCREATE, ITYPE, ISUBTYPE, CPARAMSTITLE, CPARAMS, CCOMMENT,
+               ISTATE, DTPROCESS, CFILENAME, IFILESIZE, ISENDTRYREMAIN, DTSENDTRY, DTSEND, CRESULT
+        FROM WP_REQUEST_LIST(:ASTATE)
+        ORDER BY DTCREATE
+        INTO :ID, :IDUSER, :IDDCLIENT, :IDDSUB, :DTCREATE, :ITYPE, :ISUBTYPE, :CPARAMSTITLE, :CPARAMS, :CCOMMENT,
+             :ISTATE, :DTPROCESS, :CFILENAME, :IFILESIZE, :ISENDTRYREMAIN, :DTSENDTRY, :DTSEND, :CRESULT
+    DO BEGIN
+        IF (N >= AMAXCOUNT) THEN EXIT;
+        ISCLAIMED = 0;
+        BEGIN
+            IF (NOT EXISTS(SELECT 1 FROM WP_REQUEST_LEASE L
+                           WHERE L.ID = :ID AND L.CNODE <> :ANODE AND L.DTEXPIRE > :DTNOW)) THEN
+            BEGIN
+                UPDATE OR INSERT INTO WP_REQUEST_LEASE (ID, CNODE, DTEXPIRE)
+                    VALUES (:ID, :ANODE, DATEADD(:ALEASE SECOND TO :DTNOW))
+                    MATCHING (ID);
+                ISCLAIMED = 1;
+            END
+            WHEN GDSCODE LOCK_CONFLICT, GDSCODE UPDATE_CONFLICT, GDSCODE UNIQUE_KEY_VIOLATION DO
+                ISCLAIMED = 0;
+        END
+        IF (ISCLAIMED = 1) THEN
+        BEGIN
+            N = N + 1;
+            SUSPEND;
+        END
+    END
+END^
+
+/* Проверка владения арендой перед изменением состояния заявки (блокирует запись аренды до конца транзакции). */
+CREATE OR ALTER PROCEDURE WP_REQUEST_LEASE_CHECK (
+    AID   INTEGER,
+    ANODE VARCHAR(64))
+AS
+BEGIN
+    UPDATE WP_REQUEST_LEASE SET DTEXPIRE = DTEXPIRE WHERE ID = :AID AND CNODE = :ANODE;
+    IF (ROW_COUNT = 0) THEN EXCEPTION E_REQUEST_LEASE_LOST;
+END^
+
+/*
+ * Продление аренды заявки узлом-владельцем (пока заявка обрабатывается). Если заявку уже захватил другой узел -
+ * исключение, обработка заявки узлом прерывается.
+ */
+CREATE OR ALTER PROCEDURE WP_REQUEST_LEASE_RENEW (
+    AID    INTEGER,
+    ANODE  VARCHAR(64),
+    ALEASE INTEGER)
+AS
+BEGIN
+    UPDATE WP_REQUEST_LEASE SET DTEXPIRE = DATEADD(:ALEASE SECOND TO CURRENT_TIMESTAMP)
+        WHERE ID = :AID AND CNODE = :ANODE;
+    IF (ROW_COUNT = 0) THEN EXCEPTION E_REQUEST_LEASE_LOST;
+END^
+
+/* Освобождение аренды заявки узлом. */
+CREATE OR ALTER PROCEDURE WP_REQUEST_LEASE_RELEASE (
+    AID   INTEGER,
+    ANODE VARCHAR(64))
+AS
+BEGIN
+    DELETE FROM WP_REQUEST_LEASE WHERE ID = :AID AND CNODE = :ANODE;
+END^
+
+SET TERM ; ^
@@ -0,0 +1,102 @@
+/*
+ * Локальная тестовая БД для проверки совместной обработки очереди заявок (test/app/model/RequestLeaseTest.java):
+ * таблица заявок и упрощенные WP_REQUEST_LIST/WP_REQUEST_PROCESS/WP_REQUEST_SEND с теми же параметрами, что и в
+ * рабочей БД. Счётчики IPROCESSCOUNT/ISENDCOUNT - сколько раз состояние заявки было сохранено.
+ *
+ * После этого скрипта применяется sql/request_lease.sql.
+ */
+
+SET TERM ^ ;
+
+CREATE TABLE WP_REQUEST (
+    ID             INTEGER       NOT NULL,
+    IDUSER         INTEGER,
+    IDDCLIENT      INTEGER,
+    IDDSUB         INTEGER,
+    DTCREATE       TIMESTAMP     DEFAULT CURRENT_TIMESTAMP NOT NULL,
+    ITYPE          INTEGER       NOT NULL,
+    ISUBTYPE       INTEGER,
+    CPARAMSTITLE   VARCHAR(1024),
+    CPARAMS        VARCHAR(4096),
+    CCOMMENT       VARCHAR(1024),
+    ISTATE         INTEGER       NOT NULL,
+    DTPROCESS      TIMESTAMP,
+    CFILENAME      VARCHAR(255),
+    IFILESIZE      INTEGER,
+    ISENDTRYREMAIN INTEGER,
+    DTSENDTRY      TIMESTAMP,
+    DTSEND         TIMESTAMP,
+    CRESULT        VARCHAR(1024),
+    IPROCESSCOUNT  INTEGER       DEFAULT 0 NOT NULL,
+    ISENDCOUNT     INTEGER       DEFAULT 0 NOT NULL,
+    CONSTRAINT PK_WP_REQUEST PRIMARY KEY (ID)
+)^
+
+CREATE OR ALTER PROCEDURE WP_REQUEST_LIST (
+    ASTATE INTEGER)
+RETURNS (
+    ID             INTEGER,
+    IDUSER         INTEGER,
+    IDDCLIENT      INTEGER,
+    IDDSUB         INTEGER,
+    DTCREATE       TIMESTAMP,
+    ITYPE          INTEGER,
+    ISUBTYPE       INTEGER,
+    CPARAMSTITLE   VARCHAR(1024),
+    CPARAMS        VARCHAR(4096),
+    CCOMMENT       VARCHAR(1024),
+    ISTATE         INTEGER,
+    DTPROCESS      TIMESTAMP,
+    CFILENAME      VARCHAR(255),
+    IFILESIZE      INTEGER,
+    ISENDTRYREMAIN INTEGER,
+    DTSENDTRY      TIMESTAMP,
+    DTSEND         TIMESTAMP,
+    CRESULT        VARCHAR(1024))
+AS
+BEGIN
+    FOR SELECT ID, IDUSER, IDDCLIENT, IDDSUB, DTCREATE, ITYPE, ISUBTYPE, CPARAMSTITLE, CPARAMS, CCOMMENT,
+               ISTATE, DTPROCESS, CFILENAME, IFILESIZE, ISENDTRYREMAIN, DTSENDTRY, DTSEND, CRESULT
+        FROM WP_REQUEST
+        WHERE ISTATE = :ASTATE
+        INTO :ID, :IDUSER, :IDDCLIENT, :IDDSUB, :DTCREATE, :ITYPE, :ISUBTYPE, :CPARAMSTITLE, :CPARAMS, :CCOMMENT,
+             :ISTATE, :DTPROCESS, :CFILENAME, :IFILESIZE, :ISENDTRYREMAIN, :DTSENDTRY, :DTSEND, :CRESULT
+    DO SUSPEND;
+END^
+
+CREATE OR ALTER PROCEDURE WP_REQUEST_PROCESS (
+    AID       INTEGER,
+    ASTATE    INTEGER,
+    ARESULT   VARCHAR(1024),
+    AFILENAME VARCHAR(255),
+    AFILESIZE INTEGER)
+RETURNS (
+    DTPROCESS TIMESTAMP)
+AS
+BEGIN
+    DTPROCESS = CURRENT_TIMESTAMP;
+    UPDATE WP_REQUEST SET ISTATE = :ASTATE, CRESULT = :ARESULT, CFILENAME = :AFILENAME, IFILESIZE = :AFILESIZE,
+                          DTPROCESS = :DTPROCESS, IPROCESSCOUNT = IPROCESSCOUNT + 1
+        WHERE ID = :AID;
+    SUSPEND;
+END^
+
+CREATE OR ALTER PROCEDURE WP_REQUEST_SEND (
+    AID     INTEGER,
+    ASTATE  INTEGER,
+    ARESULT VARCHAR(1024))
+RETURNS (
+    ISENDTRYREMAIN INTEGER,
+    DTSENDTRY      TIMESTAMP,
+    DTSEND         TIMESTAMP)
+AS
+BEGIN
+    UPDATE WP_REQUEST SET ISTATE = :ASTATE, CRESULT = :ARESULT, DTSENDTRY = CURRENT_TIMESTAMP,
+                          ISENDTRYREMAIN = IIF(:ASTATE = 0, ISENDTRYREMAIN, ISENDTRYREMAIN - 1),
+                          DTSEND = IIF(:ASTATE = 0, CURRENT_TIMESTAMP, DTSEND), ISENDCOUNT = ISENDCOUNT + 1
+        WHERE ID = :AID
+        RETURNING ISENDTRYREMAIN, DTSENDTRY, DTSEND INTO :ISENDTRYREMAIN, :DTSENDTRY, :DTSEND;
+    SUSPEND;
+END^
+
+SET TERM ; ^
@@ -6,7 +6,9 @@ package app;
 
 import app.model.AppModel;
 import app.model.Request;
+import app.model.RequestQueue;
 import app.model.ServiceModel;
+import app.report.engine.XRBuilder;
 import util.CommonTools;
 import util.StringTools;
 
@@ -15,6 +17,10 @@ import java.io.FileWriter;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 import static app.model.Helper.fmtDT84;
@@ -140,6 +146,9 @@ public class App {
         final Thread p1 = new Thread(() -> serviceThreadBody(model.procModel));
         final Thread p2 = new Thread(() -> serviceThreadBody(model.sendModel));
 
+        model.startEvents();
+        model.startLeaseRenewal();
+
         p1.start();
         p2.start();
 
@@ -148,6 +157,9 @@ public class App {
             safeTermSleep(model.redrawInterval);
         }
 
+        model.stopLeaseRenewal();
+        model.stopEvents();
+
         if (isUI) out.cursorOn();
     }
 
@@ -156,40 +168,134 @@ public class App {
         ServiceModel.Kind kind = mod.startService();
         LoggerExt log = kind == ServiceModel.Kind.PROCESSOR ? procLogger : sendLogger;
 
+        // При одном обработчике заявки обрабатываются непосредственно в потоке сервиса.
+        int n = mod.getWorkersCount();
+        ExecutorService pool = mod.pipeline != null ? null : mod.isAsync ? newAsyncPool(kind.name().toLowerCase(), n)
+                : n > 1 ? newWorkersPool(kind.name().toLowerCase(), n) : null;
+        if (mod.pipeline != null) mod.pipeline.start();
+
         ArrayList<Request> emptylist = new ArrayList<>();
 
+        try {
+            while (!isTerminated) {
+                String errmsg = null;
+                mod.startDataLoad();
+                ArrayList<Request> its = emptylist;
+                try {
+                    its = mod.loadRequests();
+                } catch (Exception ex) {
+                    errmsg = ex.getMessage();
+                    log.error("Ошибка запроса заявок!", ex);
+                }
+                mod.endDataLoad(its, errmsg);
+
+                if (errmsg == null && !its.isEmpty()) {
+                    mod.startBlockProcess();
+                    RequestQueue queue = mod.newRequestQueue(its);
+                    int tasks = mod.isAsync ? its.size() : n;
+                    if (mod.pipeline != null) {
+                        pipelineBody(mod, queue, log);
+                    } else if (pool == null) {
+                        workerBody(mod, queue, log);
+                    } else {
+                        // Ждём завершения всего пакета, т.к. до смены состояния в БД заявки будут выдаваться повторно.
+                        ArrayList<Future<?>> fs = new ArrayList<>();
+                        for (int i = 0; i < tasks; i++) fs.add(pool.submit(() -> workerBody(mod, queue, log)));
+                        for (Future<?> f : fs) {
+                            try {
+                                f.get();
+                            } catch (InterruptedException ex) {
+                                isTerminated = true;
+                                queue.cancel();
+                            } catch (Exception ex) {
+                                log.error("Ошибка обработчика заявок!", ex);
+                            }
+                        }
+                    }
+                    mod.flushUpdates();
+                    if (isTerminated) return;
+                    mod.endBlockProcess();
+                }
+                // Пакет загружен полностью - следующий запрос сразу (при адаптивном опросе).
+                long delay = mod.getPollDelay();
+                if (delay <= 0) continue;
+                mod.setState(ServiceModel.State.SLEEPING);
+                if (!mod.waitWakeup(delay)) {
+                    isTerminated = true;
+                    return;
+                }
+            }
+            mod.endService();
+        } finally {
+            if (pool != null) pool.shutdownNow();
+            if (mod.pipeline != null) mod.pipeline.shutdown();
+        }
+    }
+
+    /** Тело обработчика: обрабатывает заявки из очереди пакета, пока они есть. */
+    private static void workerBody(ServiceModel mod, RequestQueue queue, LoggerExt log) {
         while (!isTerminated) {
+            Request request;
+            try {
+                request = queue.take();
+            } catch (InterruptedException ex) {
+                isTerminated = true;
+                break;
+            }
+            if (request == null) break;
+
+            log.infof("Обработка: №%d от %s", request.getId(), fmtDT86(request.getDtCreate()));
+            int worker = mod.startProcess(request);
             String errmsg = null;
-            mod.startDataLoad();
-            ArrayList<Request> its = emptylist;
             try {
-                its = mod.loadRequests();
+                mod.processRequest(request);
             } catch (Exception ex) {
                 errmsg = ex.getMessage();
-                log.error("Ошибка запроса заявок!", ex);
+                log.error("Ошибка обработки заявки!", ex);
             }
-            mod.endDataLoad(its, errmsg);
-
-            if (errmsg == null && !its.isEmpty()) {
-                mod.startBlockProcess();
-                for (Request request : its) {
-                    log.infof("Обработка: №%d от %s", request.getId(), fmtDT86(request.getDtCreate()));
-                    mod.startProcess(request);
-                    errmsg = null;
-                    try {
-                        mod.processRequest(request);
-                    } catch (Exception ex) {
-                        errmsg = ex.getMessage();
-                        log.error("Ошибка обработки заявки!", ex);
-                    }
-                    mod.endProcess(errmsg);
-                    if (safeTermSleep(100)) return;
-                }
+            mod.endProcess(worker, errmsg);
+            queue.done(request);
+            int pause = mod.pollPolicy.getItemPause();
+            if (pause > 0 && safeTermSleep(pause)) queue.cancel();
+        }
+    }
+
+    /** Передача заявок пакета в конвейер обработки и ожидание их завершения. */
+    private static void pipelineBody(ServiceModel mod, RequestQueue queue, LoggerExt log) {
+        try {
+            while (!isTerminated) {
+                Request request = queue.take();
+                if (request == null) break;
+                log.infof("Обработка: №%d от %s", request.getId(), fmtDT86(request.getDtCreate()));
+                mod.submitJob(request, mod.startProcess(request), queue);
             }
-            mod.setState(ServiceModel.State.SLEEPING);
-            if (safeTermSleep(mod.delayTime)) return;
+            mod.pipeline.awaitIdle();
+        } catch (InterruptedException ex) {
+            isTerminated = true;
+            queue.cancel();
+        }
+    }
+
+    /**
+     * Пул для асинхронного режима: поток на задачу, виртуальные потоки (если JVM их поддерживает), иначе - пул
+     * обычных потоков заданного размера.
+     */
+    private static ExecutorService newAsyncPool(String name, int count) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception ex) {
+            logger.infof("Виртуальные потоки недоступны, используется пул потоков (%d)", count);
+            return newWorkersPool(name, count);
         }
-        mod.endService();
+    }
+
+    private static ExecutorService newWorkersPool(String name, int count) {
+        AtomicInteger num = new AtomicInteger();
+        return Executors.newFixedThreadPool(count, (r) -> {
+            Thread t = new Thread(r, name + "-worker-" + num.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
     }
 
 
@@ -224,8 +330,10 @@ public class App {
         if (mod.startTime != null) {
             h1 = fmtDT86(mod.startTime);
             h2 = formatHHMMSS(System.currentTimeMillis() - toMillis(mod.startTime));
-            h3 = String.format("%d, время %s", mod.loadCount, formatHHMMSS(mod.loadMsec));
-            h4 = String.format("%d, время %s", mod.processedCount, formatHHMMSS(mod.processMsec));
+            h3 = String.format("%d (пустых %d, полных %d), время %s", mod.loadCount, mod.emptyLoadCount,
+                    mod.fullLoadCount, formatHHMMSS(mod.loadMsec));
+            h4 = String.format("%d (повторных %d), время %s", mod.processedCount, mod.coalescedCount,
+                    formatHHMMSS(mod.processMsec));
             h5 = String.format("%d", mod.errorCount);
 
             if (mod.state == ServiceModel.State.PROCESSING && mod.curItem != null) {
@@ -240,6 +348,17 @@ public class App {
             }
         }
 
+        // Состояние обработчиков (только при параллельной обработке, при конвейере вместо них - состояние этапов).
+        int nw = mod.workers.length;
+        String[] ws = new String[nw > 1 && mod.pipelineInfo == null ? nw : 0];
+        for (int i = 0; i < ws.length; i++) {
+            ServiceModel.Worker wk = mod.workers[i];
+            String s = wk.item == null ? "ожидание"
+                    : String.format("№%d от %s, время %s", wk.item.getId(), fmtDT84(wk.item.getDtCreate()),
+                    formatHHMMSS(time - toMillis(wk.processTime)));
+            ws[i] = String.format("%2d) %4d/%-3d %s", i + 1, wk.processedCount, wk.errorCount, s);
+        }
+
         if (isUI) {
             int c1 = 18, c2 = 19;
             out.bgcolor(bgbase).print(w, "");
@@ -261,6 +380,9 @@ public class App {
                 out.color(7, 88).print(w, "                Ошибка : ")
                         .color(228).println(trunc(mod.errMessage, w - 25)).color(7, bgbase);
             }
+            for (String s : ws) out.println(w, "   %s", trunc(s, w - 3));
+            if (mod.pipelineInfo != null) for (String s : mod.pipelineInfo) out.println(w, "   %s", trunc(s, w - 3));
+            if (mod.fairInfo != null) for (String s : mod.fairInfo) out.println(w, "   %s", trunc(s, w - 3));
         }
 
         //
@@ -281,6 +403,18 @@ public class App {
             } else {
                 b.println("                Ошибка : %s", mod.errMessage);
             }
+            if (ws.length > 0) {
+                b.println("   Обработчики (обработано/ошибок) ----------------");
+                for (String s : ws) b.println("   %s", s);
+            }
+            if (mod.pipelineInfo != null) {
+                b.println("   Конвейер обработки -----------------------------");
+                for (String s : mod.pipelineInfo) b.println("   %s", s);
+            }
+            if (mod.fairInfo != null) {
+                b.println("   Ведра токенов клиентов (наименьший запас) -------");
+                for (String s : mod.fairInfo) b.println("   %s", s);
+            }
         }
     }
 
@@ -301,6 +435,12 @@ public class App {
             outServiceSection(PM, null);
             out.println(w);
             outServiceSection(SM, null);
+            String ps = model.db().getPoolStats();
+            if (ps != null) out.color(7, bgbase).println(w, " Пул соединений БД : %s", trunc(ps, w - 22));
+            String cs = model.db().getStatementCacheStats();
+            if (cs != null) out.color(7, bgbase).println(w, " Кеш выражений БД  : %s", trunc(cs, w - 22));
+            String ms = XRBuilder.measureCache.getStats();
+            if (ms != null) out.color(7, bgbase).println(w, " Кеш метрик текста : %s", trunc(ms, w - 22));
             out.color(18, bgbase).println(delim1_4).reset();
         }
 
@@ -316,6 +456,23 @@ public class App {
                 b.println("--------------------------------------------------------------------------------");
                 outServiceSection(SM, b);
                 b.println("--------------------------------------------------------------------------------");
+                String ps = model.db().getPoolStats();
+                String cs = model.db().getStatementCacheStats();
+                if (ps != null) b.println(" Пул соединений БД : %s", ps);
+                if (cs != null) b.println(" Кеш выражений БД  : %s", cs);
+                String ms = XRBuilder.measureCache.getStats();
+                if (ms != null) b.println(" Кеш метрик текста : %s", ms);
+                if (ps != null || cs != null || ms != null) {
+                    b.println("--------------------------------------------------------------------------------");
+                }
+                if (model.db().getSqlStats().isEnabled()) {
+                    String[] top = model.db().getSqlStats().getTop(model.sqlTopCount);
+                    if (top.length > 0) {
+                        b.println(" Наиболее затратные запросы БД (гистограмма: <1/<10/<100/<1000/<10000/более мсек):");
+                        for (int i = 0; i < top.length; i++) b.println(" %2d) %s", i + 1, top[i]);
+                        b.println("--------------------------------------------------------------------------------");
+                    }
+                }
 
                 FileWriter fw = new FileWriter(model.statePath + File.separator + "app.state");
                 fw.append(b.toString());
@@ -329,6 +486,11 @@ public class App {
 
     private static void stopApp() {
         if (isUI) out.reset().color(7, 0).clear().cursorOn();
+        if (model != null && model.db() != null && model.db().getSqlStats().isEnabled()) {
+            String[] top = model.db().getSqlStats().getTop(model.sqlTopCount);
+            if (top.length > 0) logger.infof("Наиболее затратные запросы БД:");
+            for (int i = 0; i < top.length; i++) logger.infof("%2d) %s", i + 1, top[i]);
+        }
         logger.infof("Приложение завершено!");
     }
 
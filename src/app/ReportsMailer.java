@@ -63,10 +63,16 @@ public class ReportsMailer {
         return message;
     }
 
+    /** Сообщение с указанным отображаемым именем отправителя (общий адрес не меняется - для многопоточной рассылки). */
+    private MimeMessage newMessage(String frompersonal) throws MessagingException, UnsupportedEncodingException {
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress(fromAddress.getAddress(), frompersonal));
+        return message;
+    }
+
     public void sendMail(String frompersonal, String toaddr, String[] ccaddr, String subject, String text,
                          String... attachments) throws MessagingException, UnsupportedEncodingException {
-        fromAddress.setPersonal(frompersonal);
-        MimeMessage message = newMessage();
+        MimeMessage message = newMessage(frompersonal);
         message.addRecipient(Message.RecipientType.TO, new InternetAddress(toaddr));
         if (ccaddr != null && ccaddr.length > 0) {
             InternetAddress[] cca = new InternetAddress[ccaddr.length];
@@ -1,9 +1,13 @@
 package app.export;
 
 import app.ExError;
+import app.model.AppModel;
+import app.model.Budget;
 import app.model.Client;
 import app.model.Helper;
 import app.model.Transaction;
+import app.model.TransactionPager;
+import fbdbengine.FB_Cursor;
 import org.apache.poi.hssf.usermodel.*;
 import org.apache.poi.ss.usermodel.*;
 import org.apache.poi.ss.util.CellRangeAddress;
@@ -23,6 +27,10 @@ public class Export {
     private Integer iddAzs;
     private String iddCard;
     private Integer mode;
+    /** Сформированная книга (после build). */
+    private HSSFWorkbook workbook;
+    /** Транзакции, загруженные заранее (см. prefetch), null - читаются при формировании книги. */
+    private ArrayList<Transaction> prefetched;
 
     public Export(Client client, LocalDate dtStart, LocalDate dtEnd, Integer iddAzs, String iddCard, Integer mode) {
         this.client = client;
@@ -33,10 +41,42 @@ public class Export {
         this.mode = mode;
     }
 
-    private ArrayList<Transaction> loadTransactions(int skip) throws ExError {
-        return model.loadClientTransactions(
+    private TransactionPager pageTransactions() {
+        return model.pageClientTransactions(
+                client.getFirm().id, client.getIdd(), client.getIddSub(), dtStart, dtEnd, iddAzs, iddCard);
+    }
+
+    private FB_Cursor<Transaction> openTransactions() throws ExError {
+        return model.openClientTransactions(
                 client.getFirm().id, client.getIdd(), client.getIddSub(), dtStart, dtEnd, iddAzs, iddCard,
-                skip, 10000, "DTSTART,IDDAZS");
+                AppModel.TRANSACTION_KEYSET_SORT);
+    }
+
+    /** Загрузка всех транзакций заранее, до формирования книги (этап чтения конвейера обработки). */
+    public Export prefetch() throws ExError {
+        ArrayList<Transaction> list = new ArrayList<>();
+        try {
+            if (model.isStreaming) {
+                try (FB_Cursor<Transaction> cur = openTransactions()) {
+                    while (cur.hasNext()) {
+                        Budget.check();
+                        list.add(cur.next());
+                    }
+                }
+            } else {
+                TransactionPager pager = pageTransactions();
+                while (true) {
+                    ArrayList<Transaction> trans = pager.next(10000);
+                    Budget.check();
+                    list.addAll(trans);
+                    if (trans.size() < 10000) break;
+                }
+            }
+        } catch (FB_Cursor.CursorException ex) {
+            throw new ExError(ex, "Ошибка операции: %s", ex.getMessage());
+        }
+        prefetched = list;
+        return this;
     }
 
     /** Вычисляет размер для POI (в нем 1 единица = 1/20 point). Параметр - миллиметры. */
@@ -62,6 +102,22 @@ public class Export {
 
     /** Экспорт транзакций клиента. */
     public void exportTransactions(OutputStream outs) throws ExError {
+        build();
+        write(outs);
+    }
+
+    /** Запись сформированной книги в поток. */
+    public void write(OutputStream outs) throws ExError {
+        try {
+            workbook.write(outs);
+            outs.flush();
+        } catch (Exception ex) {
+            throw new ExError(ex, "Ошибка операции: %s", ex.getMessage());
+        }
+    }
+
+    /** Формирование книги с транзакциями клиента (без записи). */
+    public Export build() throws ExError {
         try {
             HSSFWorkbook workbook = new HSSFWorkbook();
             HSSFSheet sheet = workbook.createSheet("transactions");
@@ -183,66 +239,90 @@ public class Export {
             CellStyle stCARD = workbook.createCellStyle();
             stCARD.setAlignment(HorizontalAlignment.CENTER);
 
-            int skip = 0;
-            while (true) {
-                ArrayList<Transaction> trans = loadTransactions(skip);
-                if (trans.size() == 0) break;
-                skip += trans.size();
-
-                for (Transaction t : trans) {
+            if (prefetched != null) {
+                // Транзакции загружены заранее.
+                for (Transaction t : prefetched) {
+                    Budget.check();
+                    addTransactionRow(sheet.createRow(++y), t, stDT, stOIL, stNUM, stCARD);
+                }
+                prefetched = null;
+            } else if (model.isStreaming) {
+                // Транзакции читаются курсором по мере заполнения книги.
+                try (FB_Cursor<Transaction> cur = openTransactions()) {
+                    while (cur.hasNext()) {
+                        Budget.check();
+                        addTransactionRow(sheet.createRow(++y), cur.next(), stDT, stOIL, stNUM, stCARD);
+                    }
+                }
+            } else {
+                // Постранично по ключу (от последней загруженной транзакции).
+                TransactionPager pager = pageTransactions();
+                while (true) {
+                    ArrayList<Transaction> trans = pager.next(10000);
+                    if (trans.size() == 0) break;
+
+                    for (Transaction t : trans) {
+                        Budget.check();
+                        addTransactionRow(sheet.createRow(++y), t, stDT, stOIL, stNUM, stCARD);
+                    }
+                }
+            }
+            this.workbook = workbook;
+            return this;
 
-                    row = sheet.createRow(++y);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            throw new ExError(ex, "Ошибка операции: %s", ex.getMessage());
+        }
+    }
 
-                    cell = row.createCell(x = 0);
-                    cell.setCellValue(t.getIdd());
+    /** Заполнение строки транзакции. */
+    private void addTransactionRow(HSSFRow row, Transaction t,
+                                   CellStyle stDT, CellStyle stOIL, CellStyle stNUM, CellStyle stCARD) {
+        HSSFCell cell;
+        int x;
 
-                    cell = row.createCell(++x);
-                    cell.setCellValue(DateTools.asDate(t.getStart()));
-                    cell.setCellStyle(stDT);
+        cell = row.createCell(x = 0);
+        cell.setCellValue(t.getIdd());
 
-                    cell = row.createCell(++x);
-                    cell.setCellValue(t.getIddAzs());
+        cell = row.createCell(++x);
+        cell.setCellValue(DateTools.asDate(t.getStart()));
+        cell.setCellStyle(stDT);
 
-                    cell = row.createCell(++x);
-                    cell.setCellValue(t.getIddTrk());
+        cell = row.createCell(++x);
+        cell.setCellValue(t.getIddAzs());
 
-                    cell = row.createCell(++x);
-                    cell.setCellValue(t.getOil().getId());
+        cell = row.createCell(++x);
+        cell.setCellValue(t.getIddTrk());
 
-                    cell = row.createCell(++x);
-                    cell.setCellValue(t.getOil().getAbbreviation());
-                    cell.setCellStyle(stOIL);
+        cell = row.createCell(++x);
+        cell.setCellValue(t.getOil().getId());
 
-                    cell = row.createCell(++x);
-                    cell.setCellValue(t.getVolReq() / 100.0);
-                    cell.setCellStyle(stNUM);
+        cell = row.createCell(++x);
+        cell.setCellValue(t.getOil().getAbbreviation());
+        cell.setCellStyle(stOIL);
 
-                    cell = row.createCell(++x);
-                    cell.setCellValue(t.getVolume() / 100.0);
-                    cell.setCellStyle(stNUM);
+        cell = row.createCell(++x);
+        cell.setCellValue(t.getVolReq() / 100.0);
+        cell.setCellStyle(stNUM);
 
-                    cell = row.createCell(++x);
-                    cell.setCellValue(t.getPrice() / 100.0);
-                    cell.setCellStyle(stNUM);
+        cell = row.createCell(++x);
+        cell.setCellValue(t.getVolume() / 100.0);
+        cell.setCellStyle(stNUM);
 
-                    cell = row.createCell(++x);
-                    cell.setCellValue(t.getSumma() / 100.0);
-                    cell.setCellStyle(stNUM);
+        cell = row.createCell(++x);
+        cell.setCellValue(t.getPrice() / 100.0);
+        cell.setCellStyle(stNUM);
 
-                    cell = row.createCell(++x);
-                    cell.setCellValue(t.getCardTitle());
-                    cell.setCellStyle(stCARD);
+        cell = row.createCell(++x);
+        cell.setCellValue(t.getSumma() / 100.0);
+        cell.setCellStyle(stNUM);
 
-                    cell = row.createCell(++x);
-                    cell.setCellValue(t.getCardInfo());
-                }
-            }
-            workbook.write(outs);
-            outs.flush();
+        cell = row.createCell(++x);
+        cell.setCellValue(t.getCardTitle());
+        cell.setCellStyle(stCARD);
 
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            throw new ExError(ex, "Ошибка операции: %s", ex.getMessage());
-        }
+        cell = row.createCell(++x);
+        cell.setCellValue(t.getCardInfo());
     }
 }
@@ -1,17 +1,37 @@
 package app.model;
 
 import app.ExError;
+import app.report.BaseReport;
+import app.report.engine.XRBuilder;
 import fbdbengine.FB_Connection;
+import fbdbengine.FB_Cursor;
 import fbdbengine.FB_CustomException;
 import fbdbengine.FB_Database;
+import fbdbengine.FB_Events;
 import fbdbengine.FB_Query;
+import fbdbengine.FB_Row;
 import util.StringTools;
 import xconfig.XConfig;
 
 import java.io.File;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static app.App.isUI;
 import static app.App.logger;
@@ -33,14 +53,70 @@ public class AppModel {
     public AppModel() {
     }
 
+    /** Модель узла совместной обработки очереди с заданной БД (без файла конфигурации, для проверки аренды заявок). */
+    AppModel(FB_Database db, String node, int lease) {
+        this.db = db;
+        this.clusterNode = node;
+        this.leaseTime = lease;
+    }
+
     public int redrawInterval;
     public String statePath;
     public ServiceModel procModel, sendModel;
+    /** Идентификатор узла при совместной обработке очереди несколькими экземплярами (пустой - единственный узел). */
+    public String clusterNode;
+    /** Срок аренды заявки узлом (сек). Аренда заявок, пока они у узла, продлевается каждую треть срока. */
+    public int leaseTime;
+
+    /** Аренда заявки узлом (до смены состояния заявки) и бюджет её обработки (прерывается при потере аренды). */
+    private static final class Lease {
+        volatile Budget budget;
+    }
+
+    /** Арендованные узлом заявки (продлеваются до смены состояния). */
+    private final ConcurrentHashMap<Integer, Lease> leases = new ConcurrentHashMap<>();
+    /** Продление аренды не выполняется одновременно со сменой состояния заявок (иначе конфликт обновления аренды). */
+    private final ReentrantReadWriteLock leaseLock = new ReentrantReadWriteLock();
+    private ScheduledExecutorService leaseRenewer;
+    /** Пробуждение сервисов по событиям БД. */
+    public boolean isEvents;
+    public String procEventName, sendEventName;
+    /** Контрольный интервал опроса при работающей подписке (мсек) и интервал проверки подписки (сек). */
+    private int eventsDelay, eventsCheck;
+    private FB_Events events;
+    /** Подписка на события работает (иначе заявки проверяются по интервалу опроса политики опроса). */
+    private volatile boolean isEventsActive;
+    private ScheduledExecutorService eventsChecker;
+    /** Профили транзакций операций чтения и изменения (см. {@link FB_Connection.TxProfile}). */
+    private FB_Connection.TxProfile readProfile = FB_Connection.TxProfile.DEFAULT,
+            writeProfile = FB_Connection.TxProfile.DEFAULT;
+    /** Кол-во наиболее затратных запросов БД в файле состояния и в логе при завершении. */
+    public int sqlTopCount = 10;
+    /** Чтение больших наборов (транзакции) курсором по мере построения отчёта, без загрузки порциями в список. */
+    public boolean isStreaming;
 
     public void init() throws ExError {
         int p_loadsize, s_loadsize;
         int p_delay, s_delay;
+        int p_workers, s_threads, s_smtpconnections;
+        String p_poll, s_poll, p_order;
+        int p_aging;
+        boolean p_pipeline;
+        int p_coalesce;
+        FairShare fairShare;
+        HashMap<String, Integer> budgets = new HashMap<>();
+        int budgetTime, budgetHeapGuard;
+        int p_pipequeue;
+        int[] p_pipethreads = {1, 1, 1, 1};
+        int p_maxloadsize, s_maxloadsize, p_maxdelay, s_maxdelay, p_blocktime, s_blocktime;
+        boolean s_async, p_batchupdate, s_batchupdate;
         String base, user, password;
+        boolean isPool, isTxProfiles, isSqlStats;
+        int poolMin, poolMax, poolIdle, poolWait, poolValidate, statementCacheSize, fetchSize;
+        int asyncThreads, asyncQueue;
+        int measureCacheSize, virtualPages, prepareThreads;
+        String virtualDir;
+        String poolValidationQuery;
 
         logger.infof("Загрузка конфигурации...");
         try {
@@ -50,12 +126,75 @@ public class AppModel {
             base = cfg.getKey("db.host", "127.0.0.1") + ":" + cfg.getKey("db.alias", "WebCenter");
             user = cfg.getKey("db.user", "LK_REQUESTPROCESSOR");
             password = cfg.getKey("db.password", "xxxxxxxx");
+            isPool = "true".equalsIgnoreCase(cfg.getKey("db.pool.enabled", "true"));
+            poolMin = cfg.getIntKey("db.pool.min", 1);
+            poolMax = cfg.getIntKey("db.pool.max", 8);
+            poolIdle = cfg.getIntKey("db.pool.idle", 300);
+            poolWait = cfg.getIntKey("db.pool.wait", 10000);
+            poolValidate = cfg.getIntKey("db.pool.validate", 30);
+            poolValidationQuery = cfg.getKey("db.pool.validation", "SELECT 1 FROM RDB$DATABASE");
+            statementCacheSize = cfg.getIntKey("db.statements", 32);
+            fetchSize = cfg.getIntKey("db.fetchsize", 400);
+            isStreaming = "true".equalsIgnoreCase(cfg.getKey("db.streaming", "true"));
+            isTxProfiles = "true".equalsIgnoreCase(cfg.getKey("db.txprofiles", "true"));
+            isSqlStats = "true".equalsIgnoreCase(cfg.getKey("db.sqlstats.enabled", "true"));
+            sqlTopCount = cfg.getIntKey("db.sqlstats.top", 10);
+            asyncThreads = cfg.getIntKey("db.async.threads", 4);
+            asyncQueue = cfg.getIntKey("db.async.queue", 64);
+            measureCacheSize = cfg.getIntKey("report.measurecache", 20000);
+            virtualPages = cfg.getIntKey("report.virtual.pages", 0);
+            virtualDir = cfg.getKey("report.virtual.dir", "");
+            prepareThreads = cfg.getIntKey("report.threads", 1);
 
             p_loadsize = cfg.getIntKey("processor.loadsize", 10);
             p_delay = cfg.getIntKey("processor.delay", 5000);
+            p_workers = cfg.getIntKey("processor.workers", 1);
+            p_poll = cfg.getKey("processor.poll", "fixed");
+            p_maxloadsize = cfg.getIntKey("processor.maxloadsize", p_loadsize * 10);
+            p_maxdelay = cfg.getIntKey("processor.maxdelay", p_delay * 15);
+            p_blocktime = cfg.getIntKey("processor.blocktime", 60000);
+            p_order = cfg.getKey("processor.order", "fifo");
+            p_aging = cfg.getIntKey("processor.aging", 100);
+            p_coalesce = cfg.getIntKey("processor.coalesce", 0);
+            p_batchupdate = "true".equalsIgnoreCase(cfg.getKey("processor.batchupdate", "false"));
+            s_batchupdate = "true".equalsIgnoreCase(cfg.getKey("sender.batchupdate", "false"));
+            budgetTime = cfg.getIntKey("budget.default", 1800);
+            budgetHeapGuard = cfg.getIntKey("budget.heapguard", 0);
+            for (Request.ReportType t : Request.ReportType.values()) {
+                String key = "report." + t.name().toLowerCase();
+                budgets.put(key, cfg.getIntKey("budget." + key, budgetTime));
+            }
+            for (Request.ExportType t : Request.ExportType.values()) {
+                String key = "export." + t.name().toLowerCase();
+                budgets.put(key, cfg.getIntKey("budget." + key, budgetTime));
+            }
+            fairShare = new FairShare(cfg.getIntKey("fairshare.clientrate", 6), cfg.getIntKey("fairshare.clientburst", 3),
+                    cfg.getIntKey("fairshare.firmrate", 20), cfg.getIntKey("fairshare.firmburst", 10),
+                    cfg.getKey("fairshare.weights", ""));
+            p_pipeline = "true".equalsIgnoreCase(cfg.getKey("processor.pipeline.enabled", "false"));
+            p_pipequeue = cfg.getIntKey("processor.pipeline.queue", 2);
+            String[] stages = {"fetch", "layout", "export", "persist"};
+            for (int i = 0; i < stages.length; i++)
+                p_pipethreads[i] = cfg.getIntKey("processor.pipeline." + stages[i], 1);
 
             s_loadsize = cfg.getIntKey("sender.loadsize", 10);
             s_delay = cfg.getIntKey("sender.delay", 5000);
+            s_async = "true".equalsIgnoreCase(cfg.getKey("sender.async", "false"));
+            s_threads = cfg.getIntKey("sender.threads", 8);
+            s_smtpconnections = cfg.getIntKey("sender.smtpconnections", 4);
+            s_poll = cfg.getKey("sender.poll", "fixed");
+            s_maxloadsize = cfg.getIntKey("sender.maxloadsize", s_loadsize * 10);
+            s_maxdelay = cfg.getIntKey("sender.maxdelay", s_delay * 15);
+            s_blocktime = cfg.getIntKey("sender.blocktime", 60000);
+
+            clusterNode = cfg.getKey("cluster.node", "").trim();
+            leaseTime = cfg.getIntKey("cluster.lease", 900);
+
+            isEvents = "true".equalsIgnoreCase(cfg.getKey("events.enabled", "false"));
+            procEventName = cfg.getKey("events.processor", "WP_REQUEST_PROCESS");
+            sendEventName = cfg.getKey("events.sender", "WP_REQUEST_SEND");
+            eventsDelay = cfg.getIntKey("events.delay", 60000);
+            eventsCheck = cfg.getIntKey("events.check", 30);
 
             if (isUI) {
                 redrawInterval = cfg.getIntKey("ui.redraw", 250);
@@ -68,26 +207,182 @@ public class AppModel {
             base = "127.0.0.1:WebCenter";
             user = "REQUESTPROCESSOR";
             password = "xxxxxxxx";
+            isPool = true;
+            poolMin = 1;
+            poolMax = 8;
+            poolIdle = 300;
+            poolWait = 10000;
+            poolValidate = 30;
+            poolValidationQuery = "SELECT 1 FROM RDB$DATABASE";
+            statementCacheSize = 32;
+            fetchSize = 400;
+            isStreaming = true;
+            isTxProfiles = true;
+            isSqlStats = true;
+            sqlTopCount = 10;
+            asyncThreads = 4;
+            asyncQueue = 64;
+            measureCacheSize = 20000;
+            virtualPages = 0;
+            virtualDir = "";
+            prepareThreads = 1;
             p_loadsize = s_loadsize = 10;
             p_delay = s_delay = 5000;
+            p_workers = 1;
+            s_async = false;
+            s_threads = 1;
+            s_smtpconnections = 1;
+            p_poll = s_poll = "fixed";
+            p_order = "fifo";
+            p_aging = 100;
+            p_pipeline = false;
+            p_coalesce = 0;
+            p_batchupdate = s_batchupdate = false;
+            fairShare = new FairShare(6, 3, 20, 10, "");
+            budgetTime = 1800;
+            budgetHeapGuard = 0;
+            p_pipequeue = 2;
+            p_maxloadsize = s_maxloadsize = 10;
+            p_maxdelay = s_maxdelay = 5000;
+            p_blocktime = s_blocktime = 60000;
             redrawInterval = isUI ? 250 : 5000;
             statePath = "./state";
+            clusterNode = "";
+            leaseTime = 900;
+            isEvents = false;
+            eventsDelay = 60000;
+            eventsCheck = 30;
 
             logger.infof("Ошибка загрузки конфигурации: %s! Приняты параметры по умолчанию!", ex.getMessage());
         }
 
+        XRBuilder.measureCache.setMaxSize(measureCacheSize);
+        XRBuilder.setVirtualizer(virtualPages, virtualDir);
+        BaseReport.setPrepareThreads(prepareThreads);
 
         logger.infof("Настройка подключения к БД...");
         try {
             db = new FB_Database(false, base, user, password, "UTF-8", false);
+            db.setStatementCacheSize(statementCacheSize);
+            db.setFetchSize(fetchSize);
+            db.getSqlStats().setEnabled(isSqlStats);
+            db.setAsyncExecutor(asyncThreads, asyncQueue);
+            if (isTxProfiles) {
+                readProfile = FB_Connection.TxProfile.READ_ONLY;
+                writeProfile = FB_Connection.TxProfile.SHORT_WRITE;
+            }
+            if (isPool) db.enablePool(poolMin, poolMax, poolIdle * 1000L, poolWait, poolValidate * 1000L, poolValidationQuery);
         } catch (Exception ex) {
             throw new ExError("Ошибка настройки параметров БД!", ex);
         }
 
 
-        procModel = new ServiceModel(ServiceModel.Kind.PROCESSOR, p_loadsize, p_delay);
-        sendModel = new ServiceModel(ServiceModel.Kind.SENDER, s_loadsize, s_delay);
+        procModel = new ServiceModel(ServiceModel.Kind.PROCESSOR, p_loadsize, p_delay, p_workers);
+        sendModel = new ServiceModel(ServiceModel.Kind.SENDER, s_loadsize, s_delay, s_async ? s_threads : 1);
+        procModel.pollPolicy = PollPolicy.create(p_poll, p_loadsize, p_delay, p_maxloadsize, p_maxdelay, p_blocktime);
+        sendModel.pollPolicy = PollPolicy.create(s_poll, s_loadsize, s_delay, s_maxloadsize, s_maxdelay, s_blocktime);
+        procModel.order = "cost".equalsIgnoreCase(p_order) ? ServiceModel.Order.COST
+                : "fair".equalsIgnoreCase(p_order) ? ServiceModel.Order.FAIR : ServiceModel.Order.FIFO;
+        procModel.fairShare = fairShare;
+        procModel.budgetTimes.putAll(budgets);
+        procModel.budgetTime = budgetTime;
+        procModel.budgetHeapGuard = budgetHeapGuard;
+        procModel.aging = p_aging;
+        if (p_coalesce > 0) procModel.coalescer = new RequestCoalescer(p_coalesce);
+        if (p_pipeline) procModel.createPipeline(p_pipequeue, p_pipethreads);
+        procModel.isBatchUpdate = p_batchupdate;
+        sendModel.isBatchUpdate = s_batchupdate;
+        sendModel.isAsync = s_async;
+        sendModel.smtpConnections = s_smtpconnections;
+
+    }
+
+    /**
+     * Подписка на события БД для пробуждения сервисов. Пока подписка работает, заявки дополнительно проверяются с
+     * контрольным интервалом events.delay, при ошибке подписки или разрыве подключения - по интервалу опроса сервисов.
+     * Подписка периодически проверяется и восстанавливается.
+     */
+    public void startEvents() {
+        if (!isEvents) return;
+        logger.infof("Подписка на события БД...");
+        events = new FB_Events(db)
+                .listen(procEventName, (name, count) -> procModel.wakeup())
+                .listen(sendEventName, (name, count) -> sendModel.wakeup());
+        try {
+            events.start();
+            setEventsActive(true);
+        } catch (Exception ex) {
+            logger.error("Ошибка подписки на события БД! Заявки проверяются по интервалу опроса.", ex);
+            events.close();
+        }
+        eventsChecker = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread t = new Thread(r, "Events-check");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1, eventsCheck);
+        eventsChecker.scheduleWithFixedDelay(this::checkEvents, period, period, TimeUnit.SECONDS);
+    }
+
+    public void stopEvents() {
+        if (eventsChecker != null) {
+            eventsChecker.shutdownNow();
+            eventsChecker = null;
+        }
+        if (events != null) {
+            events.close();
+            events = null;
+        }
+        isEventsActive = false;
+    }
+
+    /** Проверка подписки на события БД и повторная подписка после ошибки или разрыва подключения. */
+    private void checkEvents() {
+        FB_Events ev = events;
+        if (ev == null) return;
+        if (isEventsActive) {
+            if (ev.check()) return;
+            logger.warningf("Подписка на события БД потеряна! Заявки проверяются по интервалу опроса.");
+            setEventsActive(false);
+            ev.close();
+        }
+        try {
+            ev.start();
+            setEventsActive(true);
+            logger.infof("Подписка на события БД восстановлена.");
+        } catch (Exception ex) {
+            ev.close(); // Следующая попытка - при следующей проверке.
+        }
+    }
+
+    /** Смена интервала опроса сервисов по состоянию подписки на события БД. */
+    private void setEventsActive(boolean active) {
+        isEventsActive = active;
+        procModel.eventsDelay = sendModel.eventsDelay = active ? eventsDelay : 0;
+        if (active) {
+            // События, посланные без подписки, не получены - заявки проверяются сразу.
+            procModel.wakeup();
+            sendModel.wakeup();
+        }
+    }
+
+    /** Запуск продления аренды заявок узла (при совместной обработке очереди). */
+    public void startLeaseRenewal() {
+        if (!isClustered()) return;
+        long period = Math.max(1, leaseTime / 3);
+        leaseRenewer = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread t = new Thread(r, "Lease-renewal");
+            t.setDaemon(true);
+            return t;
+        });
+        leaseRenewer.scheduleWithFixedDelay(this::renewLeases, period, period, TimeUnit.SECONDS);
+    }
 
+    public void stopLeaseRenewal() {
+        if (leaseRenewer != null) {
+            leaseRenewer.shutdownNow();
+            leaseRenewer = null;
+        }
     }
 
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -113,14 +408,22 @@ public class AppModel {
 
     /** Хелпер для операций с БД. */
     void QFB(FB_Connection con, QFBBeforeTask btask, QFBTask task, QFBErrorTask etask) throws ExError {
+        QFB(con, null, btask, task, etask);
+    }
+
+    /** Хелпер для операций с БД. Локальное соединение открывается с заданным профилем транзакций. */
+    void QFB(FB_Connection con, FB_Connection.TxProfile profile, QFBBeforeTask btask, QFBTask task, QFBErrorTask etask)
+            throws ExError {
         if (btask != null) btask.run();
         boolean isextcon = con != null;
         // Если не внешнее - открываем локальное (будет закрыто автоматически с роллбэк).
         if (!isextcon) {
             try {
                 con = db().connect(); // Соединение
+                con.setTxProfile(profile);
 
             } catch (Exception ex) {
+                FB_Connection.closeSafe(con);
                 if (etask != null) etask.run(ex);
                 FB_CustomException e = FB_CustomException.parse(ex);
                 if (e != null) throw new ExError(ex, "Ошибка подключения к БД: %s", e.name + ": " + e.message);
@@ -139,10 +442,7 @@ public class AppModel {
 
         } catch (Exception ex) {
             if (etask != null) etask.run(ex);
-            FB_CustomException e = FB_CustomException.parse(ex);
-            if (e != null) throw new ExError(ex, "Ошибка операции БД: %s", e.name + ": " + e.message);
-            logger.error("Ошибка операции БД!", ex);
-            throw new ExError(ex, "Ошибка операции БД! Детальная информация в логе.");
+            throw dbError(ex);
 
         } finally {
             // Если не внешнее - закрываем с роллбэк (если нужно сохранение данных - это надо сделать в теле задачи).
@@ -150,6 +450,80 @@ public class AppModel {
         }
     }
 
+    /** Ошибка операции БД для вывода в результат заявки. */
+    static ExError dbError(Exception ex) {
+        FB_CustomException e = FB_CustomException.parse(ex);
+        if (e != null) return new ExError(ex, "Ошибка операции БД: %s", e.name + ": " + e.message);
+        logger.error("Ошибка операции БД!", ex);
+        return new ExError(ex, "Ошибка операции БД! Детальная информация в логе.");
+    }
+
+    /**
+     * Хелпер для открытия курсора по запросу в собственном соединении (соединение закрывается вместе с курсором).
+     */
+    <T> FB_Cursor<T> QFBCursor(String sql, FB_Query.RowMapper<T> mapper, Object... parameters) throws ExError {
+        FB_Query q = null;
+        try {
+            q = db().query(sql).setTxProfile(readProfile);
+            return q.cursor(mapper, parameters);
+        } catch (Exception ex) {
+            FB_Query.closeSafe(q);
+            throw dbError(ex);
+        }
+    }
+
+    /** Интерфейс загрузки данных для асинхронного выполнения. */
+    @FunctionalInterface
+    interface QFBLoader<T> {
+        T load() throws ExError;
+    }
+
+    /**
+     * Хелпер для асинхронной загрузки данных на исполнителе запросов БД (загрузка выполняется в собственном соединении).
+     * Ошибка загрузки - исключительное завершение с ExError (см. {@link #await(CompletableFuture)}).
+     */
+    <T> CompletableFuture<T> QFBAsync(QFBLoader<T> loader) {
+        return db().supplyAsync(loader::load);
+    }
+
+    /** Период проверки бюджета при ожидании асинхронной операции (мсек). */
+    private static final long AWAIT_CHECK_MSEC = 1000;
+
+    /**
+     * Ожидание результата асинхронной операции. Если к потоку привязан бюджет - ожидание не дольше оставшегося времени
+     * бюджета (с проверкой бюджета, в т.ч. внешней отмены, раз в {@link #AWAIT_CHECK_MSEC}), при превышении операция
+     * отменяется.
+     *
+     * @param future Результат асинхронной операции.
+     * @return Значение.
+     * @throws ExError Ошибка операции (исходное ExError, превышение бюджета или ошибка ожидания).
+     */
+    public static <T> T await(CompletableFuture<T> future) throws ExError {
+        Budget budget = Budget.current();
+        try {
+            if (budget == null) return future.get();
+            while (true) {
+                budget.checkBudget();
+                try {
+                    return future.get(Math.min(budget.remainingMillis(), AWAIT_CHECK_MSEC), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException ignore) {
+                    // Проверяем бюджет и ждём дальше.
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            future.cancel(false);
+            throw new ExError(ex, "Ожидание загрузки данных прервано!");
+        } catch (ExecutionException | CompletionException ex) {
+            Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+            if (cause instanceof ExError) throw (ExError) cause;
+            throw new ExError(cause, "Ошибка загрузки данных: %s", cause.getMessage());
+        } catch (ExError ex) {
+            future.cancel(false); // Бюджет превышен - результат больше не нужен.
+            throw ex;
+        }
+    }
+
     /** Хелпер для операций с БД. Без обработчика до соединения с БД. */
     void QFB(FB_Connection con, QFBTask task) throws ExError {
         QFB(con, null, task, null);
@@ -159,12 +533,22 @@ public class AppModel {
         QFB(null, null, task, null);
     }
 
+    /** Хелпер для чтения данных (отчёты, данные клиента) - транзакция только для чтения. */
+    void QFBRead(QFBTask task) throws ExError {
+        QFB(null, readProfile, null, task, null);
+    }
+
+    /** Хелпер для изменения состояния заявок - короткая пишущая транзакция. */
+    void QFBWrite(QFBTask task) throws ExError {
+        QFB(null, writeProfile, null, task, null);
+    }
+
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     //
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     public Client loadClient(Request req, LocalDate dtw) throws ExError {
         Client[] res = {null};
-        QFB((con) -> {
+        QFBRead((con) -> {
             FB_Query q = con.execute("SELECT CUSEREMAIL, IDDFIRM, IDDCLIENT, IDDSUB, CINN, CNAME, " +
                     " CTITLE, CSUBTITLE, CADDRESS, CEMAIL," +
                     " CPHONE, IBFOND, IBWORK, COILLIMIT, CAZSLIMIT, CCOMMENT, DBCREDIT" +
@@ -183,13 +567,28 @@ public class AppModel {
         return res[0];
     }
 
+    public CompletableFuture<Client> loadClientAsync(Request req, LocalDate dtw) {
+        return QFBAsync(() -> loadClient(req, dtw));
+    }
+
+    /** Признак совместной обработки очереди несколькими узлами (заявки захватываются в аренду). */
+    public boolean isClustered() {
+        return !isEmptySafe(clusterNode);
+    }
+
+    /**
+     * Загрузка заявок для обработки. При совместной обработке заявки захватываются узлом в аренду (атомарно, в той же
+     * транзакции), заявки с истекшей арендой других узлов захватываются повторно.
+     */
     public ArrayList<Request> loadRequests(Request.State state, int maxcount) throws ExError {
         ArrayList<Request> list = new ArrayList<>();
-        QFB((con) -> {
-            FB_Query q = con.execute("SELECT FIRST " + maxcount +
-                    " ID, IDUSER, IDDCLIENT, IDDSUB, DTCREATE, ITYPE, ISUBTYPE, CPARAMSTITLE, CPARAMS, CCOMMENT, " +
-                    " ISTATE, DTPROCESS, CFILENAME, IFILESIZE, ISENDTRYREMAIN, DTSENDTRY, DTSEND, CRESULT " +
-                    " FROM WP_REQUEST_LIST(?) ORDER BY DTCREATE", state.id);
+        QFB(null, isClustered() ? writeProfile : readProfile, null, (con) -> {
+            String fields = " ID, IDUSER, IDDCLIENT, IDDSUB, DTCREATE, ITYPE, ISUBTYPE, CPARAMSTITLE, CPARAMS, CCOMMENT, " +
+                    " ISTATE, DTPROCESS, CFILENAME, IFILESIZE, ISENDTRYREMAIN, DTSENDTRY, DTSEND, CRESULT ";
+            FB_Query q = isClustered()
+                    ? con.execute("SELECT" + fields + " FROM WP_REQUEST_CLAIM(?,?,?,?) ORDER BY DTCREATE",
+                    state.id, clusterNode, leaseTime, maxcount)
+                    : con.execute("SELECT FIRST (?)" + fields + " FROM WP_REQUEST_LIST(?) ORDER BY DTCREATE", maxcount, state.id);
             while (q.next()) {
                 list.add(new Request(
                         q.getInteger("ID"), q.getInteger("IDUSER"), q.getInteger("IDDCLIENT"),
@@ -201,73 +600,259 @@ public class AppModel {
                         q.getLocalDateTime("DTSEND"), q.getString("CRESULT")));
             }
             q.closeSafe();
-        });
+            if (isClustered()) con.commit(); // Фиксация аренды.
+        }, null);
+        if (isClustered()) for (Request req : list) leases.putIfAbsent(req.getId(), new Lease());
         return list;
     }
 
+    /**
+     * Привязка бюджета обработки к аренде заявки: при потере аренды (заявку забрал другой узел) обработка прерывается.
+     */
+    public void attachLease(Request req, Budget budget) {
+        Lease lease = isClustered() ? leases.get(req.getId()) : null;
+        if (lease != null) lease.budget = budget;
+    }
+
+    /**
+     * Продление аренды заявок узла на срок аренды. Заявки, аренда которых потеряна, больше не продлеваются, а их
+     * обработка прерывается (состояние такой заявки узел сохранить уже не сможет).
+     */
+    void renewLeases() {
+        if (leases.isEmpty()) return;
+        leaseLock.writeLock().lock();
+        try {
+            QFBWrite((con) -> {
+                for (Map.Entry<Integer, Lease> e : leases.entrySet()) {
+                    try {
+                        con.execute("EXECUTE PROCEDURE WP_REQUEST_LEASE_RENEW(?,?,?)", e.getKey(), clusterNode, leaseTime)
+                                .closeSafe();
+                    } catch (SQLException ex) {
+                        FB_CustomException ce = FB_CustomException.parse(ex);
+                        if (ce == null || !"E_REQUEST_LEASE_LOST".equals(ce.name)) throw ex;
+                        leases.remove(e.getKey());
+                        logger.errorf("Аренда заявки №%d потеряна! Обработка заявки прерывается.", e.getKey());
+                        Budget budget = e.getValue().budget;
+                        if (budget != null) budget.cancel("Аренда заявки потеряна, заявку обрабатывает другой узел!");
+                    }
+                }
+                con.commit();
+            });
+        } catch (Exception ex) {
+            logger.error("Ошибка продления аренды заявок!", ex);
+        } finally {
+            leaseLock.writeLock().unlock();
+        }
+    }
+
+    /** Смена состояния заявок (вне продления аренды), по завершении аренда заявок больше не продлевается. */
+    private void updateLeased(List<Request> reqs, QFBTask task) throws ExError {
+        leaseLock.readLock().lock();
+        try {
+            QFBWrite(task);
+        } finally {
+            leaseLock.readLock().unlock();
+            if (isClustered()) for (Request req : reqs) leases.remove(req.getId());
+        }
+    }
+
+    /** Проверка, что заявка всё ещё арендована этим узлом (иначе - исключение БД, транзакция не будет подтверждена). */
+    private void checkRequestLease(FB_Connection con, Request req) throws SQLException {
+        if (isClustered()) con.execute("EXECUTE PROCEDURE WP_REQUEST_LEASE_CHECK(?,?)", req.getId(), clusterNode).closeSafe();
+    }
+
+    /** Освобождение аренды заявки (после изменения её состояния заявку может забрать любой узел). */
+    private void releaseRequestLease(FB_Connection con, Request req) throws SQLException {
+        if (isClustered()) con.execute("EXECUTE PROCEDURE WP_REQUEST_LEASE_RELEASE(?,?)", req.getId(), clusterNode).closeSafe();
+    }
+
     public void updateRequestProcess(Request req) throws ExError {
-        QFB((con) -> {
+        updateLeased(Collections.singletonList(req), (con) -> {
+            checkRequestLease(con, req);
             FB_Query q = con.execute("SELECT DTPROCESS FROM WP_REQUEST_PROCESS(?,?,?,?,?)",
                     req.getId(), req.getState().id, req.getResult(), req.getFileName(), req.getFileSize());
             if (!q.next()) throw new ExError("Ошибка сохранения заявки при обработке!");
             req.updateByProcess(q.getLocalDateTime("DTPROCESS"));
             q.closeSafe();
+            releaseRequestLease(con, req);
             con.commit();
         });
     }
 
     public void updateRequestSend(Request req) throws ExError {
-        QFB((con) -> {
+        updateLeased(Collections.singletonList(req), (con) -> {
+            checkRequestLease(con, req);
             FB_Query q = con.execute("SELECT ISENDTRYREMAIN, DTSENDTRY, DTSEND FROM WP_REQUEST_SEND(?,?,?)",
                     req.getId(), req.getState().id, req.getResult());
             if (!q.next()) throw new ExError("Ошибка сохранения заявки при ответе!");
             req.updateBySend(q.getInteger("ISENDTRYREMAIN"), q.getLocalDateTime("DTSENDTRY"), q.getLocalDateTime("DTSEND"));
             q.closeSafe();
+            releaseRequestLease(con, req);
+            con.commit();
+        });
+    }
+
+    /**
+     * Смена состояния обработанных заявок в одной транзакции (одно подтверждение на все заявки, выражение процедуры
+     * готовится один раз). При ошибке любой заявки изменения не сохраняются. Время обработки - время сервера,
+     * возвращаемое процедурой.
+     */
+    public void updateRequestsProcess(List<Request> reqs) throws ExError {
+        if (reqs.isEmpty()) return;
+        LocalDateTime[] dtprocess = new LocalDateTime[reqs.size()];
+        updateLeased(reqs, (con) -> {
+            FB_Query q = con.query("SELECT DTPROCESS FROM WP_REQUEST_PROCESS(?,?,?,?,?)");
+            try {
+                for (int i = 0; i < dtprocess.length; i++) {
+                    Request req = reqs.get(i);
+                    checkRequestLease(con, req);
+                    q.execute(req.getId(), req.getState().id, req.getResult(), req.getFileName(), req.getFileSize());
+                    if (!q.next()) throw new ExError("Ошибка сохранения заявки при обработке!");
+                    dtprocess[i] = q.getLocalDateTime("DTPROCESS");
+                    releaseRequestLease(con, req);
+                }
+            } finally {
+                q.closeSafe();
+            }
             con.commit();
         });
+        for (int i = 0; i < dtprocess.length; i++) reqs.get(i).updateByProcess(dtprocess[i]);
+    }
+
+    /** Смена состояния заявок после отправки ответа в одной транзакции (см. {@link #updateRequestsProcess(List)}). */
+    public void updateRequestsSend(List<Request> reqs) throws ExError {
+        if (reqs.isEmpty()) return;
+        Integer[] remain = new Integer[reqs.size()];
+        LocalDateTime[] dtsendtry = new LocalDateTime[reqs.size()], dtsend = new LocalDateTime[reqs.size()];
+        updateLeased(reqs, (con) -> {
+            FB_Query q = con.query("SELECT ISENDTRYREMAIN, DTSENDTRY, DTSEND FROM WP_REQUEST_SEND(?,?,?)");
+            try {
+                for (int i = 0; i < remain.length; i++) {
+                    Request req = reqs.get(i);
+                    checkRequestLease(con, req);
+                    q.execute(req.getId(), req.getState().id, req.getResult());
+                    if (!q.next()) throw new ExError("Ошибка сохранения заявки при ответе!");
+                    remain[i] = q.getInteger("ISENDTRYREMAIN");
+                    dtsendtry[i] = q.getLocalDateTime("DTSENDTRY");
+                    dtsend[i] = q.getLocalDateTime("DTSEND");
+                    releaseRequestLease(con, req);
+                }
+            } finally {
+                q.closeSafe();
+            }
+            con.commit();
+        });
+        for (int i = 0; i < remain.length; i++) reqs.get(i).updateBySend(remain[i], dtsendtry[i], dtsend[i]);
     }
 
     public ArrayList<Transaction> loadClientTransactions(Integer iddfirm, Integer iddclient, Integer iddsub, LocalDate dtstart,
                                                          LocalDate dtend, Integer iddazs, String iddcard,
                                                          int offset, int limit, String sort) throws ExError {
         ArrayList<Transaction> list = new ArrayList<>();
-        QFB((con) -> {
-            FB_Query q = con.execute("SELECT FIRST " + limit + " SKIP " + offset + " "
-                            + "DTSTART, DTEND, IDDCARD, CCARD, IDD, IDDAZS, IDDTRK, IDDOIL, IACCTYPE, DBPRICE, DBVOLREQ, DBVOLUME, DBSUMMA "
+        QFBRead((con) -> {
+            FB_Query q = con.execute("SELECT FIRST (?) SKIP (?) " + TRANSACTION_FIELDS
                             + "FROM WP_REPORT_CLIENTTRANS(?,?,?, ?,?,?,?) "
                             + (StringTools.isEmptySafe(sort) ? "" : " ORDER BY " + sort),
-                    iddfirm, iddclient, iddsub, dtstart, dtend, iddazs, iddcard);
-            while (q.next()) {
-                list.add(new Transaction(
-                        q.getLocalDateTime("DTSTART"),
-                        q.getLocalDateTime("DTEND"),
-                        q.getString("IDDCARD"),
-                        q.getString("CCARD"),
-                        q.getInteger("IDD"),
-                        q.getInteger("IDDAZS"),
-                        q.getInteger("IDDTRK"),
-                        q.getInteger("IDDOIL"),
-                        q.getInteger("IACCTYPE"),
-                        q.getLong("DBPRICE"),
-                        q.getLong("DBVOLREQ"),
-                        q.getLong("DBVOLUME"),
-                        q.getLong("DBSUMMA")));
-            }
+                    limit, offset, iddfirm, iddclient, iddsub, dtstart, dtend, iddazs, iddcard);
+            while (q.next()) list.add(TRANSACTION_MAPPER.map(q));
             q.closeSafe();
         });
         return list;
     }
 
+    /**
+     * Порядок транзакций для постраничной загрузки по ключу и для курсора (один порядок для обоих путей, чтобы
+     * выгрузка не зависела от режима чтения). Для загрузки по ключу (DTSTART, IDDAZS, IDD) должен быть уникален: номер
+     * транзакции IDD уникален в пределах АЗС, при равном времени порядок задаётся АЗС и номером (см.
+     * {@link TransactionPager}).
+     */
+    public static final String TRANSACTION_KEYSET_SORT = "DTSTART, IDDAZS, IDD";
+
+    /**
+     * Постраничная загрузка транзакций клиента: по ключу, а если ключ у данных не уникален - FIRST/SKIP в том же
+     * порядке.
+     */
+    public TransactionPager pageClientTransactions(Integer iddfirm, Integer iddclient, Integer iddsub,
+                                                   LocalDate dtstart, LocalDate dtend, Integer iddazs, String iddcard) {
+        return new TransactionPager(this, iddfirm, iddclient, iddsub, dtstart, dtend, iddazs, iddcard);
+    }
+
+    /**
+     * Страница транзакций клиента по ключу (WP_REPORT_CLIENTTRANS_PAGE, см. sql/report_clienttrans_page.sql):
+     * транзакции в порядке {@link #TRANSACTION_KEYSET_SORT} начиная с транзакции с ключом after (она выдаётся первой,
+     * если ещё есть). Процедура выдаёт строки в порядке ключа, поэтому запрос без ORDER BY и FIRST останавливает её,
+     * как только страница набрана.
+     *
+     * @param after Последняя транзакция предыдущей страницы (null - первая страница).
+     */
+    ArrayList<Transaction> loadClientTransactionsPage(Integer iddfirm, Integer iddclient, Integer iddsub,
+                                                      LocalDate dtstart, LocalDate dtend, Integer iddazs, String iddcard,
+                                                      Transaction after, int limit) throws ExError {
+        ArrayList<Transaction> list = new ArrayList<>();
+        QFBRead((con) -> {
+            FB_Query q = con.execute("SELECT FIRST (?) " + TRANSACTION_FIELDS
+                            + "FROM WP_REPORT_CLIENTTRANS_PAGE(?,?,?, ?,?,?,?, ?,?,?)",
+                    limit, iddfirm, iddclient, iddsub, dtstart, dtend, iddazs, iddcard,
+                    after == null ? null : Timestamp.valueOf(after.getStart()),
+                    after == null ? null : after.getIddAzs(),
+                    after == null ? null : after.getIdd());
+            while (q.next()) list.add(TRANSACTION_MAPPER.map(q));
+            q.closeSafe();
+        });
+        return list;
+    }
+
+    /**
+     * Открытие курсора по транзакциям клиента: транзакции читаются из БД по мере перебора. Курсор должен быть закрыт
+     * (try-with-resources).
+     */
+    public FB_Cursor<Transaction> openClientTransactions(Integer iddfirm, Integer iddclient, Integer iddsub,
+                                                         LocalDate dtstart, LocalDate dtend, Integer iddazs,
+                                                         String iddcard, String sort) throws ExError {
+        return QFBCursor("SELECT " + TRANSACTION_FIELDS
+                        + "FROM WP_REPORT_CLIENTTRANS(?,?,?, ?,?,?,?) "
+                        + (StringTools.isEmptySafe(sort) ? "" : " ORDER BY " + sort),
+                TRANSACTION_MAPPER, iddfirm, iddclient, iddsub, dtstart, dtend, iddazs, iddcard);
+    }
+
+    private static final String TRANSACTION_FIELDS =
+            "DTSTART, DTEND, IDDCARD, CCARD, IDD, IDDAZS, IDDTRK, IDDOIL, IACCTYPE, DBPRICE, DBVOLREQ, DBVOLUME, DBSUMMA ";
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Преобразователи записей (индексы полей определяются один раз для набора, суммы/объёмы NULL = 0).
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static final FB_Query.RowMapper<Transaction> TRANSACTION_MAPPER = FB_Row.mapper(r -> new Transaction(
+                    r.getLocalDateTime(0), r.getLocalDateTime(1), r.getString(2), r.getString(3),
+                    r.getInteger(4), r.getInteger(5), r.getInteger(6), r.getInteger(7), r.getInteger(8),
+                    r.getLong(9, 0), r.getLong(10, 0), r.getLong(11, 0), r.getLong(12, 0)),
+            "DTSTART", "DTEND", "IDDCARD", "CCARD", "IDD", "IDDAZS", "IDDTRK", "IDDOIL", "IACCTYPE",
+            "DBPRICE", "DBVOLREQ", "DBVOLUME", "DBSUMMA");
+
+    private static final FB_Query.RowMapper<Saldo> SALDO_MAPPER = FB_Row.mapper(r -> new Saldo(
+                    r.getInteger(0), r.getInteger(1), r.getInteger(2), r.getLong(3, 0)),
+            "IDDACC", "IACCTYPE", "IDDOIL", "DBSALDO");
+
+    private static final FB_Query.RowMapper<Pay> PAY_MAPPER = FB_Row.mapper(r -> new Pay(
+                    r.getLocalDate(0), r.getString(1), r.getInteger(2), r.getInteger(3), r.getLong(4, 0), r.getLong(5, 0)),
+            "DTDOC", "CDOC", "IACCTYPE", "IDDOIL", "DBVOLUME", "DBSUMMA");
+
+    private static final FB_Query.RowMapper<Sale> SALE_MAPPER = FB_Row.mapper(r -> new Sale(
+                    r.getInteger(0), r.getInteger(1), r.getLong(2, 0), r.getLong(3, 0), r.getLong(4, 0)),
+            "IACCTYPE", "IDDOIL", "DBPRICE", "DBVOLUME", "DBSUMMA");
+
+    private static final FB_Query.RowMapper<Card> CARD_MAPPER = FB_Row.mapper(r -> new Card(
+                    r.getLocalDate(0), r.getLocalDate(1), r.getString(2), r.getInteger(3), r.getInteger(4),
+                    r.getLocalDate(5), r.getString(6), r.getString(7), r.getLong(8), r.getString(9)),
+            "DTW", "DTWEND", "IDD", "IACCTYPE", "IBWORK", "DTPAY", "CDRIVER", "CCAR", "DBDAYLIMIT", "CCOMMENT");
+
     public ArrayList<Saldo> loadClientSaldos(Integer iddfirm, Integer iddclient, Integer iddsub, LocalDate dtw) throws ExError {
         final ArrayList<Saldo> list = new ArrayList<>();
-        QFB((con) -> {
+        QFBRead((con) -> {
             FB_Query q = con.execute("SELECT IDDACC, IACCTYPE, IDDOIL, DBSALDO "
                             + "FROM WP_REPORT_CLIENTTURNOVER_SALDO(?,?,?,?) ORDER BY IACCTYPE, IDDOIL",
                     iddfirm, iddclient, iddsub, dtw);
-            while (q.next()) {
-                list.add(new Saldo(q.getInteger("IDDACC"), q.getInteger("IACCTYPE"), q.getInteger("IDDOIL"),
-                        q.getLong("DBSALDO")));
-            }
+            while (q.next()) list.add(SALDO_MAPPER.map(q));
             q.closeSafe();
         });
         return list;
@@ -275,14 +860,11 @@ public class AppModel {
 
     public ArrayList<Pay> loadClientPays(Integer iddfirm, Integer iddclient, Integer iddsub, LocalDate dtstart, LocalDate dtend) throws ExError {
         final ArrayList<Pay> list = new ArrayList<>();
-        QFB((con) -> {
+        QFBRead((con) -> {
             FB_Query q = con.execute("SELECT DTDOC, CDOC, IACCTYPE, IDDOIL, DBVOLUME, DBSUMMA "
                             + "FROM WP_REPORT_CLIENTTURNOVER_PAY(?,?,?,?,?) ORDER BY DTDOC, CDOC",
                     iddfirm, iddclient, iddsub, dtstart, dtend);
-            while (q.next()) {
-                list.add(new Pay(q.getLocalDate("DTDOC"), q.getString("CDOC"), q.getInteger("IACCTYPE"), q.getInteger("IDDOIL"),
-                        q.getLong("DBVOLUME"), q.getLong("DBSUMMA")));
-            }
+            while (q.next()) list.add(PAY_MAPPER.map(q));
             q.closeSafe();
         });
         return list;
@@ -290,14 +872,11 @@ public class AppModel {
 
     public ArrayList<Sale> loadClientSales(Integer iddfirm, Integer iddclient, Integer iddsub, LocalDate dtstart, LocalDate dtend) throws ExError {
         final ArrayList<Sale> list = new ArrayList<>();
-        QFB((con) -> {
+        QFBRead((con) -> {
             FB_Query q = con.execute("SELECT IACCTYPE, IDDSUB, IDDOIL, DBPRICE, DBVOLUME, DBSUMMA "
                             + "FROM WP_REPORT_CLIENTTURNOVER_SALE(?,?,?,?,?) ORDER BY IACCTYPE, IDDOIL, DBPRICE",
                     iddfirm, iddclient, iddsub, dtstart, dtend);
-            while (q.next()) {
-                list.add(new Sale(q.getInteger("IACCTYPE"), q.getInteger("IDDOIL"),
-                        q.getLong("DBPRICE"), q.getLong("DBVOLUME"), q.getLong("DBSUMMA")));
-            }
+            while (q.next()) list.add(SALE_MAPPER.map(q));
             q.closeSafe();
         });
         return list;
@@ -305,22 +884,41 @@ public class AppModel {
 
     public ArrayList<Card> loadClientCards(Integer iddfirm, Integer iddclient, Integer iddsub, LocalDate dtw, Card.WorkState workstate, String sort) throws ExError {
         final ArrayList<Card> list = new ArrayList<>();
-        QFB((con) -> {
+        QFBRead((con) -> {
             FB_Query q = con.execute("SELECT DTW, DTWEND, IDD, IACCTYPE, IBWORK, DTPAY, CDRIVER, CCAR, DBDAYLIMIT, CCOMMENT "
                             + " FROM WP_REPORT_CLIENTCARD(?,?,?,?,?) "
                             + (StringTools.isEmptySafe(sort) ? "" : " ORDER BY " + sort),
                     iddfirm, iddclient, iddsub, dtw, workstate == null ? null : workstate.id);
-            while (q.next()) {
-                list.add(new Card(q.getLocalDate("DTW"), q.getLocalDate("DTWEND"), q.getString("IDD"),
-                        q.getInteger("IACCTYPE"), q.getInteger("IBWORK"), q.getLocalDate("DTPAY"), q.getString("CDRIVER"),
-                        q.getString("CCAR"), q.getLong("DBDAYLIMIT"), q.getString("CCOMMENT")));
-            }
+            while (q.next()) list.add(CARD_MAPPER.map(q));
             q.closeSafe();
         });
         return list;
     }
 
 
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Асинхронная загрузка данных клиента (для одновременной загрузки независимых наборов данных отчёта).
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    public CompletableFuture<ArrayList<Saldo>> loadClientSaldosAsync(Integer iddfirm, Integer iddclient, Integer iddsub,
+                                                                     LocalDate dtw) {
+        return QFBAsync(() -> loadClientSaldos(iddfirm, iddclient, iddsub, dtw));
+    }
+
+    public CompletableFuture<ArrayList<Pay>> loadClientPaysAsync(Integer iddfirm, Integer iddclient, Integer iddsub,
+                                                                 LocalDate dtstart, LocalDate dtend) {
+        return QFBAsync(() -> loadClientPays(iddfirm, iddclient, iddsub, dtstart, dtend));
+    }
+
+    public CompletableFuture<ArrayList<Sale>> loadClientSalesAsync(Integer iddfirm, Integer iddclient, Integer iddsub,
+                                                                   LocalDate dtstart, LocalDate dtend) {
+        return QFBAsync(() -> loadClientSales(iddfirm, iddclient, iddsub, dtstart, dtend));
+    }
+
+    public CompletableFuture<ArrayList<Card>> loadClientCardsAsync(Integer iddfirm, Integer iddclient, Integer iddsub,
+                                                                   LocalDate dtw, Card.WorkState workstate, String sort) {
+        return QFBAsync(() -> loadClientCards(iddfirm, iddclient, iddsub, dtw, workstate, sort));
+    }
+
     /** Создание каталога, если не существует. */
     public static File createDirectoryIfNotExist(String path) throws ExError {
         try {
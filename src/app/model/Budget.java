@@ -0,0 +1,114 @@
+package app.model;
+
+import app.ExError;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Бюджет обработки заявки: предельное время и защита от нехватки памяти. Бюджет привязывается к потоку (на время
+ * обработки заявки или этапа конвейера) и проверяется в циклах построения отчётов и экспорта методом {@link #check()}.
+ * При превышении обработка прерывается исключением, а причина сохраняется в бюджете для текста результата заявки.
+ * <p>
+ * Память отдельной заявки в JVM не измерить, поэтому защита памяти общая: проверяется занятость всей кучи JVM (всеми
+ * заявками и сервисом) и прерывается та заявка, которая заметила превышение при проверке.
+ */
+public class Budget {
+
+    private static final ThreadLocal<Budget> current = new ThreadLocal<>();
+
+    /** Проверять память через каждые N проверок (проверка памяти дороже проверки времени). */
+    private static final int MEMORY_CHECK_PERIOD = 256;
+
+    private final long limitMsec, deadline;
+    private final int heapGuardPercent;
+    private int checks = 0;
+    /** Причина превышения бюджета (null - не превышен). */
+    private volatile String exceeded = null;
+
+    /**
+     * @param msec          Предельное время обработки (мсек, 0 - без ограничения).
+     * @param heapguard Предельная занятость кучи JVM (% от максимального размера, общая для всех заявок, 0 - без
+     *                  ограничения).
+     */
+    public Budget(long msec, int heapguard) {
+        this.limitMsec = msec;
+        this.deadline = msec > 0 ? System.currentTimeMillis() + msec : Long.MAX_VALUE;
+        this.heapGuardPercent = heapguard;
+    }
+
+    /** Привязка бюджета к текущему потоку. Возвращает предыдущий бюджет потока (для {@link #exit(Budget)}). */
+    public static Budget enter(Budget budget) {
+        Budget prev = current.get();
+        current.set(budget);
+        return prev;
+    }
+
+    /** Восстановление предыдущего бюджета потока. */
+    public static void exit(Budget prev) {
+        if (prev == null) {
+            current.remove();
+        } else {
+            current.set(prev);
+        }
+    }
+
+    /** Бюджет текущего потока (для передачи в потоки, выполняющие часть обработки заявки), null - не задан. */
+    public static Budget current() {
+        return current.get();
+    }
+
+    /** Проверка бюджета текущего потока (если не задан - ничего не делает). */
+    public static void check() throws ExError {
+        Budget b = current.get();
+        if (b != null) b.checkBudget();
+    }
+
+    public void checkBudget() throws ExError {
+        if (exceeded == null) {
+            if (System.currentTimeMillis() > deadline) {
+                exceeded = String.format("Превышено время обработки заявки (%d сек)!", limitMsec / 1000);
+            } else if (heapGuardPercent > 0 && ++checks % MEMORY_CHECK_PERIOD == 0) {
+                Runtime rt = Runtime.getRuntime();
+                long used = rt.totalMemory() - rt.freeMemory();
+                if (used * 100 > rt.maxMemory() * heapGuardPercent) {
+                    exceeded = String.format("Недостаточно памяти сервиса (куча JVM занята более %d%%)!", heapGuardPercent);
+                }
+            }
+        }
+        if (exceeded != null) throw new ExError(exceeded);
+    }
+
+    /** Оставшееся время обработки (мсек, не меньше 0; Long.MAX_VALUE - без ограничения). */
+    public long remainingMillis() {
+        return deadline == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(0, deadline - System.currentTimeMillis());
+    }
+
+    /** Прерывание обработки по внешней причине (следующая проверка бюджета завершится исключением с этой причиной). */
+    public void cancel(String reason) {
+        if (exceeded == null) exceeded = reason;
+    }
+
+    /** Причина превышения бюджета (null - не превышен). */
+    public String getExceeded() {
+        return exceeded;
+    }
+
+    /** Поток вывода с проверкой бюджета текущего потока при записи (для экспортёров, не поддерживающих проверку). */
+    public static OutputStream wrap(OutputStream outs) {
+        Budget b = current.get();
+        if (b == null) return outs;
+        return new FilterOutputStream(outs) {
+            @Override
+            public void write(byte[] buf, int off, int len) throws IOException {
+                try {
+                    b.checkBudget();
+                } catch (ExError ex) {
+                    throw new IOException(ex.getMessage(), ex);
+                }
+                out.write(buf, off, len);
+            }
+        };
+    }
+}
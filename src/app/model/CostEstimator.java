@@ -0,0 +1,51 @@
+package app.model;
+
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+
+/**
+ * Оценка времени обработки заявки. Ключ оценки - тип и подвид заявки, объём - ширина периода отчёта (в днях). Для
+ * каждого ключа хранится экспоненциально сглаженное время обработки на единицу объёма, которое уточняется по
+ * фактическому времени обработки заявок.
+ */
+public class CostEstimator {
+
+    /** Коэффициент сглаживания (вес нового наблюдения). */
+    private static final double ALPHA = 0.2;
+    /** Начальная оценка времени на единицу объёма (мсек), пока по виду заявки нет наблюдений. */
+    private static final double DEFAULT_RATE = 200;
+
+    private final HashMap<String, Double> rates = new HashMap<>();
+
+    /** Ключ оценки: тип и подвид заявки. */
+    public static String costKey(Request r) {
+        return r.getType() + "/" + (r.getSubType() != null ? r.getSubType().getId() : 0);
+    }
+
+    /** Объём заявки: 1 + ширина периода в днях (dtStart..dtEnd из параметров), для заявок без периода - 1. */
+    public static int volume(Request r) {
+        try {
+            LocalDate dtstart = r.getParamAsLocalDate("dtStart");
+            LocalDate dtend = r.getParamAsLocalDate("dtEnd");
+            if (dtstart == null || dtend == null) return 1;
+            return 1 + (int) Math.max(0, ChronoUnit.DAYS.between(dtstart, dtend));
+        } catch (Exception ex) {
+            return 1;
+        }
+    }
+
+    /** Оценка времени обработки заявки (мсек). */
+    public synchronized long estimate(Request r) {
+        Double rate = rates.get(costKey(r));
+        return Math.round((rate != null ? rate : DEFAULT_RATE) * volume(r));
+    }
+
+    /** Учет фактического времени обработки заявки. */
+    public synchronized void observe(Request r, long msec) {
+        String key = costKey(r);
+        double rate = (double) msec / volume(r);
+        Double old = rates.get(key);
+        rates.put(key, old == null ? rate : old + ALPHA * (rate - old));
+    }
+}
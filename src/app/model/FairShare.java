@@ -0,0 +1,127 @@
+package app.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Справедливое распределение обработки между клиентами. У каждого клиента (iddClient + iddSub) и у каждой фирмы своё
+ * ведро токенов: токены пополняются с заданной скоростью до заданного запаса, обработка заявки расходует по токену из
+ * ведра клиента и ведра его фирмы. Клиенты, исчерпавшие токены, обслуживаются только если других заявок нет.
+ */
+public class FairShare {
+
+    /** Ведро токенов. */
+    static class Bucket {
+        double tokens;
+        long time;
+        int served;
+
+        Bucket(double tokens, long time) {
+            this.tokens = tokens;
+            this.time = time;
+        }
+
+        void refill(double rate, int burst, long now) {
+            tokens = Math.min(burst, tokens + (now - time) * rate);
+            time = now;
+        }
+    }
+
+    /** Скорость пополнения (токенов в мсек) и запас ведер клиентов и фирм. */
+    private final double clientRate, firmRate;
+    private final int clientBurst, firmBurst;
+    /** Веса клиентов (кол-во заявок подряд при обходе по кругу), по умолчанию - 1. */
+    private final HashMap<Integer, Integer> weights = new HashMap<>();
+
+    private final HashMap<String, Bucket> clients = new HashMap<>();
+    private final HashMap<Integer, Bucket> firms = new HashMap<>();
+    /** Фирмы клиентов (ключ - ключ клиента). */
+    private final HashMap<String, Integer> clientFirms = new HashMap<>();
+
+    /**
+     * @param clientrate  Токенов клиента в минуту.
+     * @param clientburst Запас токенов клиента.
+     * @param firmrate    Токенов фирмы в минуту.
+     * @param firmburst   Запас токенов фирмы.
+     * @param weights     Веса клиентов в виде "iddClient:вес,iddClient:вес...".
+     */
+    public FairShare(int clientrate, int clientburst, int firmrate, int firmburst, String weights) {
+        this.clientRate = clientrate / 60000.0;
+        this.clientBurst = Math.max(1, clientburst);
+        this.firmRate = firmrate / 60000.0;
+        this.firmBurst = Math.max(1, firmburst);
+        if (weights != null) {
+            for (String s : weights.split(",")) {
+                String[] kv = s.trim().split(":");
+                if (kv.length == 2) {
+                    try {
+                        this.weights.put(Integer.parseInt(kv[0].trim()), Math.max(1, Integer.parseInt(kv[1].trim())));
+                    } catch (NumberFormatException ignore) {
+                    }
+                }
+            }
+        }
+    }
+
+    public synchronized boolean isFirmKnown(String clientkey) {
+        return clientFirms.containsKey(clientkey);
+    }
+
+    public synchronized void setFirm(String clientkey, Integer firm) {
+        clientFirms.put(clientkey, firm != null ? firm : 0);
+    }
+
+    public int weight(Request r) {
+        Integer w = weights.get(r.getIddClient());
+        return w != null ? w : 1;
+    }
+
+    private Bucket clientBucket(String clientkey, long now) {
+        Bucket b = clients.computeIfAbsent(clientkey, k -> new Bucket(clientBurst, now));
+        b.refill(clientRate, clientBurst, now);
+        return b;
+    }
+
+    private Bucket firmBucket(String clientkey, long now) {
+        Integer firm = clientFirms.get(clientkey);
+        Bucket b = firms.computeIfAbsent(firm != null ? firm : 0, k -> new Bucket(firmBurst, now));
+        b.refill(firmRate, firmBurst, now);
+        return b;
+    }
+
+    /** Доступные клиенту токены (минимум из ведер клиента и его фирмы). */
+    public synchronized double available(String clientkey) {
+        long now = System.currentTimeMillis();
+        return Math.min(clientBucket(clientkey, now).tokens, firmBucket(clientkey, now).tokens);
+    }
+
+    /** Расход токена на заявку клиента (может уйти в минус, если заявка выдана при отсутствии других). */
+    public synchronized void consume(String clientkey) {
+        long now = System.currentTimeMillis();
+        Bucket c = clientBucket(clientkey, now);
+        Bucket f = firmBucket(clientkey, now);
+        c.tokens -= 1;
+        c.served++;
+        f.tokens -= 1;
+        f.served++;
+    }
+
+    /** Состояние ведер клиентов с наименьшим запасом токенов (для отображения). */
+    public synchronized String[] getInfo(int count) {
+        long now = System.currentTimeMillis();
+        ArrayList<Map.Entry<String, Bucket>> list = new ArrayList<>(clients.entrySet());
+        for (Map.Entry<String, Bucket> e : list) e.getValue().refill(clientRate, clientBurst, now);
+        list.sort((a, b) -> Double.compare(a.getValue().tokens, b.getValue().tokens));
+        int n = Math.min(count, list.size());
+        String[] res = new String[n];
+        for (int i = 0; i < n; i++) {
+            Map.Entry<String, Bucket> e = list.get(i);
+            Integer firm = clientFirms.get(e.getKey());
+            Bucket f = firmBucket(e.getKey(), now);
+            res[i] = String.format("клиент %-10s: токенов %5.1f, заявок %4d | фирма %-4d: токенов %5.1f, заявок %4d",
+                    e.getKey(), e.getValue().tokens, e.getValue().served, firm != null ? firm : 0, f.tokens, f.served);
+        }
+        return res;
+    }
+}
@@ -12,19 +12,19 @@ import static util.NumberTools.*;
 public class Helper {
 
     public static String fmtN2(Long num) {
-        return FMT_N2T.format(num / 100.0);
+        return getFormatT(2).format(num / 100.0);
     }
 
     public static String fmtN2_0(Long num) {
-        return FMT_N0T.format(num / 100.0);
+        return getFormatT(0).format(num / 100.0);
     }
 
     public static String fmtN3_2(Long num) {
-        return FMT_N2T.format(Math.round(num / 10.0) / 100.0);
+        return getFormatT(2).format(Math.round(num / 10.0) / 100.0);
     }
 
     public static String fmtN3(Long num) {
-        return FMT_N3T.format(num / 1000.0);
+        return getFormatT(3).format(num / 1000.0);
     }
 
     public static final DateTimeFormatter FMT_DT_DDMMYYYYHHMMSS = DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm:ss");
@@ -0,0 +1,122 @@
+package app.model;
+
+/**
+ * Политика опроса очереди заявок: размер пакета, пауза до следующего запроса заявок и пауза между заявками пакета.
+ */
+public interface PollPolicy {
+
+    /** Размер пакета для следующего запроса заявок. */
+    int getLoadSize();
+
+    /** Пауза между обработкой заявок пакета (мсек). */
+    int getItemPause();
+
+    /** Учет результата запроса заявок (count - кол-во загруженных, errmsg - ошибка или null). */
+    void onLoaded(int count, String errmsg);
+
+    /** Учет обработки пакета (count - кол-во заявок, msec - время обработки всего пакета). */
+    void onProcessed(int count, long msec);
+
+    /** Пауза до следующего запроса заявок (мсек, 0 - сразу). */
+    long getDelay();
+
+    /** Создание политики по названию из конфигурации. */
+    static PollPolicy create(String name, int loadsize, int delay, int maxloadsize, int maxdelay, int blocktime) {
+        if ("adaptive".equalsIgnoreCase(name)) return new Adaptive(loadsize, maxloadsize, delay, maxdelay, blocktime);
+        return new Fixed(loadsize, delay);
+    }
+
+    /** Фиксированные размер пакета и пауза (исходное поведение). */
+    class Fixed implements PollPolicy {
+        private final int loadSize, delay;
+
+        public Fixed(int loadsize, int delay) {
+            this.loadSize = loadsize;
+            this.delay = delay;
+        }
+
+        @Override
+        public int getLoadSize() {
+            return loadSize;
+        }
+
+        @Override
+        public int getItemPause() {
+            return 100;
+        }
+
+        @Override
+        public void onLoaded(int count, String errmsg) {
+        }
+
+        @Override
+        public void onProcessed(int count, long msec) {
+        }
+
+        @Override
+        public long getDelay() {
+            return delay;
+        }
+    }
+
+    /**
+     * Адаптивный опрос. Если пакет загружен полностью - следующий запрос сразу; при пустой очереди пауза удваивается от
+     * минимальной до максимальной. Размер пакета увеличивается, пока полный пакет обрабатывается быстрее половины
+     * целевого времени, и уменьшается, если обработка пакета дольше целевого времени.
+     */
+    class Adaptive implements PollPolicy {
+        private final int minLoadSize, maxLoadSize, minDelay, maxDelay, blockTime;
+        private int loadSize;
+        private long delay;
+        private boolean isFull;
+
+        public Adaptive(int loadsize, int maxloadsize, int delay, int maxdelay, int blocktime) {
+            this.minLoadSize = Math.max(1, loadsize);
+            this.maxLoadSize = Math.max(minLoadSize, maxloadsize);
+            this.minDelay = Math.max(1, delay);
+            this.maxDelay = Math.max(minDelay, maxdelay);
+            this.blockTime = Math.max(1, blocktime);
+            this.loadSize = minLoadSize;
+            this.delay = minDelay;
+            this.isFull = false;
+        }
+
+        @Override
+        public synchronized int getLoadSize() {
+            return loadSize;
+        }
+
+        @Override
+        public int getItemPause() {
+            return 0;
+        }
+
+        @Override
+        public synchronized void onLoaded(int count, String errmsg) {
+            isFull = errmsg == null && count >= loadSize;
+            if (errmsg != null) {
+                delay = maxDelay; // При ошибке БД не частим.
+            } else if (isFull) {
+                delay = 0;
+            } else if (count == 0) {
+                delay = delay == 0 ? minDelay : Math.min(maxDelay, delay * 2);
+            } else {
+                delay = minDelay;
+            }
+        }
+
+        @Override
+        public synchronized void onProcessed(int count, long msec) {
+            if (isFull && msec * 2 < blockTime) {
+                loadSize = Math.min(maxLoadSize, loadSize * 2);
+            } else if (msec > blockTime && count > 0) {
+                loadSize = Math.max(minLoadSize, (int) (count * blockTime / msec));
+            }
+        }
+
+        @Override
+        public synchronized long getDelay() {
+            return delay;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package app.model;
+
+import app.App;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Конвейер обработки: последовательность этапов, связанных ограниченными очередями. У каждого этапа свои потоки,
+ * поэтому этапы разных заданий выполняются одновременно (например, чтение из БД следующей заявки во время экспорта
+ * текущей). Заполненная очередь этапа приостанавливает предыдущий этап.
+ */
+public class ProcessPipeline<J> {
+
+    /** Операция этапа над заданием. */
+    @FunctionalInterface
+    public interface StageTask<J> {
+        void run(J job) throws Exception;
+    }
+
+    /** Завершение задания (ex - ошибка этапа или null при успешном прохождении всех этапов). */
+    @FunctionalInterface
+    public interface DoneTask<J> {
+        void run(J job, Exception ex);
+    }
+
+    /** Этап конвейера. */
+    public class Stage {
+        public final String name;
+        private final StageTask<J> task;
+        private final ArrayBlockingQueue<J> queue;
+        private final ArrayList<Thread> threads = new ArrayList<>();
+        private Stage next;
+        private long count, msec;
+        private int busy;
+
+        Stage(String name, int threadscount, int queuesize, StageTask<J> task) {
+            this.name = name;
+            this.task = task;
+            this.queue = new ArrayBlockingQueue<>(Math.max(1, queuesize));
+            for (int i = 0; i < Math.max(1, threadscount); i++) {
+                Thread t = new Thread(this::body, "pipeline-" + name + "-" + (i + 1));
+                t.setDaemon(true);
+                threads.add(t);
+            }
+        }
+
+        private void body() {
+            try {
+                while (true) {
+                    J job = queue.take();
+                    long time = System.currentTimeMillis();
+                    synchronized (this) {
+                        busy++;
+                    }
+                    Exception err = null;
+                    try {
+                        task.run(job);
+                    } catch (Exception ex) {
+                        err = ex;
+                    } catch (Throwable ex) {
+                        // Error (например, нехватка памяти) завершает только задание, поток этапа продолжает работу.
+                        err = new ExecutionException(ex.toString(), ex);
+                    }
+                    synchronized (this) {
+                        busy--;
+                        count++;
+                        msec += System.currentTimeMillis() - time;
+                    }
+                    if (err == null && next != null) {
+                        next.queue.put(job);
+                    } else {
+                        complete(job, err);
+                    }
+                }
+            } catch (InterruptedException ignore) {
+            }
+        }
+
+        /** Состояние этапа: очередь, занятые потоки, обработано заданий, среднее время обработки. */
+        public synchronized String getInfo() {
+            return String.format("%-8s: очередь %d/%d, потоков %d/%d, обработано %d, ср. время %d мсек", name,
+                    queue.size(), queue.size() + queue.remainingCapacity(), busy, threads.size(), count,
+                    count == 0 ? 0 : msec / count);
+        }
+    }
+
+    private final ArrayList<Stage> stages = new ArrayList<>();
+    private final DoneTask<J> doneTask;
+    private final int queueSize;
+    /** Кол-во заданий в конвейере. */
+    private int inflight = 0;
+    private boolean isStarted = false;
+
+    public ProcessPipeline(int queuesize, DoneTask<J> donetask) {
+        this.queueSize = queuesize;
+        this.doneTask = donetask;
+    }
+
+    /** Добавление этапа (в порядке следования). */
+    public synchronized ProcessPipeline<J> stage(String name, int threadscount, StageTask<J> task) {
+        Stage st = new Stage(name, threadscount, queueSize, task);
+        if (!stages.isEmpty()) stages.get(stages.size() - 1).next = st;
+        stages.add(st);
+        return this;
+    }
+
+    public synchronized void start() {
+        if (isStarted) return;
+        isStarted = true;
+        for (Stage st : stages) for (Thread t : st.threads) t.start();
+    }
+
+    public synchronized void shutdown() {
+        for (Stage st : stages) for (Thread t : st.threads) t.interrupt();
+    }
+
+    /** Передача задания в конвейер (ожидает, если очередь первого этапа заполнена). */
+    public void put(J job) throws InterruptedException {
+        synchronized (this) {
+            inflight++;
+        }
+        try {
+            stages.get(0).queue.put(job);
+        } catch (InterruptedException ex) {
+            synchronized (this) {
+                inflight--;
+                notifyAll();
+            }
+            throw ex;
+        }
+    }
+
+    private void complete(J job, Exception err) {
+        try {
+            doneTask.run(job, err);
+        } catch (Throwable ex) {
+            App.procLogger.error("Ошибка завершения задания конвейера!", ex);
+        } finally {
+            synchronized (this) {
+                inflight--;
+                notifyAll();
+            }
+        }
+    }
+
+    /** Ожидание завершения всех переданных заданий. */
+    public synchronized void awaitIdle() throws InterruptedException {
+        while (inflight > 0) wait();
+    }
+
+    public synchronized String[] getInfo() {
+        String[] res = new String[stages.size()];
+        for (int i = 0; i < res.length; i++) res[i] = stages.get(i).getInfo();
+        return res;
+    }
+}
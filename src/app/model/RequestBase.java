@@ -4,6 +4,7 @@ import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -460,6 +461,15 @@ public abstract class RequestBase {
             return map.get(key);
         }
 
+        /** Каноническое представление карты (ключи по алфавиту, без учета порядка задания) - для сравнения параметров. */
+        public String toCanonicalString() {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, String> e : new TreeMap<>(map).entrySet()) {
+                sb.append(e.getKey()).append("=").append(maskSysChars(e.getValue())).append("\n");
+            }
+            return sb.toString();
+        }
+
         /** Функциональный интерфейс для удобной обработки всех элементов карты. */
         @FunctionalInterface
         interface Processor {
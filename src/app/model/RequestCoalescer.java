@@ -0,0 +1,69 @@
+package app.model;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Объединение одинаковых заявок: если клиент повторил заявку с теми же параметрами (двойной клик в ЛК), то повторной
+ * заявке назначается файл ответа недавно обработанной заявки, без повторного построения отчёта.
+ * <p>
+ * Одинаковые заявки одного клиента в пакете не обрабатываются одновременно (см. {@link RequestQueue}), поэтому
+ * повторная заявка всегда обрабатывается после исходной и находит её ответ.
+ */
+public class RequestCoalescer {
+
+    /** Ответ на обработанную заявку. */
+    public static class Answer {
+        public final int id;
+        public final String fileName;
+        public final int fileSize;
+        final long time;
+
+        Answer(int id, String fileName, int fileSize, long time) {
+            this.id = id;
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.time = time;
+        }
+    }
+
+    private final HashMap<String, Answer> answers = new HashMap<>();
+    /** Время, в течение которого ответ используется для одинаковых заявок (мсек). */
+    private final long ttl;
+
+    public RequestCoalescer(int ttlsec) {
+        this.ttl = ttlsec * 1000L;
+    }
+
+    /** Ключ заявки: тип, подвид, клиент и параметры в каноническом виде. */
+    public static String coalesceKey(Request r) {
+        return r.getType() + "|" + r.getIdSubType() + "|" + r.getIddClient() + "|" + r.getIddSub() + "|" +
+                r.paramsMap.toCanonicalString();
+    }
+
+    /** Поиск ответа на такую же недавно обработанную заявку (null - нет или файл ответа уже удален). */
+    public synchronized Answer find(Request r) {
+        purge();
+        Answer a = answers.get(coalesceKey(r));
+        if (a != null && !new File(r.getAnswerPath() + File.separator + a.fileName).exists()) {
+            answers.remove(coalesceKey(r));
+            return null;
+        }
+        return a;
+    }
+
+    /** Запоминание ответа успешно обработанной заявки. */
+    public synchronized void register(Request r) {
+        if (r.getFileName() == null) return;
+        answers.put(coalesceKey(r), new Answer(r.getId(), r.getFileName(),
+                r.getFileSize() != null ? r.getFileSize() : 0, System.currentTimeMillis()));
+    }
+
+    private void purge() {
+        long time = System.currentTimeMillis() - ttl;
+        Iterator<Map.Entry<String, Answer>> it = answers.entrySet().iterator();
+        while (it.hasNext()) if (it.next().getValue().time < time) it.remove();
+    }
+}
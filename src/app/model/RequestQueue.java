@@ -0,0 +1,197 @@
+package app.model;
+
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static util.DateTools.toMillis;
+
+/**
+ * Очередь раздачи пакета заявок обработчикам. Заявки группируются по клиенту (iddClient + iddSub): заявки одного
+ * клиента выдаются строго в порядке поступления и не более одной одновременно, заявки разных клиентов могут
+ * обрабатываться параллельно.
+ */
+public class RequestQueue {
+
+    /** Ожидающие заявки по клиентам (порядок клиентов - по первой заявке клиента в пакете). */
+    protected final LinkedHashMap<String, ArrayDeque<Request>> pending;
+    /** Клиенты, заявки которых сейчас в обработке. */
+    protected final HashSet<String> busy;
+    /** Кол-во еще не выданных заявок. */
+    private int remain;
+    /** Флаг досрочного завершения раздачи. */
+    private boolean isCancelled;
+    /** Соблюдать ли порядок заявок клиента. */
+    private final boolean byClient;
+
+    public RequestQueue(List<Request> items) {
+        this(items, true);
+    }
+
+    /**
+     * @param items    Пакет заявок.
+     * @param byclient Соблюдать ли порядок заявок клиента (если нет - каждая заявка выдаётся независимо от прочих).
+     */
+    public RequestQueue(List<Request> items, boolean byclient) {
+        byClient = byclient;
+        pending = new LinkedHashMap<>();
+        busy = new HashSet<>();
+        remain = 0;
+        isCancelled = false;
+        for (Request r : items) {
+            pending.computeIfAbsent(keyOf(r), k -> new ArrayDeque<>()).add(r);
+            remain++;
+        }
+    }
+
+    /** Ключ клиента заявки. */
+    public static String clientKey(Request r) {
+        return r.getIddClient() + "-" + r.getIddSub();
+    }
+
+    /** Ключ группы заявок, выдаваемых последовательно. */
+    private String keyOf(Request r) {
+        return byClient ? clientKey(r) : "n" + r.getId();
+    }
+
+    /**
+     * Выдача следующей заявки для обработки. Если все оставшиеся заявки принадлежат клиентам, заявки которых сейчас
+     * обрабатываются, то ожидает освобождения клиента.
+     *
+     * @return Заявка или null - если заявок для выдачи больше нет (или раздача прервана).
+     */
+    public synchronized Request take() throws InterruptedException {
+        while (true) {
+            if (isCancelled || remain == 0) return null;
+            String key = select();
+            if (key != null) {
+                ArrayDeque<Request> q = pending.get(key);
+                Request r = q.poll();
+                if (q.isEmpty()) pending.remove(key);
+                busy.add(key);
+                remain--;
+                return r;
+            }
+            wait();
+        }
+    }
+
+    /** Выбор клиента, чья заявка будет выдана следующей. По умолчанию - первый свободный в порядке поступления. */
+    protected String select() {
+        Iterator<Map.Entry<String, ArrayDeque<Request>>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            String key = it.next().getKey();
+            if (!busy.contains(key)) return key;
+        }
+        return null;
+    }
+
+    /** Отметка о завершении обработки заявки (освобождает клиента для выдачи следующей его заявки). */
+    public synchronized void done(Request r) {
+        busy.remove(keyOf(r));
+        notifyAll();
+    }
+
+    /** Прерывание раздачи (все ожидающие получат null). */
+    public synchronized void cancel() {
+        isCancelled = true;
+        notifyAll();
+    }
+
+    public synchronized int remain() {
+        return remain;
+    }
+
+    /**
+     * Очередь с приоритетом дешёвых заявок: первой выдаётся заявка с наименьшей оценкой времени обработки, уменьшенной
+     * на время ожидания заявки с учетом коэффициента старения (чтобы дорогие заявки не ждали бесконечно).
+     */
+    public static class ByCost extends RequestQueue {
+
+        private final CostEstimator estimator;
+        /** Коэффициент старения (%): на сколько мсек снижается оценка за каждую мсек ожидания заявки. */
+        private final int aging;
+
+        public ByCost(List<Request> items, boolean byclient, CostEstimator estimator, int aging) {
+            super(items, byclient);
+            this.estimator = estimator;
+            this.aging = aging;
+        }
+
+        @Override
+        protected String select() {
+            long now = System.currentTimeMillis();
+            String res = null;
+            double best = 0;
+            for (Map.Entry<String, ArrayDeque<Request>> e : pending.entrySet()) {
+                if (busy.contains(e.getKey())) continue;
+                Request r = e.getValue().peek();
+                LocalDateTime dt = r.getDtCreate();
+                long wait = dt != null ? Math.max(0, now - toMillis(dt)) : 0;
+                double score = estimator.estimate(r) - wait * aging / 100.0;
+                if (res == null || score < best) {
+                    res = e.getKey();
+                    best = score;
+                }
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Очередь со справедливым распределением: клиенты обходятся по кругу (клиент с весом N получает N заявок подряд),
+     * выдаются заявки клиентов, у которых есть токены (см. {@link FairShare}). Если токенов нет ни у кого - выдаётся
+     * заявка клиента с наибольшим запасом токенов (обработчики не простаивают).
+     */
+    public static class Fair extends RequestQueue {
+
+        private final FairShare fair;
+        /** Последний обслуженный клиент и оставшееся ему кол-во заявок подряд. */
+        private String lastKey = null;
+        private int turns = 0;
+
+        public Fair(List<Request> items, FairShare fair) {
+            super(items, true);
+            this.fair = fair;
+        }
+
+        @Override
+        protected String select() {
+            String res = null;
+            if (lastKey != null && turns > 0 && pending.containsKey(lastKey) && !busy.contains(lastKey)
+                    && fair.available(lastKey) >= 1) {
+                res = lastKey;
+                turns--;
+            } else {
+                ArrayList<String> keys = new ArrayList<>(pending.keySet());
+                int n = keys.size();
+                int start = lastKey == null ? 0 : keys.indexOf(lastKey) + 1; // Если клиента уже нет - с начала.
+                String best = null;
+                double bestTokens = 0;
+                for (int i = 0; i < n && res == null; i++) {
+                    String key = keys.get((start + i) % n);
+                    if (busy.contains(key)) continue;
+                    double tokens = fair.available(key);
+                    if (tokens >= 1) {
+                        res = key;
+                    } else if (best == null || tokens > bestTokens) {
+                        best = key;
+                        bestTokens = tokens;
+                    }
+                }
+                if (res == null) res = best;
+                if (res != null) {
+                    lastKey = res;
+                    turns = fair.weight(pending.get(res).peek()) - 1;
+                }
+            }
+            if (res != null) fair.consume(res);
+            return res;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package app.model;
 
 import app.App;
 import app.ExError;
+import app.LoggerExt;
 import app.ReportsMailer;
 import app.export.Export;
 import app.report.BaseReport;
@@ -13,9 +14,13 @@ import util.StringTools;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Semaphore;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -34,6 +39,22 @@ public class ServiceModel {
         STARTING, DATALOADING, PROCESSING, SLEEPING, STOPPED
     }
 
+    /** Состояние обработчика заявок (при параллельной обработке у каждого потока-обработчика своё). */
+    public static class Worker {
+        public Request item;
+        public LocalDateTime processTime;
+        public int processedCount, errorCount;
+        public String errMessage;
+
+        public void copyTo(Worker dst) {
+            dst.item = item;
+            dst.processTime = processTime;
+            dst.processedCount = processedCount;
+            dst.errorCount = errorCount;
+            dst.errMessage = errMessage;
+        }
+    }
+
     public Kind kind;
     public LocalDateTime startTime, endTime;
     public State state;
@@ -47,13 +68,71 @@ public class ServiceModel {
     public String errMessage;
 
     public int loadCount;
+    /** Кол-во пустых (без заявок) и полных (пакет загружен полностью) запросов заявок. */
+    public int emptyLoadCount, fullLoadCount;
     public int processedCount, errorCount;
     public long loadMsec, processMsec;
 
     public int loadMaxSize, delayTime;
 
+    public Worker[] workers;
 
-    public ServiceModel(Kind kind, int loadsize, int delay) {
+    /** Политика опроса очереди заявок. */
+    public PollPolicy pollPolicy;
+    /** Контрольный интервал опроса при работающей подписке на события БД (мсек, 0 - подписки нет). */
+    public volatile long eventsDelay = 0;
+
+    /** Порядок выдачи заявок пакета обработчикам. */
+    public enum Order {
+        FIFO, COST, FAIR
+    }
+
+    public Order order;
+    /** Коэффициент старения заявок для порядка COST (%). */
+    public int aging;
+    /** Оценка времени обработки заявок (обучается на фактическом времени обработки). */
+    public final CostEstimator costEstimator = new CostEstimator();
+
+    /** Справедливое распределение обработки между клиентами (для порядка FAIR). */
+    public FairShare fairShare;
+    /** Состояние ведер токенов клиентов (для отображения). */
+    public String[] fairInfo;
+
+    /** Бюджет обработки заявок: время по видам заявок ("report.transaction" и т.п., сек), время по умолчанию (сек) и
+     * общая защита памяти - предел занятости кучи JVM (%, 0 - без ограничения). */
+    public final HashMap<String, Integer> budgetTimes = new HashMap<>();
+    public int budgetTime = 0, budgetHeapGuard = 0;
+
+    /** Объединение одинаковых заявок (null - не используется). */
+    public RequestCoalescer coalescer;
+    /** Кол-во заявок, получивших ответ на такую же ранее обработанную заявку. */
+    public int coalescedCount;
+
+    /** Конвейер обработки заявок (null - заявки обрабатываются целиком в потоке обработчика). */
+    public ProcessPipeline<Job> pipeline;
+    /** Состояние этапов конвейера (для отображения). */
+    public String[] pipelineInfo;
+
+    /** Асинхронный режим обработки (каждая заявка пакета - в отдельном (виртуальном) потоке). */
+    public boolean isAsync;
+    /** Максимальное кол-во одновременных подключений к одному SMTP-серверу. */
+    public int smtpConnections;
+
+    /** Пакетная смена состояния заявок в БД (по завершении обработки пакета, одной транзакцией). */
+    public boolean isBatchUpdate;
+    /** Заявки, ожидающие пакетной смены состояния в БД. */
+    private final ArrayList<Request> pendingUpdates = new ArrayList<>();
+
+    /** Ограничители одновременных подключений по SMTP-серверам. */
+    private final HashMap<String, Semaphore> smtpLimits = new HashMap<>();
+    private ReportsMailer mailer;
+
+    /** Флаг пробуждения сервиса (событие БД пришло во время обработки - следующее ожидание не нужно). */
+    private boolean isWakeup = false;
+    private final Object wakeupLock = new Object();
+
+
+    public ServiceModel(Kind kind, int loadsize, int delay, int workerscount) {
         this.kind = kind;
         startTime = LocalDateTime.now();
         startTime = null;
@@ -65,6 +144,8 @@ public class ServiceModel {
         curItem = null;
         curItIndex = 0;
         loadCount = 0;
+        emptyLoadCount = 0;
+        fullLoadCount = 0;
         processedCount = 0;
         errorCount = 0;
         loadMsec = 0;
@@ -74,6 +155,20 @@ public class ServiceModel {
 
         loadMaxSize = loadsize;
         delayTime = delay;
+
+        workers = new Worker[Math.max(1, workerscount)];
+        for (int i = 0; i < workers.length; i++) workers[i] = new Worker();
+
+        isAsync = false;
+        smtpConnections = 1;
+
+        pollPolicy = new PollPolicy.Fixed(loadsize, delay);
+        order = Order.FIFO;
+        aging = 100;
+    }
+
+    public ServiceModel(Kind kind, int loadsize, int delay) {
+        this(kind, loadsize, delay, 1);
     }
 
     public synchronized void copyTo(ServiceModel dst) {
@@ -89,15 +184,33 @@ public class ServiceModel {
         dst.curItIndex = curItIndex;
         dst.curItSize = curItSize;
         dst.loadCount = loadCount;
+        dst.emptyLoadCount = emptyLoadCount;
+        dst.fullLoadCount = fullLoadCount;
         dst.processedCount = processedCount;
         dst.errorCount = errorCount;
         dst.loadMsec = loadMsec;
         dst.processMsec = processMsec;
+        dst.coalescedCount = coalescedCount;
 
         dst.errMessage = errMessage;
 
         dst.loadMaxSize = loadMaxSize;
         dst.delayTime = delayTime;
+        dst.isAsync = isAsync;
+        dst.smtpConnections = smtpConnections;
+
+        if (dst.workers.length != workers.length) {
+            dst.workers = new Worker[workers.length];
+            for (int i = 0; i < workers.length; i++) dst.workers[i] = new Worker();
+        }
+        for (int i = 0; i < workers.length; i++) workers[i].copyTo(dst.workers[i]);
+
+        dst.pipelineInfo = pipeline != null ? pipeline.getInfo() : null;
+        dst.fairInfo = order == Order.FAIR && fairShare != null ? fairShare.getInfo(10) : null;
+    }
+
+    public int getWorkersCount() {
+        return workers.length;
     }
 
     public synchronized Kind startService() {
@@ -121,9 +234,9 @@ public class ServiceModel {
     public ArrayList<Request> loadRequests() throws ExError {
         switch (kind) {
             case PROCESSOR:
-                return App.model.loadRequests(Request.State.PROCESSING, loadMaxSize);
+                return App.model.loadRequests(Request.State.PROCESSING, pollPolicy.getLoadSize());
             case SENDER:
-                return App.model.loadRequests(Request.State.SENDING, loadMaxSize);
+                return App.model.loadRequests(Request.State.SENDING, pollPolicy.getLoadSize());
             default:
                 return null;
         }
@@ -135,6 +248,10 @@ public class ServiceModel {
         curItIndex = 0;
         curItSize = items.size();
         loadCount++;
+        if (errmsg == null && items.isEmpty()) emptyLoadCount++;
+        if (errmsg == null && items.size() >= pollPolicy.getLoadSize()) fullLoadCount++;
+        pollPolicy.onLoaded(items.size(), errmsg);
+        loadMaxSize = pollPolicy.getLoadSize();
         state = errmsg == null && items.size() > 0 ? State.PROCESSING : State.SLEEPING;
         errMessage = errmsg;
         if (errmsg != null) errorCount++;
@@ -148,10 +265,63 @@ public class ServiceModel {
         curProcessTime = LocalDateTime.now();
     }
 
-    public synchronized void startProcess(Request req) {
+    public synchronized void endBlockProcess() {
+        pollPolicy.onProcessed(curItSize, System.currentTimeMillis() - toMillis(curBlockProcessTime));
+        loadMaxSize = pollPolicy.getLoadSize();
+    }
+
+    /** Пауза до следующего запроса заявок (мсек, 0 - запрос сразу). */
+    public long getPollDelay() {
+        long delay = pollPolicy.getDelay();
+        // При работающей подписке заявки приходят по событию, опрос - только контрольный.
+        return delay > 0 && eventsDelay > 0 ? Math.max(delay, eventsDelay) : delay;
+    }
+
+    /**
+     * Начало обработки заявки. Заявка закрепляется за первым свободным обработчиком (кроме обработки конвейером - его
+     * занятость отражают этапы, см. {@link #pipelineInfo}).
+     *
+     * @return Индекс обработчика (передаётся в {@link #endProcess(int, String)}).
+     */
+    public synchronized int startProcess(Request req) {
         state = State.PROCESSING;
         curProcessTime = LocalDateTime.now();
         curItem = req;
+        if (pipeline != null) return -1;
+        for (int i = 0; i < workers.length; i++) {
+            Worker w = workers[i];
+            if (w.item == null) {
+                w.item = req;
+                w.processTime = curProcessTime;
+                w.errMessage = null;
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Очередь раздачи пакета заявок обработчикам (в заданном порядке). */
+    public RequestQueue newRequestQueue(List<Request> items) {
+        // Порядок заявок клиента важен только при обработке (рассылка ответов - независимая).
+        boolean byclient = kind == Kind.PROCESSOR;
+        switch (order) {
+            case COST:
+                return new RequestQueue.ByCost(items, byclient, costEstimator, aging);
+            case FAIR:
+                // Фирмы клиентов определяются один раз (данные клиента запоминаются).
+                for (Request r : items) {
+                    String key = RequestQueue.clientKey(r);
+                    if (fairShare.isFirmKnown(key)) continue;
+                    try {
+                        fairShare.setFirm(key, model.loadClient(r, LocalDate.now()).getFirm().id);
+                    } catch (Exception ex) {
+                        fairShare.setFirm(key, 0);
+                    }
+                }
+                return new RequestQueue.Fair(items, fairShare);
+            default:
+                return new RequestQueue(items, byclient);
+        }
     }
 
     /** Обработка заявки. */
@@ -167,13 +337,31 @@ public class ServiceModel {
         }
     }
 
-    public synchronized void endProcess(String errmsg) {
+    public synchronized void endProcess(int worker, String errmsg) {
+        endProcess(worker, errmsg, 0);
+    }
+
+    /**
+     * Завершение обработки заявки.
+     *
+     * @param starttime Время начала обработки (мсек, 0 - по обработчику, а без него - по текущей заявке).
+     */
+    private synchronized void endProcess(int worker, String errmsg, long starttime) {
         curItIndex++;
         processedCount++;
         errMessage = errmsg;
         if (errmsg != null) errorCount++;
         //
-        processMsec += System.currentTimeMillis() - toMillis(curProcessTime);
+        LocalDateTime tm = curProcessTime;
+        if (worker >= 0 && worker < workers.length) {
+            Worker w = workers[worker];
+            tm = w.processTime;
+            w.item = null;
+            w.processedCount++;
+            w.errMessage = errmsg;
+            if (errmsg != null) w.errorCount++;
+        }
+        processMsec += System.currentTimeMillis() - (starttime > 0 ? starttime : toMillis(tm));
     }
 
     public String getName() {
@@ -187,6 +375,34 @@ public class ServiceModel {
         }
     }
 
+    /** Пробуждение сервиса из ожидания (по событию БД). */
+    public void wakeup() {
+        synchronized (wakeupLock) {
+            isWakeup = true;
+            wakeupLock.notifyAll();
+        }
+    }
+
+    /**
+     * Ожидание перед следующим запросом заявок: до истечения времени или до пробуждения.
+     *
+     * @return false - если ожидание прервано (завершение работы).
+     */
+    public boolean waitWakeup(long time) {
+        long end = System.currentTimeMillis() + time;
+        synchronized (wakeupLock) {
+            try {
+                long rest;
+                while (!isWakeup && (rest = end - System.currentTimeMillis()) > 0) wakeupLock.wait(rest);
+            } catch (InterruptedException ex) {
+                return false;
+            } finally {
+                isWakeup = false;
+            }
+        }
+        return true;
+    }
+
     public synchronized void setState(State state) {
         this.state = state;
     }
@@ -195,52 +411,242 @@ public class ServiceModel {
         this.errMessage = err;
     }
 
+    /** Заявка в процессе обработки (данные, передаваемые между этапами обработки). */
+    public static class Job {
+        public final Request req;
+        /** Обработчик заявки (см. startProcess) и очередь пакета, из которой выдана заявка. */
+        public int worker;
+        public RequestQueue queue;
+        public long startTime;
+
+        BaseReport<?> report;
+        Export export;
+        String path, name, entryName;
+        /** Ответ на такую же ранее обработанную заявку (если не null - заявка не обрабатывается). */
+        RequestCoalescer.Answer answer;
+        /** Бюджет обработки заявки. */
+        Budget budget;
+
+        public Job(Request req) {
+            this.req = req;
+        }
+    }
+
     /** Обработчик заявок, ожидающих обработки (вся общая часть вынесена в этот метод). */
     private void processRequestImpl(Request req) throws ExError {
+        long time = System.currentTimeMillis();
+        Job job = new Job(req);
+        job.budget = newBudget(req);
+        model.attachLease(req, job.budget);
+        Budget prev = Budget.enter(job.budget);
         try {
-            switch (req.getType()) {
-                case REPORT:
-                    processReportRequest(req);
-                    break;
-                case EXPORT:
-                    processExportRequest(req);
-                    break;
-                default:
-                    throw new ExError("Неизвестный тип заявки!");
+            if (!coalesceJob(job)) {
+                prepareJob(job);
+                layoutJob(job);
+                writeJob(job);
+            }
+            finishJob(job);
+            // Стоимость учитывается только для построенных заявок (ответ на совмещённую заявку почти ничего не стоит).
+            if (job.answer == null) costEstimator.observe(req, System.currentTimeMillis() - time);
+        } catch (Exception ex) {
+            ExError err = budgetError(job, ex);
+            if (err != null) {
+                failJob(job, err);
+                throw err;
             }
+            failJob(job, ex);
+            throw ex;
+        } finally {
+            Budget.exit(prev);
+        }
+    }
+
+    /** Бюджет обработки заявки: время по виду заявки (budget.<тип>.<вид>, сек) и общая защита памяти. */
+    private Budget newBudget(Request req) {
+        String key = req.getType().name() + "." +
+                (req.getReportType() != null ? req.getReportType().name() :
+                        req.getExportType() != null ? req.getExportType().name() : "");
+        Integer sec = budgetTimes.get(key.toLowerCase());
+        return new Budget((sec != null ? sec : budgetTime) * 1000L, budgetHeapGuard);
+    }
 
-            // Меняем статус заявки на завершенный или ожидающий отправки.
+    /** Ошибка превышения бюджета (если прерывание обработки вызвано превышением бюджета, иначе null). */
+    private ExError budgetError(Job job, Exception ex) {
+        String exceeded = job.budget != null ? job.budget.getExceeded() : null;
+        return exceeded != null ? new ExError(ex, exceeded) : null;
+    }
+
+    /** Этап конвейера, выполняемый в рамках бюджета заявки. */
+    private ProcessPipeline.StageTask<Job> inBudget(ProcessPipeline.StageTask<Job> task) {
+        return (job) -> {
+            Budget prev = Budget.enter(job.budget);
             try {
-                Client client = model.loadClient(req, req.dtCreate.toLocalDate()); // По умолчанию читаем на дату создания заявки.
-                if (req.getSendTryRemain() != null && req.getSendTryRemain() > 0 && !isEmptySafe(client.getEmail())) {
-                    req.setState(Request.State.SENDING, null);
-                } else {
-                    req.setState(Request.State.FINISHED, null);
-                }
-                model.updateRequestProcess(req);
-            } catch (Exception ex) {
-                throw new ExError("Ошибка изменения состояния заявки в БД!");
+                task.run(job);
+            } finally {
+                Budget.exit(prev);
             }
+        };
+    }
 
-        } catch (Exception ex) {
-            // Облом. завершаем заявку или ввести счётчик попыток?
-            if (req.getState() != Request.State.ERROR) {
-                req.setState(Request.State.ERROR, ex.getMessage());
-            } else {
-                req.setState(Request.State.ERROR, req.getResult() + " (" + ex.getMessage() + ")");
+    /** Назначение заявке ответа на такую же недавно обработанную заявку. */
+    private boolean coalesceJob(Job job) {
+        if (coalescer == null) return false;
+        RequestCoalescer.Answer a = coalescer.find(job.req);
+        if (a == null) return false;
+        App.procLogger.infof("Заявка №%d повторяет заявку №%d, ответ: %s", job.req.getId(), a.id, a.fileName);
+        job.answer = a;
+        job.req.setFile(a.fileName, a.fileSize);
+        synchronized (this) {
+            coalescedCount++;
+        }
+        return true;
+    }
+
+    /** Этап чтения (конвейер): проверка повтора заявки, подготовка и загрузка всех данных отчёта (книги) из БД. */
+    private void fetchJob(Job job) throws ExError {
+        if (coalesceJob(job)) return;
+        prepareJob(job);
+        if (job.report != null) {
+            try {
+                job.report.prefetch();
+            } catch (ExError ex) {
+                throw new ExError("Ошибка чтения данных отчёта!");
             }
+        } else {
             try {
-                model.updateRequestProcess(req);
-            } catch (Exception ignore) {
+                job.export.prefetch();
+            } catch (ExError ex) {
+                throw new ExError("Ошибка экспорта!");
             }
-            throw ex;
         }
     }
 
-    /** Обработчик заявки на генерацию отчёта. */
-    private void processReportRequest(Request req) throws ExError {
+    /** Этап подготовки: разбор параметров заявки и чтение данных клиента. */
+    private void prepareJob(Job job) throws ExError {
+        Request req = job.req;
+        switch (req.getType()) {
+            case REPORT:
+                job.report = createReport(req);
+                job.entryName = ".pdf";
+                break;
+            case EXPORT:
+                job.export = createExport(req);
+                job.entryName = ".xls";
+                break;
+            default:
+                throw new ExError("Неизвестный тип заявки!");
+        }
+        job.path = req.getAnswerPath();
+        model.createDirectoryIfNotExist(job.path);
+        job.name = req.getAutoFileName();
+        job.entryName = job.name + job.entryName;
+    }
+
+    /** Этап построения отчёта (экспортной книги). */
+    private void layoutJob(Job job) throws ExError {
+        if (job.answer != null) return;
+        if (job.report != null) {
+            try {
+                // Генерируем отчёт.
+                job.report.build();
+            } catch (ExError ex) {
+                // Облом. завершаем заявка или ввести счётчик попыток?
+                throw new ExError("Ошибка построения отчёта!");
+            }
+        } else {
+            try {
+                job.export.build();
+            } catch (ExError ex) {
+                throw new ExError("Ошибка экспорта!");
+            }
+        }
+    }
+
+    /** Вывод построенного отчёта (книги) в поток. */
+    private void renderJob(Job job, OutputStream outs) throws JRException, ExError {
+        if (job.report != null) {
+            try {
+                job.report.exportToPDF(outs);
+            } finally {
+                job.report.dispose();
+            }
+        } else {
+            job.export.write(outs);
+        }
+    }
 
-        BaseReport report;
+    /** Ошибка вывода отчёта (книги). */
+    private ExError renderError(Job job, Exception ex) {
+        if (job.report == null) return new ExError("Ошибка экспорта!");
+        if (ex instanceof JRException) return new ExError("Ошибка механизма экспорта отчёта!");
+        return new ExError("Ошибка экспорта отчёта!");
+    }
+
+    /** Вывод отчёта (книги) сразу в архив файла ответа. */
+    private void writeJob(Job job) throws ExError {
+        String filenameZIP = job.name + ".zip";
+        String fullfilenameZIP = job.path + File.separator + filenameZIP;
+        try {
+            File file = new File(fullfilenameZIP);
+            FileOutputStream fos = new FileOutputStream(file);
+            ZipOutputStream outs = new ZipOutputStream(fos);
+            ZipEntry ze = new ZipEntry(job.entryName);
+            outs.putNextEntry(ze);
+            renderJob(job, outs);
+            outs.closeEntry();
+            outs.close();
+
+            job.req.setFile(filenameZIP, (int) file.length());
+
+        } catch (Exception ex) {
+            model.deleteFileSafe(fullfilenameZIP);
+            throw renderError(job, ex);
+        }
+    }
+
+    /** Этап экспорта (конвейер): вывод отчёта (книги) сразу в архив файла ответа (без копий в памяти). */
+    private void exportJob(Job job) throws ExError {
+        if (job.answer != null) return;
+        writeJob(job);
+        job.report = null; // Отчёт больше не нужен - освобождаем память.
+        job.export = null;
+    }
+
+    /** Смена состояния успешно обработанной заявки на завершенное или ожидающее отправки. */
+    private void finishJob(Job job) throws ExError {
+        Request req = job.req;
+        try {
+            Client client = model.loadClient(req, req.dtCreate.toLocalDate()); // По умолчанию читаем на дату создания заявки.
+            if (req.getSendTryRemain() != null && req.getSendTryRemain() > 0 && !isEmptySafe(client.getEmail())) {
+                req.setState(Request.State.SENDING, null);
+            } else {
+                req.setState(Request.State.FINISHED, null);
+            }
+            updateRequest(req);
+        } catch (Exception ex) {
+            throw new ExError("Ошибка изменения состояния заявки в БД!");
+        }
+        if (coalescer != null && job.answer == null) coalescer.register(req);
+    }
+
+    /** Сохранение ошибки обработки заявки. */
+    private void failJob(Job job, Exception ex) {
+        Request req = job.req;
+        if (job.report != null) job.report.dispose();
+        // Облом. завершаем заявку или ввести счётчик попыток?
+        if (req.getState() != Request.State.ERROR) {
+            req.setState(Request.State.ERROR, ex.getMessage());
+        } else {
+            req.setState(Request.State.ERROR, req.getResult() + " (" + ex.getMessage() + ")");
+        }
+        try {
+            updateRequest(req);
+        } catch (Exception ignore) {
+        }
+    }
+
+    /** Создание отчёта по параметрам заявки. */
+    private BaseReport<?> createReport(Request req) throws ExError {
         Client client;
         Integer iddazs;
         String iddcard;
@@ -251,8 +657,7 @@ public class ServiceModel {
                 dtstart = req.getParamAsLocalDate("dtStart");
                 dtend = req.getParamAsLocalDate("dtEnd");
                 client = model.loadClient(req, dtend);
-                report = new ClientTurnoverReport(client, dtstart, dtend);
-                break;
+                return new ClientTurnoverReport(client, dtstart, dtend);
 
             case TRANSACTION:
                 dtstart = req.getParamAsLocalDate("dtStart");
@@ -262,65 +667,26 @@ public class ServiceModel {
                 iddcard = req.getParamAsString("iddCard");
                 if (isEmptySafe(iddcard)) iddcard = null;
                 ClientTransactionReport.Mode mode = ClientTransactionReport.Mode.byId(req.getReportModeParam());
-                report = new ClientTransactionReport(client, dtstart, dtend, iddazs, iddcard, mode);
-                break;
+                return new ClientTransactionReport(client, dtstart, dtend, iddazs, iddcard, mode);
 
             case CARD:
                 dtw = req.getParamAsLocalDate("dtw");
                 client = model.loadClient(req, dtw);
                 Card.WorkState workState = Card.WorkState.byId(req.getParamAsInteger("idWorkState"));
                 ClientCardReport.Mode mode2 = ClientCardReport.Mode.byId(req.getReportModeParam());
-                report = new ClientCardReport(client, dtw, workState, mode2);
-                break;
+                return new ClientCardReport(client, dtw, workState, mode2);
 
             default:
                 throw new ExError("Неизвестный вид отчёта!");
         }
-
-        String path = req.getAnswerPath();
-        model.createDirectoryIfNotExist(path);
-
-        try {
-            // Генерируем отчёт.
-            report.build();
-        } catch (ExError ex) {
-            // Облом. завершаем заявка или ввести счётчик попыток?
-            throw new ExError("Ошибка построения отчёта!");
-        }
-
-        String name = req.getAutoFileName();
-        String filenamePDF = name + ".pdf";
-        String filenameZIP = name + ".zip";
-        String fullfilenameZIP = path + File.separator + filenameZIP;
-        try {
-            File file = new File(fullfilenameZIP);
-            FileOutputStream fos = new FileOutputStream(file);
-            ZipOutputStream outs = new ZipOutputStream(fos);
-            ZipEntry ze = new ZipEntry(filenamePDF);
-            outs.putNextEntry(ze);
-            report.exportToPDF(outs);
-            outs.closeEntry();
-            outs.close();
-
-            req.setFile(filenameZIP, (int) file.length());
-
-        } catch (JRException ex) {
-            model.deleteFileSafe(fullfilenameZIP);
-            throw new ExError("Ошибка механизма экспорта отчёта!");
-        } catch (Exception ex) {
-            model.deleteFileSafe(fullfilenameZIP);
-            throw new ExError("Ошибка экспорта отчёта!");
-        }
     }
 
-    /** Обработчик заявки на генерацию экспортных данных. */
-    private void processExportRequest(Request req) throws ExError {
-
-        Export export;
+    /** Создание экспорта по параметрам заявки. */
+    private Export createExport(Request req) throws ExError {
         Client client;
         Integer iddazs;
         String iddcard;
-        LocalDate dtstart, dtend, dtw;
+        LocalDate dtstart, dtend;
 
         switch (req.getExportType()) {
             case TRANSACTION:
@@ -331,36 +697,56 @@ public class ServiceModel {
                 iddcard = req.getParamAsString("iddCard");
                 if (isEmptySafe(iddcard)) iddcard = null;
                 Integer mode = req.getExportModeParam();
-                export = new Export(client, dtstart, dtend, iddazs, iddcard, mode);
-                break;
+                return new Export(client, dtstart, dtend, iddazs, iddcard, mode);
 
             default:
                 throw new ExError("Неизвестный вид экспорта!");
         }
+    }
 
-        String path = req.getAnswerPath();
-        model.createDirectoryIfNotExist(path);
-
-        String name = req.getAutoFileName();
-        String filenamePDF = name + ".xls";
-        String filenameZIP = name + ".zip";
-        String fullfilenameZIP = path + File.separator + filenameZIP;
-        try {
-            File file = new File(fullfilenameZIP);
-            FileOutputStream fos = new FileOutputStream(file);
-            ZipOutputStream outs = new ZipOutputStream(fos);
-            ZipEntry ze = new ZipEntry(filenamePDF);
-            outs.putNextEntry(ze);
-            export.exportTransactions(outs);
-            outs.closeEntry();
-            outs.close();
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Обработка заявок конвейером.
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Создание конвейера обработки: чтение (БД) -> построение -> экспорт в архив файла ответа -> сохранение (БД).
+     *
+     * @param queuesize Размер очереди каждого этапа.
+     * @param threads   Кол-во потоков этапов (в порядке следования этапов).
+     */
+    public void createPipeline(int queuesize, int... threads) {
+        pipeline = new ProcessPipeline<Job>(queuesize, this::endJob)
+                .stage("fetch", threads[0], inBudget(this::fetchJob))
+                .stage("layout", threads[1], inBudget(this::layoutJob))
+                .stage("export", threads[2], inBudget(this::exportJob))
+                .stage("persist", threads[3], this::finishJob);
+    }
 
-            req.setFile(filenameZIP, (int) file.length());
+    /** Передача заявки в конвейер обработки. */
+    public void submitJob(Request req, int worker, RequestQueue queue) throws InterruptedException {
+        Job job = new Job(req);
+        job.worker = worker;
+        job.queue = queue;
+        job.startTime = System.currentTimeMillis();
+        job.budget = newBudget(req);
+        model.attachLease(req, job.budget);
+        pipeline.put(job);
+    }
 
-        } catch (Exception ex) {
-            model.deleteFileSafe(fullfilenameZIP);
-            throw new ExError("Ошибка экспорта!");
+    /** Завершение обработки заявки конвейером. */
+    private void endJob(Job job, Exception ex) {
+        String errmsg = null;
+        if (ex != null) {
+            ExError err = budgetError(job, ex);
+            if (err != null) ex = err;
+            errmsg = ex.getMessage();
+            App.procLogger.error("Ошибка обработки заявки!", ex);
+            failJob(job, ex);
+        } else if (job.answer == null) {
+            costEstimator.observe(job.req, System.currentTimeMillis() - job.startTime);
         }
+        endProcess(job.worker, errmsg, job.startTime);
+        job.queue.done(job.req);
     }
 
     /** Обработчик заявок, ожидающих отправки ответа на заявку. */
@@ -368,7 +754,7 @@ public class ServiceModel {
         try {
             Client client = model.loadClient(req, LocalDate.now());
 
-            ReportsMailer mailer = new ReportsMailer("smtp.tp-rk.ru", "reports@tp-rk.ru", "XuQ9eb9hqZ");
+            ReportsMailer mailer = getMailer();
 
             StringTools.TextBuilder sb = new StringTools.TextBuilder();
             sb.println("Ответ на заявку: №%d от %s", req.getId(), fmtDT84(req.getDtCreate()));
@@ -378,13 +764,19 @@ public class ServiceModel {
             sb.println("Не отвечайте на это письмо, входящие сообщения на данный адрес заблокированы.");
 
             //if (true) throw new ExError("123");
-            mailer.sendMail("PC.FCService", client.getEmail(), null, "Автоматический ответ за заявку ЛК СТК!", sb.toString(),
-                    req.getAnswerPath() + File.separator + req.getFileName());
+            Semaphore limit = getSmtpLimit(mailer.smtpHost());
+            limit.acquire();
+            try {
+                mailer.sendMail("PC.FCService", client.getEmail(), null, "Автоматический ответ за заявку ЛК СТК!", sb.toString(),
+                        req.getAnswerPath() + File.separator + req.getFileName());
+            } finally {
+                limit.release();
+            }
 
             // Меняем статус заявки на завершенный.
             try {
                 req.setState(Request.State.FINISHED, null);
-                model.updateRequestSend(req);
+                updateRequest(req);
             } catch (Exception ex) {
                 throw new ExError("Ошибка изменения состояния заявки в БД!");
             }
@@ -394,7 +786,7 @@ public class ServiceModel {
                 req.setState(Request.State.ERROR, "Ошибка отправки ответа на заявку!");
             }
             try {
-                model.updateRequestSend(req);
+                updateRequest(req);
             } catch (Exception ignore) {
             }
 
@@ -402,4 +794,63 @@ public class ServiceModel {
             throw new ExError("Ошибка отправки ответа на заявку! (%s)", ex.getMessage());
         }
     }
+
+    /** Смена состояния заявки в БД (при пакетном режиме - откладывается до {@link #flushUpdates()}). */
+    private void updateRequest(Request req) throws ExError {
+        if (isBatchUpdate) {
+            synchronized (pendingUpdates) {
+                pendingUpdates.add(req);
+            }
+        } else if (kind == Kind.PROCESSOR) {
+            model.updateRequestProcess(req);
+        } else {
+            model.updateRequestSend(req);
+        }
+    }
+
+    /**
+     * Запись отложенных смен состояния заявок пакетом. При ошибке пакета (например, аренда одной из заявок потеряна)
+     * состояние записывается по каждой заявке отдельно.
+     */
+    public void flushUpdates() {
+        ArrayList<Request> list;
+        synchronized (pendingUpdates) {
+            if (pendingUpdates.isEmpty()) return;
+            list = new ArrayList<>(pendingUpdates);
+            pendingUpdates.clear();
+        }
+        LoggerExt log = kind == Kind.PROCESSOR ? App.procLogger : App.sendLogger;
+        try {
+            if (kind == Kind.PROCESSOR) {
+                model.updateRequestsProcess(list);
+            } else {
+                model.updateRequestsSend(list);
+            }
+            return;
+        } catch (Exception ex) {
+            log.error("Ошибка пакетного изменения состояния заявок! Изменение по каждой заявке.", ex);
+        }
+        for (Request req : list) {
+            try {
+                if (kind == Kind.PROCESSOR) {
+                    model.updateRequestProcess(req);
+                } else {
+                    model.updateRequestSend(req);
+                }
+            } catch (Exception ex) {
+                log.errorf(ex, "Ошибка изменения состояния заявки №%d!", req.getId());
+            }
+        }
+    }
+
+    /** Почтовый клиент рассылки (сессия общая для всех потоков). */
+    private synchronized ReportsMailer getMailer() throws Exception {
+        if (mailer == null) mailer = new ReportsMailer("smtp.tp-rk.ru", "reports@tp-rk.ru", "XuQ9eb9hqZ");
+        return mailer;
+    }
+
+    /** Ограничитель одновременных подключений к SMTP-серверу. */
+    private synchronized Semaphore getSmtpLimit(String host) {
+        return smtpLimits.computeIfAbsent(host, k -> new Semaphore(Math.max(1, smtpConnections), true));
+    }
 }
@@ -0,0 +1,92 @@
+package app.model;
+
+import app.App;
+import app.ExError;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+ * Постраничная загрузка транзакций клиента (выгрузка и отчёт по транзакциям без курсора). Страницы загружаются по
+ * ключу (DTSTART, IDDAZS, IDD) процедурой WP_REPORT_CLIENTTRANS_PAGE - каждая следующая продолжается от последней
+ * загруженной транзакции, поэтому работа на страницу не растёт с номером страницы (в отличие от SKIP).
+ * <p>
+ * Загрузка по ключу корректна только при уникальном ключе: иначе на границе страниц транзакции пропускались бы или
+ * повторялись. Поэтому ключи загруженных строк проверяются (последняя транзакция страницы выдаётся процедурой повторно
+ * первой строкой следующей страницы - так виден и повтор ключа на границе). Если ключ пуст или повторяется, загрузка
+ * продолжается прежним способом - FIRST/SKIP в том же порядке {@link AppModel#TRANSACTION_KEYSET_SORT} (со смещением
+ * на кол-во уже выданных транзакций), заявка не завершается ошибкой.
+ */
+public class TransactionPager {
+
+    private final AppModel model;
+    private final Integer iddfirm, iddclient, iddsub, iddazs;
+    private final LocalDate dtstart, dtend;
+    private final String iddcard;
+
+    /** Последняя выданная транзакция и кол-во выданных транзакций. */
+    private Transaction last = null;
+    private int loaded = 0;
+    private boolean isKeyset = true;
+
+    TransactionPager(AppModel model, Integer iddfirm, Integer iddclient, Integer iddsub, LocalDate dtstart,
+                     LocalDate dtend, Integer iddazs, String iddcard) {
+        this.model = model;
+        this.iddfirm = iddfirm;
+        this.iddclient = iddclient;
+        this.iddsub = iddsub;
+        this.dtstart = dtstart;
+        this.dtend = dtend;
+        this.iddazs = iddazs;
+        this.iddcard = iddcard;
+    }
+
+    /**
+     * Следующая страница.
+     *
+     * @param limit Размер страницы.
+     * @return Транзакции (меньше limit - загружено всё).
+     */
+    public ArrayList<Transaction> next(int limit) throws ExError {
+        ArrayList<Transaction> list = isKeyset ? nextByKey(limit) : null;
+        if (list == null) {
+            if (isKeyset) {
+                isKeyset = false;
+                App.procLogger.warningf("Ключ транзакций клиента %d/%d не уникален или пуст,"
+                        + " загрузка по смещению с %d.", iddclient, iddsub, loaded);
+            }
+            list = model.loadClientTransactions(iddfirm, iddclient, iddsub, dtstart, dtend, iddazs, iddcard,
+                    loaded, limit, AppModel.TRANSACTION_KEYSET_SORT);
+        }
+        loaded += list.size();
+        if (!list.isEmpty()) last = list.get(list.size() - 1);
+        return list;
+    }
+
+    /** Страница по ключу или null, если ключ у данных не уникален (или пуст). */
+    private ArrayList<Transaction> nextByKey(int limit) throws ExError {
+        // После первой страницы процедура выдаёт первой строкой повторно последнюю загруженную транзакцию.
+        ArrayList<Transaction> list = model.loadClientTransactionsPage(iddfirm, iddclient, iddsub, dtstart, dtend,
+                iddazs, iddcard, last, last == null ? limit : limit + 1);
+        Transaction prev = null;
+        for (Transaction it : list) {
+            if (it.getStart() == null || it.getIddAzs() == null || it.getIdd() == null) return null;
+            if (prev != null && sameKey(prev, it)) return null;
+            prev = it;
+        }
+        if (last != null) {
+            if (!list.isEmpty() && sameKey(list.get(0), last)) {
+                list.remove(0);
+            } else if (list.size() > limit) {
+                list.remove(list.size() - 1); // Последняя транзакция удалена из БД - страница без неё.
+            }
+        }
+        return list;
+    }
+
+    private static boolean sameKey(Transaction a, Transaction b) {
+        return Objects.equals(a.getStart(), b.getStart()) && Objects.equals(a.getIddAzs(), b.getIddAzs())
+                && Objects.equals(a.getIdd(), b.getIdd());
+    }
+}
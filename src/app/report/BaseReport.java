@@ -1,11 +1,14 @@
 package app.report;
 
 import app.ExError;
+import app.model.Budget;
 import app.model.Firm;
 import app.report.engine.*;
+import fbdbengine.FB_Cursor;
 import net.sf.jasperreports.engine.JRException;
 import net.sf.jasperreports.engine.JasperPrint;
 import net.sf.jasperreports.engine.PrintPageFormat;
+import net.sf.jasperreports.engine.design.JRDesignStyle;
 import net.sf.jasperreports.engine.export.JRPdfExporter;
 import net.sf.jasperreports.export.OutputStreamExporterOutput;
 import net.sf.jasperreports.export.SimpleExporterInput;
@@ -18,7 +21,12 @@ import java.io.OutputStream;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Function;
+import java.util.stream.IntStream;
 
 //import static app.App.logger;
 import static app.model.Helper.*;
@@ -31,16 +39,50 @@ import static util.StringTools.*;
 @SuppressWarnings("unchecked")
 public abstract class BaseReport<T extends BaseReport<T>> {
 
+    /** Пул потоков для параллельной подготовки строк таблиц (null - подготовка в потоке построения отчёта). */
+    private static volatile ForkJoinPool preparePool = null;
+    /** Порция строк таблицы, подготавливаемых параллельно перед размещением на страницах. */
+    private static final int PREPARE_CHUNK = 1000;
+    /** Минимальное кол-во строк порции для параллельной подготовки. */
+    private static final int PREPARE_PARALLEL_MIN = 64;
+    /** Порция данных таблицы, загружаемых за один запрос (если курсор не поддерживается). */
+    private static final int LOAD_LIMIT = 5000;
+
+    /**
+     * Установка кол-ва потоков для параллельной подготовки (измерения) строк таблиц всех отчётов.
+     *
+     * @param threads Кол-во потоков (меньше 2 - без распараллеливания).
+     */
+    public static synchronized void setPrepareThreads(int threads) {
+        if (preparePool != null) preparePool.shutdown();
+        preparePool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
     protected XRBuilder xb;
+    // Стили построителя отчёта (скрывают общие стили XRBuilder - отчёты не разделяют объекты стилей).
+    protected final JRDesignStyle defaultStyle, tableStyle, tableHeadStyle, tableDetailStyle, tableSubDetailStyle,
+            tableGroupStyle, tableSubGroupStyle, tableSumaryStyle, cutLineStyle;
 
     protected Firm firm;
     protected String headerTitleText, headerDetailText;
+    // Время формирования отчёта (выводится в заголовке).
+    protected LocalDateTime createTime = LocalDateTime.now();
     //
     protected XRPage curPage = null;
     protected ArrayList<XRPage> pages = new ArrayList<>();
 
     public BaseReport(Firm firm, String title, String detail) {
         this.xb = new XRBuilder();
+        XRBuilder.Styles st = xb.styles;
+        this.defaultStyle = st.defaultStyle;
+        this.tableStyle = st.tableStyle;
+        this.tableHeadStyle = st.tableHeadStyle;
+        this.tableDetailStyle = st.tableDetailStyle;
+        this.tableSubDetailStyle = st.tableSubDetailStyle;
+        this.tableGroupStyle = st.tableGroupStyle;
+        this.tableSubGroupStyle = st.tableSubGroupStyle;
+        this.tableSumaryStyle = st.tableSumaryStyle;
+        this.cutLineStyle = st.cutLineStyle;
         this.firm = firm;
         this.headerTitleText = title;
         this.headerDetailText = detail;
@@ -170,7 +212,7 @@ public abstract class BaseReport<T extends BaseReport<T>> {
         XRBand band = new XRBand().style(defaultStyle)
                 .addX(xb.crText(160, 20, firm.getTitle()).fontSize(14f).bold().left().middle())
                 .addX(crText(w - 160 - 70, 20, info).fontSize(7f).left().middle().pad(5, 1, 0, 0))
-                .addX(crText(70, 20, fmtDT86(LocalDateTime.now())).fontSize(6f).right().top().color(Color.GRAY))
+                .addX(crText(70, 20, fmtDT86(createTime)).fontSize(6f).right().top().color(Color.GRAY))
                 .nextLine()
                 .addY(crText(w, 9, bank).pad(2, 2, 0, 0).fontSize(6f).left().middle().opaque().bgcolor(new Color(0xE0E0E0)).expandY(20))
                 .addY(crLine().size(w, 1));
@@ -197,29 +239,40 @@ public abstract class BaseReport<T extends BaseReport<T>> {
 
     protected void buildFooter() {
         XRText t = crText(curPage.bodyW() - 85, 15, getFooterNote()).padT(3).fontSize(6f).italic().left().bottom().expandY(30);
-        XRText pn = crText(85, t.height(), "").padT(3).fontSize(8f).right().bottom().color(footerPageColor);
+        XRText pn = crText(85, t.height(), "").padT(3).fontSize(8f).right().bottom().color(footerPageColor)
+                .key(XRPage.PAGE_NUM_KEY, "1");
         XRBand band = new XRBand().style(defaultStyle).addX(t).addX(pn).pack();
 
-        curPage.footer(band.height()).xy(0, 0).fillFooter(band);
-        curPage.pageNumField(pn);
+        curPage.footer(band.height()).xy(0, 0).fillFooter(band); // Поле номера запоминается страницей.
     }
 
     protected String pageNumFmtString = "стр. %d / %d";
 
     protected void updatePageNums() {
         int n = pages.size();
-        for (int i = 0; i < n; i++) {
-            XRText t = pages.get(i).pageNumField();
-            if (t != null) t.text(pageNumFmtString, i + 1, n).pack();
-        }
+        for (int i = 0; i < n; i++) pages.get(i).pageNum(String.format(pageNumFmtString, i + 1, n));
     }
 
     public T build() throws ExError {
         buildBody();
         updatePageNums();
+        xb.finish();
         return (T) this;
     }
 
+    /**
+     * Загрузка всех данных отчёта заранее, до построения (этап чтения конвейера обработки), - построение затем не
+     * обращается к БД. По умолчанию данные читаются при построении.
+     */
+    public T prefetch() throws ExError {
+        return (T) this;
+    }
+
+    /** Освобождение ресурсов отчёта (файл выгрузки страниц). Вызывается после экспорта или при ошибке. */
+    public void dispose() {
+        xb.dispose();
+    }
+
     protected abstract void buildBody() throws ExError;
 
     public void exportToPDF(OutputStreamExporterOutput outputStreamExporter) throws JRException {
@@ -238,7 +291,8 @@ public abstract class BaseReport<T extends BaseReport<T>> {
     }
 
     public void exportToPDF(OutputStream outputStream) throws JRException {
-        exportToPDF(new SimpleOutputStreamExporterOutput(outputStream));
+        // Запись с проверкой бюджета обработки (экспорт большого отчёта может быть долгим).
+        exportToPDF(new SimpleOutputStreamExporterOutput(Budget.wrap(outputStream)));
     }
 
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -285,6 +339,8 @@ public abstract class BaseReport<T extends BaseReport<T>> {
         protected ArrayList<TT> itemList;
         protected TT lastIt, curIt;
         protected String sortString;
+        // Прототип строки детализации (задаётся в setupCols после настройки колонок, null - строки строятся в buildDetail).
+        protected XRBandProto detailProto;
         // Аккумуляторы для строк.
         public int curN, curGroupN, curSubGgroupN;
 
@@ -403,6 +459,20 @@ public abstract class BaseReport<T extends BaseReport<T>> {
         }
 
         protected void buildDetail(TT it) {
+            XRBand band = prepareDetail(it, curN);
+            if (band != null) fill(band);
+        }
+
+        /**
+         * Подготовка (построение и измерение) строки детализации без размещения на странице. Вызывается параллельно для
+         * порции строк, поэтому не должна использовать и изменять состояние таблицы и отчёта (аккумуляторы, курсоры).
+         *
+         * @param it Элемент данных.
+         * @param n  Номер строки в таблице (с 0).
+         * @return Бенд строки или null, если строки строятся последовательно в {@link #buildDetail(Object)}.
+         */
+        protected XRBand prepareDetail(TT it, int n) {
+            return null;
         }
 
         protected void buildSummary() {
@@ -415,76 +485,201 @@ public abstract class BaseReport<T extends BaseReport<T>> {
             return new ArrayList<>();
         }
 
+        /**
+         * Открытие курсора по данным таблицы (данные читаются по мере построения). Если курсор не поддерживается
+         * (null), то данные загружаются порциями через {@link #loadData(int, int)}.
+         */
+        protected FB_Cursor<TT> openData() throws ExError {
+            return null;
+        }
+
+        /** Данные таблицы, загруженные заранее (см. {@link #prefetchData()}), null - читаются при построении. */
+        private ArrayList<TT> prefetched;
+
+        /** Загрузка всех данных таблицы заранее, до построения (тем же способом, что и при построении). */
+        protected void prefetchData() throws ExError {
+            ArrayList<TT> list = new ArrayList<>();
+            try (FB_Cursor<TT> cursor = openData()) {
+                if (cursor != null) {
+                    try {
+                        while (cursor.hasNext()) {
+                            if (list.size() % PREPARE_CHUNK == 0) Budget.check();
+                            list.add(cursor.next());
+                        }
+                    } catch (FB_Cursor.CursorException ex) {
+                        throw new ExError(ex, "Ошибка чтения данных отчёта: %s", ex.getMessage());
+                    }
+                } else {
+                    while (true) {
+                        ArrayList<TT> items = loadData(list.size(), LOAD_LIMIT);
+                        Budget.check();
+                        list.addAll(items);
+                        if (items.size() < LOAD_LIMIT) break;
+                    }
+                }
+            }
+            prefetched = list;
+        }
+
         protected void build() throws ExError {
             buildHead(); // Начальный заголовок.
 
             Runnable saveOnNewPage = runOnNewPage;
             runOnNewPage = this::buildHead; // Заголовок на каждую ноыую страницу таблицы.
-            int limit = 5000;
+            int limit = LOAD_LIMIT;
             lastIt = null;
             curN = curGroupN = curSubGgroupN = 0;
-            int loaded = 0;
-            while (true) {
-                //logger.infof("LOAD...");
-                itemList = loadData(loaded, limit);
-                //logger.infof("LOADED = %d", itemList.size());
-                if (!itemList.isEmpty()) {
-                    loaded += itemList.size();
-                    for (TT it : itemList) {
-                        curIt = it;
-                        if (lastIt != null) {
-                            // Проверка на завершение группы и открытие новой.
-                            if (hasGroup()) {
-                                if (isGroupChanged()) {
-                                    if (hasSubGroup()) buildSubGroupSummary(lastIt);
-                                    buildGroupSummary(lastIt);
-                                    onGroupChanged();
-                                    curGroupN = curSubGgroupN = 0;
-                                    buildGroupHead(curIt);
-                                    if (hasSubGroup()) buildSubGroupHead(curIt);
-                                } else {
-                                    if (hasSubGroup()) {
-                                        if (isSubGroupChanged()) {
-                                            buildSubGroupSummary(lastIt);
-                                            onSubGroupChanged();
-                                            curSubGgroupN = 0;
-                                            buildSubGroupHead(curIt);
-                                        }
-                                    }
+            isPrepared = null;
+            if (prefetched != null) {
+                // Данные загружены заранее - только построение.
+                for (int i = 0; i < prefetched.size(); i += PREPARE_CHUNK) {
+                    buildItems(prefetched.subList(i, Math.min(prefetched.size(), i + PREPARE_CHUNK)));
+                }
+                prefetched = null;
+            } else {
+                try (FB_Cursor<TT> cursor = openData()) {
+                    if (cursor != null) {
+                        try {
+                            ArrayList<TT> chunk = new ArrayList<>(PREPARE_CHUNK);
+                            while (cursor.hasNext()) {
+                                chunk.add(cursor.next());
+                                if (chunk.size() >= PREPARE_CHUNK) {
+                                    buildItems(chunk);
+                                    chunk.clear();
                                 }
                             }
-                        } else {
-                            if (hasGroup()) buildGroupHead(curIt);
-                            if (hasSubGroup()) buildSubGroupHead(curIt);
+                            buildItems(chunk);
+                        } catch (FB_Cursor.CursorException ex) {
+                            throw new ExError(ex, "Ошибка чтения данных отчёта: %s", ex.getMessage());
+                        }
+                    } else {
+                        int loaded = 0;
+                        while (true) {
+                            //logger.infof("LOAD...");
+                            itemList = loadData(loaded, limit);
+                            //logger.infof("LOADED = %d", itemList.size());
+                            Budget.check();
+                            loaded += itemList.size();
+                            for (int i = 0; i < itemList.size(); i += PREPARE_CHUNK) {
+                                buildItems(itemList.subList(i, Math.min(itemList.size(), i + PREPARE_CHUNK)));
+                            }
+                            // Если считано меньше лимита, то значит всё считали.
+                            if (itemList.size() < limit) break;
                         }
-                        // Добавление строки.
-                        buildDetail(curIt);
-
-                        onDetail(curIt);
-
-                        lastIt = curIt;
-                        curN++;
-                        curGroupN++;
-                        curSubGgroupN++;
                     }
-                    if (itemList.size() == limit) continue;
-                    // Если считано меньше лимита, то значит всё считали.
-
                 }
+            }
+
+            // Завершение
+            if (lastIt != null) {
+                // Закрываем группы.
+                if (hasSubGroup()) buildSubGroupSummary(lastIt);
+                if (hasGroup()) buildGroupSummary(lastIt);
+                buildSummary();
+            } else {
+                buildNoDataSummary();
+            }
+
+            runOnNewPage = saveOnNewPage;
+        }
 
-                // Завершение
-                if (lastIt != null) {
-                    // Закрываем группы.
-                    if (hasSubGroup()) buildSubGroupSummary(lastIt);
-                    if (hasGroup()) buildGroupSummary(lastIt);
-                    buildSummary();
+        /** Признак подготовки строк таблицы заранее (null - ещё не определено, по первой строке). */
+        private Boolean isPrepared;
+
+        /**
+         * Добавление порции строк: строки детализации подготавливаются (измеряются) заранее, параллельно, если
+         * таблица это поддерживает (см. {@link #prepareDetail(Object, int)}), затем последовательно размещаются на
+         * страницах вместе с заголовками и итогами групп.
+         */
+        private void buildItems(List<TT> items) throws ExError {
+            int n = items.size();
+            if (n == 0) return;
+            XRBand[] bands = new XRBand[n];
+            int start = 0;
+            if (isPrepared == null) {
+                bands[0] = prepareDetail(items.get(0), curN);
+                isPrepared = bands[0] != null;
+                start = 1;
+            }
+            if (isPrepared) {
+                final int base = curN, from = start;
+                ForkJoinPool pool = preparePool;
+                if (pool != null && n - from >= PREPARE_PARALLEL_MIN) {
+                    // Потоки пула подготавливают строки в рамках бюджета заявки (проверка на каждой строке).
+                    Budget budget = Budget.current();
+                    try {
+                        pool.submit(() -> IntStream.range(from, n).parallel().forEach(i -> {
+                            Budget prev = Budget.enter(budget);
+                            try {
+                                Budget.check();
+                                bands[i] = prepareDetail(items.get(i), base + i);
+                            } catch (ExError ex) {
+                                throw new CompletionException(ex);
+                            } finally {
+                                Budget.exit(prev);
+                            }
+                        })).get();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new ExError(ex, "Построение отчёта прервано!");
+                    } catch (ExecutionException ex) {
+                        // Превышение бюджета (ExError) может быть обёрнуто несколько раз при передаче из пула.
+                        Throwable cause = ex.getCause();
+                        for (Throwable t = cause; t != null; t = t.getCause()) if (t instanceof ExError) throw (ExError) t;
+                        throw new ExError(cause, "Ошибка подготовки строк отчёта: %s", cause.getMessage());
+                    }
                 } else {
-                    buildNoDataSummary();
+                    for (int i = from; i < n; i++) {
+                        Budget.check();
+                        bands[i] = prepareDetail(items.get(i), base + i);
+                    }
+                }
+            }
+            for (int i = 0; i < n; i++) buildItem(items.get(i), bands[i]);
+        }
+
+        /** Добавление строки таблицы с заголовками и итогами групп (detail - подготовленная строка или null). */
+        private void buildItem(TT it, XRBand detail) throws ExError {
+            Budget.check();
+            curIt = it;
+            if (lastIt != null) {
+                // Проверка на завершение группы и открытие новой.
+                if (hasGroup()) {
+                    if (isGroupChanged()) {
+                        if (hasSubGroup()) buildSubGroupSummary(lastIt);
+                        buildGroupSummary(lastIt);
+                        onGroupChanged();
+                        curGroupN = curSubGgroupN = 0;
+                        buildGroupHead(curIt);
+                        if (hasSubGroup()) buildSubGroupHead(curIt);
+                    } else {
+                        if (hasSubGroup()) {
+                            if (isSubGroupChanged()) {
+                                buildSubGroupSummary(lastIt);
+                                onSubGroupChanged();
+                                curSubGgroupN = 0;
+                                buildSubGroupHead(curIt);
+                            }
+                        }
+                    }
                 }
-                break; // Прерываем.
+            } else {
+                if (hasGroup()) buildGroupHead(curIt);
+                if (hasSubGroup()) buildSubGroupHead(curIt);
+            }
+            // Добавление строки.
+            if (detail != null) {
+                fill(detail);
+            } else {
+                buildDetail(curIt);
             }
 
-            runOnNewPage = saveOnNewPage;
+            onDetail(curIt);
+
+            lastIt = curIt;
+            curN++;
+            curGroupN++;
+            curSubGgroupN++;
         }
     }
 }
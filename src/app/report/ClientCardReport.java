@@ -22,6 +22,8 @@ public class ClientCardReport extends BaseReport<ClientCardReport> {
     private LocalDate dtw;
     private Card.WorkState workState;
     private Mode mode;
+    // Таблица с данными, загруженными заранее (см. prefetch).
+    private CardsReportTable table;
 
     private static final RGroup<Card, Card.WorkState> GROUP_WORKSTATE = new RGroup<>(1, "IBWORK DESC", Card::getWorkState);
 
@@ -54,6 +56,13 @@ public class ClientCardReport extends BaseReport<ClientCardReport> {
 
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
+    @Override
+    public ClientCardReport prefetch() throws ExError {
+        table = new CardsReportTable();
+        table.prefetchData();
+        return this;
+    }
+
     @Override
     protected void buildBody() throws ExError {
         // Установка строки детализации названия отчёта.
@@ -63,7 +72,7 @@ public class ClientCardReport extends BaseReport<ClientCardReport> {
         // Создаем первую страницу.
         newPage();
         // Генерируем таблицу (заполнение страниц при генерации).
-        new CardsReportTable().build();
+        (table != null ? table : new CardsReportTable()).build();
     }
 
     private class CardsReportTable extends BaseReportTable<Card> {
@@ -3,7 +3,9 @@ package app.report;
 import app.ExError;
 import app.model.*;
 import app.report.engine.XRBand;
+import app.report.engine.XRBandProto;
 import app.report.engine.XRText;
+import fbdbengine.FB_Cursor;
 
 import java.time.LocalDate;
 import java.util.ArrayList;
@@ -22,6 +24,8 @@ public class ClientTransactionReport extends BaseReport<ClientTransactionReport>
     private Integer iddAzs;
     private String iddCard;
     private Mode mode;
+    // Таблица с данными, загруженными заранее (см. prefetch).
+    private TransReportTable table;
 
     private static final RGroup<Transaction, String> GROUP_CARD = new RGroup<>(1, "IDDCARD", Transaction::getCardTitle);
     private static final RGroup<Transaction, Oil> GROUP_OIL = new RGroup<>(2, "IDDOIL", Transaction::getOil);
@@ -62,6 +66,13 @@ public class ClientTransactionReport extends BaseReport<ClientTransactionReport>
 
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
+    @Override
+    public ClientTransactionReport prefetch() throws ExError {
+        table = new TransReportTable();
+        table.prefetchData();
+        return this;
+    }
+
     @Override
     protected void buildBody() throws ExError {
         // Установка строки детализации названия отчёта.
@@ -72,7 +83,7 @@ public class ClientTransactionReport extends BaseReport<ClientTransactionReport>
         // Создаем первую страницу.
         newPage();
         // Генерируем таблицу (заполнение страниц при генерации).
-        new TransReportTable().build();
+        (table != null ? table : new TransReportTable()).build();
     }
 
     private class TransReportTable extends BaseReportTable<Transaction> {
@@ -80,11 +91,12 @@ public class ClientTransactionReport extends BaseReport<ClientTransactionReport>
         protected long allVol, allSum;
         protected long groupVol, groupSum;
         protected long subgroupVol, subgroupSum;
+        private TransactionPager pager; // Загрузка страниц по ключу (режим TIME без курсора).
 
         public TransReportTable() {
             super(mode.group, mode.subgroup);
             allVol = allSum = groupVol = groupSum = subgroupVol = subgroupSum = 0;
-            appendSortString("DTSTART");
+            appendSortString(AppModel.TRANSACTION_KEYSET_SORT); // Тот же порядок, что и у загрузки по ключу.
         }
 
         @Override
@@ -106,6 +118,19 @@ public class ClientTransactionReport extends BaseReport<ClientTransactionReport>
                     changeCols(2, 1, 0);
                     break;
             }
+            // Ячейки группировок в строках не выводятся - в прототипе пустые.
+            XRText tx1 = hasGroup() ? crText("").lwTB(0f, 0f).transparent() : crText("").center();
+            XRText tx2 = hasSubGroup() ? crText("").lwTB(0f, 0f).transparent() : crText("").center();
+            detailProto = new XRBandProto(new XRBand().style(tableDetailStyle).cols(colsW).rows(10)
+                    .addGX(tx1)
+                    .addGX(tx2)
+                    .addGX(crText("").center())
+                    .addGX(crText("").center())
+                    .addGX(crText("").center())
+                    .addGX(crText("").center())
+                    .addGX(crText(""))
+                    .addGX(crText(""))
+                    .pack());
         }
 
         @Override
@@ -222,21 +247,11 @@ public class ClientTransactionReport extends BaseReport<ClientTransactionReport>
         }
 
         @Override
-        protected void buildDetail(Transaction it) {
+        protected XRBand prepareDetail(Transaction it, int n) {
             String[] t = {fmtDT86(it.getStart()), it.getCardTitle(), it.getOil().getAbbreviation()};
-            XRText tx1 = hasGroup() ? crText("").lwTB(0f, 0f).transparent() : crText(t[colsO[0]]).center();
-            XRText tx2 = hasSubGroup() ? crText("").lwTB(0f, 0f).transparent() : crText(t[colsO[1]]).center();
-            XRBand band = new XRBand().style(tableDetailStyle).cols(colsW).rows(10)
-                    .addGX(tx1)
-                    .addGX(tx2)
-                    .addGX(crText(t[colsO[2]]).center())
-                    .addGX(crText("" + it.getIddAzs()).center())
-                    .addGX(crText("" + it.getIddTrk()).center())
-                    .addGX(crText(fmtN2(it.getPrice())).center())
-                    .addGX(crText(fmtN2(it.getVolume())))
-                    .addGX(crText(fmtN2(it.getSumma())))
-                    .pack();
-            fill(band);
+            return detailProto.stamp(hasGroup() ? null : t[colsO[0]], hasSubGroup() ? null : t[colsO[1]], t[colsO[2]],
+                    "" + it.getIddAzs(), "" + it.getIddTrk(), fmtN2(it.getPrice()), fmtN2(it.getVolume()),
+                    fmtN2(it.getSumma()));
         }
 
         @Override
@@ -259,10 +274,24 @@ public class ClientTransactionReport extends BaseReport<ClientTransactionReport>
 
         @Override
         protected ArrayList<Transaction> loadData(int skip, int limit) throws ExError {
+            if (mode == Mode.TIME) {
+                // Без группировок порядок по времени - постранично по ключу от последней загруженной транзакции.
+                if (skip == 0) pager = model.pageClientTransactions(
+                        client.getFirm().id, client.getIdd(), client.getIddSub(), dtStart, dtEnd, iddAzs, iddCard);
+                return pager.next(limit);
+            }
             return model.loadClientTransactions(
                     client.getFirm().id, client.getIdd(), client.getIddSub(), dtStart, dtEnd, iddAzs, iddCard,
                     skip, limit, sortString);
         }
+
+        @Override
+        protected FB_Cursor<Transaction> openData() throws ExError {
+            if (!model.isStreaming) return null;
+            return model.openClientTransactions(
+                    client.getFirm().id, client.getIdd(), client.getIddSub(), dtStart, dtEnd, iddAzs, iddCard,
+                    sortString);
+        }
     }
 
 }
\ No newline at end of file
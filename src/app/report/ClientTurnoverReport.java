@@ -3,10 +3,12 @@ package app.report;
 import app.ExError;
 import app.model.*;
 import app.report.engine.XRBand;
+import app.report.engine.XRBandProto;
 import app.report.engine.XRText;
 
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
 
 import static app.App.model;
 import static app.model.Helper.*;
@@ -20,6 +22,10 @@ public class ClientTurnoverReport extends BaseReport<ClientTurnoverReport> {
     private Client client;
     //
     private LocalDate dtStart, dtEnd;
+    // Предварительно запущенная загрузка данных таблиц.
+    private CompletableFuture<ArrayList<Saldo>> startSaldos, endSaldos;
+    private CompletableFuture<ArrayList<Sale>> sales;
+    private CompletableFuture<ArrayList<Pay>> pays;
 
     public ClientTurnoverReport(Client client, LocalDate dtstart, LocalDate dtend) throws ExError {
         super(client.getFirm(), "Обороты по клиенту");
@@ -30,22 +36,65 @@ public class ClientTurnoverReport extends BaseReport<ClientTurnoverReport> {
 
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
+    @Override
+    public ClientTurnoverReport prefetch() throws ExError {
+        startLoad();
+        try {
+            AppModel.await(startSaldos);
+            AppModel.await(sales);
+            AppModel.await(pays);
+            AppModel.await(endSaldos);
+        } catch (ExError ex) {
+            cancel(startSaldos, sales, pays, endSaldos);
+            throw ex;
+        }
+        return this;
+    }
+
     @Override
     protected void buildBody() throws ExError {
         // Установка строки детализации названия отчёта.
         headerDetailText = client.getTitle() + "\n" + "за период c " + fmtDate8(dtStart) + " по " + fmtDate8(dtEnd);
 
-        // Создаем первую страницу.
-        newPage();
-
-        // Генерируем таблицу (заполнение страниц при генерации).
-        new SaldoReportTable(true).build();
-        sy(3);
-        new SaleReportTable().build();
-        sy(3);
-        new PayReportTable().build();
-        sy(3);
-        new SaldoReportTable(false).build();
+        // Все наборы данных независимы - загружаем одновременно (каждый в своём соединении), таблицы строятся по порядку
+        // по мере готовности данных (если не загружены заранее).
+        if (sales == null) startLoad();
+        try {
+            // Создаем первую страницу.
+            newPage();
+
+            // Генерируем таблицу (заполнение страниц при генерации).
+            new SaldoReportTable(true).build();
+            sy(3);
+            new SaleReportTable().build();
+            sy(3);
+            new PayReportTable().build();
+            sy(3);
+            new SaldoReportTable(false).build();
+        } finally {
+            // При ошибке построения ещё не начатые загрузки не выполняются (незавершённые - отбрасываются).
+            cancel(startSaldos, sales, pays, endSaldos);
+        }
+    }
+
+    private void startLoad() {
+        Integer iddfirm = client.getFirm().id, iddclient = client.getIdd(), iddsub = client.getIddSub();
+        // Для начальной даты - отнимаем день, т.к. сальдо на конец дня.
+        startSaldos = model.loadClientSaldosAsync(iddfirm, iddclient, iddsub, dtStart.minusDays(1));
+        sales = model.loadClientSalesAsync(iddfirm, iddclient, iddsub, dtStart, dtEnd);
+        pays = model.loadClientPaysAsync(iddfirm, iddclient, iddsub, dtStart, dtEnd);
+        endSaldos = model.loadClientSaldosAsync(iddfirm, iddclient, iddsub, dtEnd);
+    }
+
+    private static void cancel(CompletableFuture<?>... futures) {
+        for (CompletableFuture<?> f : futures) {
+            if (f != null) f.cancel(false);
+        }
+    }
+
+    /** Данные загружаются целиком, повторные запросы порций (при большом кол-ве записей) возвращают пустой список. */
+    private static <T> ArrayList<T> prefetched(CompletableFuture<ArrayList<T>> data, int skip) throws ExError {
+        return skip == 0 ? AppModel.await(data) : new ArrayList<>();
     }
 
     private class SaldoReportTable extends BaseReportTable<Saldo> {
@@ -101,9 +150,7 @@ public class ClientTurnoverReport extends BaseReport<ClientTurnoverReport> {
 
         @Override
         protected ArrayList<Saldo> loadData(int skip, int limit) throws ExError {
-            // Для начальной даты - отнимаем день, т.к. сальдо на конец дня.
-            return model.loadClientSaldos(client.getFirm().id, client.getIdd(), client.getIddSub(),
-                    isStart ? dtStart.minusDays(1) : dtEnd);
+            return prefetched(isStart ? startSaldos : endSaldos, skip);
         }
     }
 
@@ -119,6 +166,14 @@ public class ClientTurnoverReport extends BaseReport<ClientTurnoverReport> {
         @Override
         protected void setupCols(int... w) {
             super.setupCols(30, 70, 50, 80, 80, 200);
+            detailProto = new XRBandProto(new XRBand().style(tableDetailStyle).cols(colsW).rows(13)
+                    .addGX(crText("").padR(5))
+                    .addGX(crText("").center())
+                    .addGX(crText("").center())
+                    .addGX(crText(""))
+                    .addGX(crText(""))
+                    .addGX(crText("").padL(5).left())
+                    .pack());
         }
 
         @Override
@@ -152,17 +207,10 @@ public class ClientTurnoverReport extends BaseReport<ClientTurnoverReport> {
         }
 
         @Override
-        protected void buildDetail(Pay it) {
+        protected XRBand prepareDetail(Pay it, int n) {
             boolean isoil = it.getAccType() == AccType.KEEP;
-            XRBand band = new XRBand().style(tableDetailStyle).cols(colsW).rows(13)
-                    .addGX(crText("" + (curN + 1)).padR(5))
-                    .addGX(crText(fmtDate8(it.getDtw())).center())
-                    .addGX(crText(isoil ? it.getOil().getAbbreviation() : "—").center())
-                    .addGX(crText(isoil ? fmtN2(it.getVolume()) : "—"))
-                    .addGX(crText(isoil ? "—" : fmtN2(it.getSumma())))
-                    .addGX(crText(it.getDoc()).padL(5).left())
-                    .pack();
-            fill(band);
+            return detailProto.stamp("" + (n + 1), fmtDate8(it.getDtw()), isoil ? it.getOil().getAbbreviation() : "—",
+                    isoil ? fmtN2(it.getVolume()) : "—", isoil ? "—" : fmtN2(it.getSumma()), it.getDoc());
         }
 
         @Override
@@ -186,7 +234,7 @@ public class ClientTurnoverReport extends BaseReport<ClientTurnoverReport> {
 
         @Override
         protected ArrayList<Pay> loadData(int skip, int limit) throws ExError {
-            return model.loadClientPays(client.getFirm().id, client.getIdd(), client.getIddSub(), dtStart, dtEnd);
+            return prefetched(pays, skip);
         }
     }
 
@@ -348,8 +396,7 @@ public class ClientTurnoverReport extends BaseReport<ClientTurnoverReport> {
 
         @Override
         protected ArrayList<Sale> loadData(int skip, int limit) throws ExError {
-            return model.loadClientSales(
-                    client.getFirm().id, client.getIdd(), client.getIddSub(), dtStart, dtEnd);
+            return prefetched(sales, skip);
         }
     }
 }
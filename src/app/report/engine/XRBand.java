@@ -59,6 +59,13 @@ public class XRBand {
         return this;
     }
 
+    // Размер без пересчёта элементов (для копий уже упакованного бенда).
+    XRBand size(int w, int h) {
+        width = w;
+        height = h;
+        return this;
+    }
+
     public int width() {
         return width;
     }
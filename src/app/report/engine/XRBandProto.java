@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2015, Aleksey Nikolaevich Dokshin. All right reserved.
+ * Contacts: dant.it@gmail.com, dokshin@list.ru.
+ */
+package app.report.engine;
+
+import java.util.ArrayList;
+
+/**
+ * Прототип бенда - шаблон строки таблицы из текстовых элементов. Бенд-образец строится один раз (геометрия колонок, стили, рамки, отступы
+ * ячеек), каждая строка получается копированием элементов образца с подстановкой значений в ячейки-слоты. Ячейки,
+ * значение которых не изменилось относительно образца, повторно не измеряются.
+ * <p>
+ * Типичное использование:<br>
+ * <pre>
+ * proto = new XRBandProto(new XRBand().style(tableDetailStyle).cols(colsW).rows(10)
+ *         .addGX(crText("").center()).addGX(crText("")).pack());
+ * ...
+ * fill(proto.stamp(fmtDT86(it.getStart()), fmtN2(it.getSumma())));
+ * </pre>
+ *
+ * @author Докшин Алексей Николаевич <dant.it@gmail.com>
+ */
+public class XRBandProto {
+
+    private final XRText[] elements;
+    private final int[] slots;
+    private final int width, height;
+
+    /**
+     * Конструктор.
+     *
+     * @param band  Упакованный бенд-образец (элементы образца в отчёт не добавляются).
+     * @param slots Номера элементов образца, в которые подставляются значения (по умолчанию - все элементы по порядку).
+     */
+    public XRBandProto(XRBand band, int... slots) {
+        ArrayList<XRText> list = new ArrayList<>();
+        for (XRElement<?, ?> e : band.getElements()) {
+            if (!(e instanceof XRText)) {
+                throw new IllegalArgumentException("Прототип бенда может содержать только текст!");
+            }
+            list.add((XRText) e);
+        }
+        this.elements = list.toArray(new XRText[list.size()]);
+        this.width = band.width();
+        this.height = band.height();
+        if (slots.length == 0) {
+            slots = new int[elements.length];
+            for (int i = 0; i < slots.length; i++) slots[i] = i;
+        }
+        this.slots = slots;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    /**
+     * Создание бенда по образцу с подстановкой значений.
+     *
+     * @param values Значения слотов по порядку (null - текст образца).
+     * @return Новый бенд (размер - как у образца).
+     */
+    public XRBand stamp(String... values) {
+        XRBand band = new XRBand();
+        XRText[] copies = new XRText[elements.length];
+        for (int i = 0; i < copies.length; i++) {
+            copies[i] = elements[i].copy();
+            band.addAbs(copies[i]);
+        }
+        for (int i = 0; i < slots.length && i < values.length; i++) {
+            XRText t = copies[slots[i]];
+            String v = values[i];
+            if (v != null && !v.equals(t.text())) t.text(v).pack();
+        }
+        return band.size(width, height);
+    }
+}
@@ -6,8 +6,12 @@ package app.report.engine;
 
 import net.sf.jasperreports.engine.*;
 import net.sf.jasperreports.engine.base.JRBoxPen;
+import net.sf.jasperreports.engine.base.JRVirtualPrintPage;
 import net.sf.jasperreports.engine.design.JRDesignStyle;
+import net.sf.jasperreports.engine.fill.JRSwapFileVirtualizer;
+import net.sf.jasperreports.engine.fill.JRVirtualizationContext;
 import net.sf.jasperreports.engine.type.*;
+import net.sf.jasperreports.engine.util.JRSwapFile;
 import net.sf.jasperreports.engine.util.JRTextMeasurerUtil;
 
 import java.awt.*;
@@ -19,108 +23,140 @@ import java.awt.*;
  */
 public class XRBuilder {
 
-    public static final JRDesignStyle defaultStyle;
-    public static final JRDesignStyle tableStyle;
-    public static final JRDesignStyle tableHeadStyle;
-    public static final JRDesignStyle tableDetailStyle;
-    public static final JRDesignStyle tableSubDetailStyle;
-    public static final JRDesignStyle tableGroupStyle;
-    public static final JRDesignStyle tableSubGroupStyle;
-    public static final JRDesignStyle tableSumaryStyle;
-    public static final JRDesignStyle cutLineStyle;
+    /**
+     * Набор стилей отчёта. Стили JR изменяемы, поэтому каждый построитель создаёт свой набор (см. {@link #styles}) -
+     * одновременно строящиеся отчёты не разделяют объекты стилей.
+     */
+    public static final class Styles {
+
+        public final JRDesignStyle defaultStyle;
+        public final JRDesignStyle tableStyle;
+        public final JRDesignStyle tableHeadStyle;
+        public final JRDesignStyle tableDetailStyle;
+        public final JRDesignStyle tableSubDetailStyle;
+        public final JRDesignStyle tableGroupStyle;
+        public final JRDesignStyle tableSubGroupStyle;
+        public final JRDesignStyle tableSumaryStyle;
+        public final JRDesignStyle cutLineStyle;
+
+        public Styles() {
+            // Стиль по умолчанию (шрифт + параметры экспорта в PDF)
+            defaultStyle = new JRDesignStyle();
+            defaultStyle.setName("Default");
+            defaultStyle.setDefault(true);
+            defaultStyle.setFontName("XO Oriel"); // "Liberation Sans"
+            defaultStyle.setFontSize(10f);
+            defaultStyle.setPdfEncoding("UTF-8");
+
+            // Стиль для таблиц
+            tableStyle = new JRDesignStyle();
+            tableStyle.setName("Table");
+            tableStyle.setParentStyle(defaultStyle);
+            tableStyle.setVerticalTextAlign(VerticalTextAlignEnum.MIDDLE);
+            JRLineBox box = tableStyle.getLineBox();
+            box.setLeftPadding(1);
+            box.setRightPadding(1);
+            JRBoxPen pen = box.getPen();
+            pen.setLineStyle(LineStyleEnum.SOLID);
+            pen.setLineColor(Color.BLACK);
+            pen.setLineWidth(0.4f);
+
+            // Стиль для заголовков колонок в таблицах
+            tableHeadStyle = new JRDesignStyle();
+            tableHeadStyle.setName("TableHead");
+            tableHeadStyle.setParentStyle(tableStyle);
+            tableHeadStyle.setHorizontalTextAlign(HorizontalTextAlignEnum.CENTER);
+            tableHeadStyle.setFontSize(10.5f);
+            tableHeadStyle.setBold(true);
+            tableHeadStyle.setMode(ModeEnum.OPAQUE);
+            tableHeadStyle.setBackcolor(Color.lightGray);
+
+            // Стиль для таблиц
+            tableDetailStyle = new JRDesignStyle();
+            tableDetailStyle.setName("TableDetail");
+            tableDetailStyle.setParentStyle(tableStyle);
+            tableDetailStyle.setFontSize(8f);
+            tableDetailStyle.setHorizontalTextAlign(HorizontalTextAlignEnum.RIGHT);
+            box = tableDetailStyle.getLineBox();
+            box.setLeftPadding(2);
+            box.setRightPadding(2);
+
+            tableSubDetailStyle = new JRDesignStyle();
+            tableSubDetailStyle.setName("TableSubDetail");
+            tableSubDetailStyle.setParentStyle(tableDetailStyle);
+            tableSubDetailStyle.setFontSize(7f);
+            box = tableSubDetailStyle.getLineBox();
+            box.getTopPen().setLineWidth(0.1f);
+            box.getTopPen().setLineColor(Color.gray);
+            box.getBottomPen().setLineWidth(0.1f);
+            box.getBottomPen().setLineColor(Color.gray);
+
+            // Стиль для группировки
+            tableGroupStyle = new JRDesignStyle();
+            tableGroupStyle.setName("TableGroup");
+            tableGroupStyle.setParentStyle(tableDetailStyle);
+            tableGroupStyle.setHorizontalTextAlign(HorizontalTextAlignEnum.RIGHT);
+            tableGroupStyle.setFontSize(9.5f);
+            tableGroupStyle.setBold(true);
+            tableGroupStyle.setMode(ModeEnum.OPAQUE);
+
+            // Стиль для вложенной группировки (группировки второго порядка)
+            tableSubGroupStyle = new JRDesignStyle();
+            tableSubGroupStyle.setName("TableSubGroup");
+            tableSubGroupStyle.setParentStyle(tableGroupStyle);
+            tableSubGroupStyle.setFontSize(9f);
+
+            // Стиль для таблиц
+            tableSumaryStyle = new JRDesignStyle();
+            tableSumaryStyle.setName("TableSum");
+            tableSumaryStyle.setParentStyle(tableDetailStyle);
+            tableSumaryStyle.setFontSize(10.5f);
+            tableSumaryStyle.setBold(true);
+
+            // Стиль линии отреза
+            cutLineStyle = new JRDesignStyle();
+            cutLineStyle.setName("CutLine");
+            cutLineStyle.setParentStyle(defaultStyle);
+            cutLineStyle.setFontSize(6f);
+            cutLineStyle.setBold(false);
+            cutLineStyle.setVerticalTextAlign(VerticalTextAlignEnum.MIDDLE);
+            cutLineStyle.setForecolor(Color.gray);
+            box = cutLineStyle.getLineBox();
+            box.setPadding(0);
+            pen = box.getPen();
+            pen.setLineWidth(0);
+            pen.setLineStyle(LineStyleEnum.DASHED);
+            pen.setLineColor(Color.LIGHT_GRAY);
+        }
+    }
 
     public static final SimplePrintPageFormat pageFormat_A4_PORTRAIT;
     public static final SimplePrintPageFormat pageFormat_A4_LANDSCAPE;
 
-    static {
-        // Стиль по умолчанию (шрифт + параметры экспорта в PDF)
-        defaultStyle = new JRDesignStyle();
-        defaultStyle.setName("Default");
-        defaultStyle.setDefault(true);
-        defaultStyle.setFontName("XO Oriel"); // "Liberation Sans"
-        defaultStyle.setFontSize(10f);
-        defaultStyle.setPdfEncoding("UTF-8");
-
-        // Стиль для таблиц
-        tableStyle = new JRDesignStyle();
-        tableStyle.setName("Table");
-        tableStyle.setParentStyle(defaultStyle);
-        tableStyle.setVerticalTextAlign(VerticalTextAlignEnum.MIDDLE);
-        JRLineBox box = tableStyle.getLineBox();
-        box.setLeftPadding(1);
-        box.setRightPadding(1);
-        JRBoxPen pen = box.getPen();
-        pen.setLineStyle(LineStyleEnum.SOLID);
-        pen.setLineColor(Color.BLACK);
-        pen.setLineWidth(0.4f);
-
-        // Стиль для заголовков колонок в таблицах
-        tableHeadStyle = new JRDesignStyle();
-        tableHeadStyle.setName("TableHead");
-        tableHeadStyle.setParentStyle(tableStyle);
-        tableHeadStyle.setHorizontalTextAlign(HorizontalTextAlignEnum.CENTER);
-        tableHeadStyle.setFontSize(10.5f);
-        tableHeadStyle.setBold(true);
-        tableHeadStyle.setMode(ModeEnum.OPAQUE);
-        tableHeadStyle.setBackcolor(Color.lightGray);
-
-        // Стиль для таблиц
-        tableDetailStyle = new JRDesignStyle();
-        tableDetailStyle.setName("TableDetail");
-        tableDetailStyle.setParentStyle(tableStyle);
-        tableDetailStyle.setFontSize(8f);
-        tableDetailStyle.setHorizontalTextAlign(HorizontalTextAlignEnum.RIGHT);
-        box = tableDetailStyle.getLineBox();
-        box.setLeftPadding(2);
-        box.setRightPadding(2);
-
-        tableSubDetailStyle = new JRDesignStyle();
-        tableSubDetailStyle.setName("TableSubDetail");
-        tableSubDetailStyle.setParentStyle(tableDetailStyle);
-        tableSubDetailStyle.setFontSize(7f);
-        box = tableSubDetailStyle.getLineBox();
-        box.getTopPen().setLineWidth(0.1f);
-        box.getTopPen().setLineColor(Color.gray);
-        box.getBottomPen().setLineWidth(0.1f);
-        box.getBottomPen().setLineColor(Color.gray);
-
-        // Стиль для группировки
-        tableGroupStyle = new JRDesignStyle();
-        tableGroupStyle.setName("TableGroup");
-        tableGroupStyle.setParentStyle(tableDetailStyle);
-        tableGroupStyle.setHorizontalTextAlign(HorizontalTextAlignEnum.RIGHT);
-        tableGroupStyle.setFontSize(9.5f);
-        tableGroupStyle.setBold(true);
-        tableGroupStyle.setMode(ModeEnum.OPAQUE);
-
-        // Стиль для вложенной группировки (группировки второго порядка)
-        tableSubGroupStyle = new JRDesignStyle();
-        tableSubGroupStyle.setName("TableSubGroup");
-        tableSubGroupStyle.setParentStyle(tableGroupStyle);
-        tableSubGroupStyle.setFontSize(9f);
-
-        // Стиль для таблиц
-        tableSumaryStyle = new JRDesignStyle();
-        tableSumaryStyle.setName("TableSum");
-        tableSumaryStyle.setParentStyle(tableDetailStyle);
-        tableSumaryStyle.setFontSize(10.5f);
-        tableSumaryStyle.setBold(true);
-
-        // Стиль линии отреза
-        cutLineStyle = new JRDesignStyle();
-        cutLineStyle.setName("CutLine");
-        cutLineStyle.setParentStyle(defaultStyle);
-        cutLineStyle.setFontSize(6f);
-        cutLineStyle.setBold(false);
-        cutLineStyle.setVerticalTextAlign(VerticalTextAlignEnum.MIDDLE);
-        cutLineStyle.setForecolor(Color.gray);
-        box = cutLineStyle.getLineBox();
-        box.setPadding(0);
-        pen = box.getPen();
-        pen.setLineWidth(0);
-        pen.setLineStyle(LineStyleEnum.DASHED);
-        pen.setLineColor(Color.LIGHT_GRAY);
+    // Общий кеш измерения текста (см. XRMeasureCache).
+    public static final XRMeasureCache measureCache = new XRMeasureCache(20000);
+
+    // Виртуализация страниц: кол-во страниц отчёта, хранимых в памяти (остальные выгружаются в файл, 0 - без выгрузки),
+    // и каталог файлов выгрузки (пустой - временный каталог системы).
+    private static volatile int virtualPages = 0;
+    private static volatile String virtualDir = "";
+
+    public static void setVirtualizer(int pages, String dir) {
+        virtualPages = Math.max(0, pages);
+        virtualDir = dir == null ? "" : dir;
+    }
 
+    // Контекст виртуализации отчёта (установка выгрузчика в JR доступна только наследникам).
+    @SuppressWarnings("serial")
+    private static final class VirtualContext extends JRVirtualizationContext {
+
+        VirtualContext(JRVirtualizer virtualizer) {
+            super(DefaultJasperReportsContext.getInstance());
+            setVirtualizer(virtualizer);
+        }
+    }
+
+    static {
         // Преопределенные форматы страниц.
         pageFormat_A4_PORTRAIT = new SimplePrintPageFormat();
         pageFormat_A4_PORTRAIT.setOrientation(OrientationEnum.PORTRAIT);
@@ -145,13 +181,17 @@ public class XRBuilder {
     protected final JasperPrint jasperPrint;
     // Стили.
     protected final JRDefaultStyleProvider defaultStyleProvider;
-    // Калькулятор метрик.
+    public final Styles styles = new Styles();
+    // Калькулятор метрик (свой для построителя).
     protected final JRTextMeasurerUtil measurerUtil;
     //
     protected PrintPageFormat defaultPageFormat;
 
     //
     protected int defaultHeaderH, defaultFooterH;
+    // Выгрузка страниц на диск (null - все страницы в памяти).
+    protected JRSwapFileVirtualizer virtualizer;
+    protected JRVirtualizationContext virtualContext;
 
     public XRBuilder() {
 
@@ -164,6 +204,32 @@ public class XRBuilder {
 
         defaultHeaderH = 0;
         defaultFooterH = 0;
+
+        int vp = virtualPages;
+        if (vp > 0) {
+            String dir = virtualDir.isEmpty() ? System.getProperty("java.io.tmpdir") : virtualDir;
+            virtualizer = new JRSwapFileVirtualizer(vp, new JRSwapFile(dir, 4096, 256), true);
+            virtualContext = new VirtualContext(virtualizer);
+            JRVirtualizationContext.register(virtualContext, jasperPrint);
+        }
+    }
+
+    public boolean isVirtual() {
+        return virtualizer != null;
+    }
+
+    // Завершение построения: выгруженные страницы больше не изменяются (при экспорте не перезаписываются в файл).
+    public XRBuilder finish() {
+        if (virtualContext != null) virtualContext.setReadOnly(true);
+        return this;
+    }
+
+    // Освобождение файла выгрузки страниц (после экспорта отчёт больше не доступен).
+    public void dispose() {
+        if (virtualizer != null) {
+            virtualizer.cleanup();
+            virtualizer = null;
+        }
     }
 
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -218,7 +284,8 @@ public class XRBuilder {
     // Создаётся страница и добавляется в отчёт.
     public XRPage newPage(PrintPageFormat fmt) {
         if (fmt == null) fmt = defaultPageFormat;
-        XRPage page = new XRPage(fmt).colontituls(defaultHeaderH, defaultFooterH);
+        XRPage page = (virtualContext != null ? new XRPage(fmt, new JRVirtualPrintPage(jasperPrint, virtualContext)) : new XRPage(fmt))
+                .colontituls(defaultHeaderH, defaultFooterH);
         int n = getPageCount();
         if (n > 0) {
             PrintPageFormat pf = jasperPrint.getParts().getPageFormat(n);
@@ -249,7 +316,7 @@ public class XRBuilder {
     }
 
     public XRText crText(String title) {
-        return new XRText(defaultStyleProvider, measurerUtil).size(0, 0).text(title);
+        return new XRText(defaultStyleProvider, measurerUtil, measureCache).size(0, 0).text(title);
     }
 
     public XRText crText(int width, String title) {
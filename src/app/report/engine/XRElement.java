@@ -135,4 +135,21 @@ public abstract class XRElement<E extends JRPrintElement, T extends XRElement<E,
     public String key(String key) {
         return element.getPropertiesMap().getProperty(key);
     }
+
+    // Копирует геометрию, стиль и собственные (не из стиля) общие атрибуты элемента-образца.
+    protected T copyFrom(E src) {
+        element.setX(src.getX());
+        element.setY(src.getY());
+        element.setWidth(src.getWidth());
+        element.setHeight(src.getHeight());
+        element.setStyle(src.getStyle());
+        element.setMode(src.getOwnModeValue());
+        element.setForecolor(src.getOwnForecolor());
+        element.setBackcolor(src.getOwnBackcolor());
+        JRPropertiesMap props = src.getPropertiesMap();
+        if (props.hasProperties()) {
+            for (String name : props.getPropertyNames()) element.getPropertiesMap().setProperty(name, props.getProperty(name));
+        }
+        return (T) this;
+    }
 }
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2015, Aleksey Nikolaevich Dokshin. All right reserved.
+ * Contacts: dant.it@gmail.com, dokshin@list.ru.
+ */
+package app.report.engine;
+
+import net.sf.jasperreports.engine.JRLineBox;
+import net.sf.jasperreports.engine.JRParagraph;
+import net.sf.jasperreports.engine.TabStop;
+import net.sf.jasperreports.engine.base.JRBasePrintText;
+import net.sf.jasperreports.engine.util.JRTextMeasurerUtil;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Кеш результатов измерения текста (LRU). Ключ - текст и все влияющие на измерение параметры элемента (шрифт с учётом
+ * стиля, размеры, отступы, выравнивание, поворот, параметры абзаца: межстрочный интервал, отступы строк, интервалы и
+ * позиции табуляции), значение - высота текста и результат
+ * обрезки. Повторяющиеся ячейки таблиц (н/п, даты, прочерки) измеряются один раз. Кеш общий для всех построителей
+ * отчётов и может использоваться из разных потоков.
+ *
+ * @author Докшин Алексей Николаевич <dant.it@gmail.com>
+ */
+public class XRMeasureCache {
+
+    private static final class Key {
+
+        final String text, font, markup;
+        final float fontSize, lineSpacingSize;
+        final int flags, w, h, padL, padR, padT, padB;
+        final int indentFirst, indentL, indentR, spaceBefore, spaceAfter, tabWidth;
+        final int[] tabs; // Позиция и выравнивание каждой позиции табуляции.
+        final Object alignX, alignY, rotation, lineSpacing;
+        final int hash;
+
+        Key(JRBasePrintText e, String text) {
+            JRLineBox box = e.getLineBox();
+            JRParagraph p = e.getParagraph();
+            this.text = text;
+            this.font = e.getFontName();
+            this.markup = e.getMarkup();
+            this.fontSize = e.getFontsize();
+            this.lineSpacingSize = p.getLineSpacingSize() == null ? 0f : p.getLineSpacingSize();
+            this.flags = (e.isBold() ? 1 : 0) | (e.isItalic() ? 2 : 0) | (e.isUnderline() ? 4 : 0)
+                    | (e.isStrikeThrough() ? 8 : 0);
+            this.w = e.getWidth();
+            this.h = e.getHeight();
+            this.padL = v(box.getLeftPadding());
+            this.padR = v(box.getRightPadding());
+            this.padT = v(box.getTopPadding());
+            this.padB = v(box.getBottomPadding());
+            this.alignX = e.getHorizontalTextAlign();
+            this.alignY = e.getVerticalTextAlign();
+            this.rotation = e.getRotationValue();
+            this.lineSpacing = p.getLineSpacing();
+            this.indentFirst = v(p.getFirstLineIndent());
+            this.indentL = v(p.getLeftIndent());
+            this.indentR = v(p.getRightIndent());
+            this.spaceBefore = v(p.getSpacingBefore());
+            this.spaceAfter = v(p.getSpacingAfter());
+            this.tabWidth = v(p.getTabStopWidth());
+            TabStop[] ts = p.getTabStops();
+            this.tabs = new int[ts == null ? 0 : ts.length * 2];
+            for (int i = 0; i < tabs.length / 2; i++) {
+                tabs[i * 2] = ts[i].getPosition();
+                tabs[i * 2 + 1] = ts[i].getAlignment() == null ? -1 : ts[i].getAlignment().ordinal();
+            }
+            this.hash = Objects.hash(text, font, markup, fontSize, lineSpacingSize, flags, w, h, padL, padR, padT, padB,
+                    alignX, alignY, rotation, lineSpacing, indentFirst, indentL, indentR, spaceBefore, spaceAfter,
+                    tabWidth, Arrays.hashCode(tabs));
+        }
+
+        private static int v(Integer i) {
+            return i == null ? 0 : i;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return hash == k.hash && w == k.w && h == k.h && flags == k.flags && fontSize == k.fontSize
+                    && padL == k.padL && padR == k.padR && padT == k.padT && padB == k.padB
+                    && lineSpacingSize == k.lineSpacingSize && Objects.equals(text, k.text)
+                    && Objects.equals(font, k.font) && Objects.equals(markup, k.markup)
+                    && alignX == k.alignX && alignY == k.alignY && rotation == k.rotation && lineSpacing == k.lineSpacing
+                    && indentFirst == k.indentFirst && indentL == k.indentL && indentR == k.indentR
+                    && spaceBefore == k.spaceBefore && spaceAfter == k.spaceAfter && tabWidth == k.tabWidth
+                    && Arrays.equals(tabs, k.tabs);
+        }
+    }
+
+    /** Результат измерения. */
+    private static final class Measure {
+
+        final float textHeight, lineSpacingFactor, leadingOffset;
+        final String text, truncateSuffix;
+        final Integer truncateIndex;
+        final short[] lineBreakOffsets;
+
+        Measure(JRBasePrintText e) {
+            textHeight = e.getTextHeight();
+            lineSpacingFactor = e.getLineSpacingFactor();
+            leadingOffset = e.getLeadingOffset();
+            text = e.getFullText();
+            truncateSuffix = e.getTextTruncateSuffix();
+            truncateIndex = e.getTextTruncateIndex();
+            lineBreakOffsets = e.getLineBreakOffsets();
+        }
+
+        void apply(JRBasePrintText e) {
+            e.setTextHeight(textHeight);
+            e.setLineSpacingFactor(lineSpacingFactor);
+            e.setLeadingOffset(leadingOffset);
+            e.setText(text);
+            e.setTextTruncateSuffix(truncateSuffix);
+            e.setTextTruncateIndex(truncateIndex);
+            e.setLineBreakOffsets(lineBreakOffsets);
+        }
+    }
+
+    private volatile int maxSize;
+    private final LinkedHashMap<Key, Measure> items = new LinkedHashMap<Key, Measure>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Measure> eldest) {
+            return size() > maxSize;
+        }
+    };
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    /**
+     * Конструктор.
+     *
+     * @param maxsize Максимальное кол-во записей (0 - кеширование отключено).
+     */
+    public XRMeasureCache(int maxsize) {
+        this.maxSize = Math.max(0, maxsize);
+    }
+
+    public synchronized void setMaxSize(int maxsize) {
+        maxSize = Math.max(0, maxsize);
+        if (maxSize == 0) items.clear();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Измерение текста элемента (из кеша или измерителем с сохранением результата в кеше). Текст элемента уже должен
+     * быть установлен полностью (без обрезки).
+     *
+     * @param element Текстовый элемент.
+     * @param util    Измеритель.
+     */
+    public void measure(JRBasePrintText element, JRTextMeasurerUtil util) {
+        if (maxSize == 0) {
+            util.measureTextElement(element);
+            return;
+        }
+        Key key = new Key(element, element.getFullText());
+        Measure m;
+        synchronized (this) {
+            m = items.get(key);
+        }
+        if (m != null) {
+            hits.incrementAndGet();
+            m.apply(element);
+            return;
+        }
+        misses.incrementAndGet();
+        util.measureTextElement(element);
+        m = new Measure(element);
+        synchronized (this) {
+            items.put(key, m);
+        }
+    }
+
+    public synchronized int size() {
+        return items.size();
+    }
+
+    public synchronized void clear() {
+        items.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Доля попаданий (%). */
+    public int getHitRatio() {
+        long h = hits.get(), m = misses.get();
+        return h + m == 0 ? 0 : (int) (h * 100 / (h + m));
+    }
+
+    /**
+     * Состояние кеша.
+     *
+     * @return Строка состояния или null, если кеширование отключено.
+     */
+    public String getStats() {
+        if (maxSize == 0) return null;
+        return String.format("записей %d/%d, попаданий %d, промахов %d (попаданий %d%%)",
+                size(), maxSize, hits.get(), misses.get(), getHitRatio());
+    }
+}
@@ -1,5 +1,6 @@
 package app.report.engine;
 
+import net.sf.jasperreports.engine.JRPrintPage;
 import net.sf.jasperreports.engine.PrintPageFormat;
 import net.sf.jasperreports.engine.base.JRBasePrintPage;
 
@@ -9,7 +10,7 @@ import net.sf.jasperreports.engine.base.JRBasePrintPage;
 public class XRPage {
 
     protected final PrintPageFormat format;
-    protected final JRBasePrintPage page;
+    protected final JRPrintPage page;
 
     // Положение доступной области текущей страницы на листе.
     protected int width, height;
@@ -25,7 +26,12 @@ public class XRPage {
     protected XRText pageNumText;
 
     public XRPage(PrintPageFormat pf) {
-        page = new JRBasePrintPage();
+        this(pf, new JRBasePrintPage());
+    }
+
+    // Страница с заданным хранилищем элементов (например, виртуальная страница, выгружаемая на диск).
+    public XRPage(PrintPageFormat pf, JRPrintPage page) {
+        this.page = page;
         format = pf;
         width = pf.getPageWidth();
         height = pf.getPageHeight();
@@ -38,7 +44,7 @@ public class XRPage {
         colontituls(0, 0).xy(0, 0); // перерассчитывается также и доступное поле тела отчёта.
     }
 
-    public JRBasePrintPage getPage() {
+    public JRPrintPage getPage() {
         return page;
     }
 
@@ -141,7 +147,12 @@ public class XRPage {
     public XRPage fill(XRBand band, int startx, int starty) {
         for (XRElement e : band.getElements()) {
             e.xy(startx + e.x(), starty + e.y());
-            if (e.key(PAGE_NUM_KEY) != null && e instanceof XRText) pageNumText = (XRText) e;
+            if (e.key(PAGE_NUM_KEY) != null && e instanceof XRText) {
+                // Поле номера страницы добавляется на страницу после построения всех страниц (см. pageNum),
+                // т.к. элементы выгруженной на диск страницы изменить нельзя.
+                pageNumText = (XRText) e;
+                continue;
+            }
             page.addElement(e.JR());
         }
         curY += band.height();
@@ -149,6 +160,16 @@ public class XRPage {
         return this;
     }
 
+    // Вывод номера страницы в поле номера (однократно, после построения всех страниц).
+    public XRPage pageNum(String text) {
+        if (pageNumText != null) {
+            pageNumText.text(text).pack();
+            page.addElement(pageNumText.JR());
+            pageNumText = null;
+        }
+        return this;
+    }
+
     public XRPage fill(XRBand band) {
         return fill(band, bodyX + curX, bodyY + curY);
     }
@@ -17,20 +17,92 @@ public class XRText extends XRElement<JRBasePrintText, XRText> {
 
     private String originalText; // т.к. может портиться при паковке (обрезаться).
     private final JRTextMeasurerUtil measureUtil;
+    private final XRMeasureCache measureCache; // null - без кеширования.
 
     public XRText(JRDefaultStyleProvider styleprovider,
                   JRTextMeasurerUtil measureutil) {
+        this(styleprovider, measureutil, null);
+    }
+
+    public XRText(JRDefaultStyleProvider styleprovider,
+                  JRTextMeasurerUtil measureutil, XRMeasureCache measurecache) {
         super(new JRBasePrintText(styleprovider));
         this.measureUtil = measureutil;
+        this.measureCache = measurecache;
     }
 
     @Override
     public XRText pack() {
         element.setText(originalText);
-        measureUtil.measureTextElement(element);
+        if (measureCache != null) {
+            measureCache.measure(element, measureUtil);
+        } else {
+            measureUtil.measureTextElement(element);
+        }
         return this;
     }
 
+    /**
+     * Копия элемента: геометрия, стиль, собственные атрибуты шрифта, выравнивания, рамки и отступов, текст и результат
+     * его измерения (копия неизменённого текста не требует повторной паковки). Используется прототипами бендов.
+     */
+    public XRText copy() {
+        XRText t = new XRText(element.getDefaultStyleProvider(), measureUtil, measureCache).copyFrom(element);
+        JRBasePrintText e = t.element;
+        e.setFontName(element.getOwnFontName());
+        e.setFontSize(element.getOwnFontsize());
+        e.setBold(element.isOwnBold());
+        e.setItalic(element.isOwnItalic());
+        e.setUnderline(element.isOwnUnderline());
+        e.setStrikeThrough(element.isOwnStrikeThrough());
+        e.setPdfFontName(element.getOwnPdfFontName());
+        e.setPdfEncoding(element.getOwnPdfEncoding());
+        e.setPdfEmbedded(element.isOwnPdfEmbedded());
+        e.setHorizontalTextAlign(element.getOwnHorizontalTextAlign());
+        e.setVerticalTextAlign(element.getOwnVerticalTextAlign());
+        e.setRotation(element.getOwnRotationValue());
+        e.setMarkup(element.getOwnMarkup());
+        e.setAnchorName(element.getAnchorName());
+        e.setHyperlinkType(element.getHyperlinkTypeValue());
+        e.setHyperlinkReference(element.getHyperlinkReference());
+        e.setHyperlinkAnchor(element.getHyperlinkAnchor());
+        copyBox(element.getLineBox(), e.getLineBox());
+        // Текст и результат измерения.
+        t.originalText = originalText;
+        e.setText(element.getFullText());
+        e.setTextHeight(element.getTextHeight());
+        e.setLineSpacingFactor(element.getLineSpacingFactor());
+        e.setLeadingOffset(element.getLeadingOffset());
+        e.setTextTruncateIndex(element.getTextTruncateIndex());
+        e.setTextTruncateSuffix(element.getTextTruncateSuffix());
+        e.setLineBreakOffsets(element.getLineBreakOffsets());
+        return t;
+    }
+
+    private static void copyBox(JRLineBox src, JRLineBox dst) {
+        dst.setPadding(src.getOwnPadding());
+        dst.setLeftPadding(src.getOwnLeftPadding());
+        dst.setRightPadding(src.getOwnRightPadding());
+        dst.setTopPadding(src.getOwnTopPadding());
+        dst.setBottomPadding(src.getOwnBottomPadding());
+        copyPen(src.getPen(), dst.getPen());
+        copyPen(src.getLeftPen(), dst.getLeftPen());
+        copyPen(src.getRightPen(), dst.getRightPen());
+        copyPen(src.getTopPen(), dst.getTopPen());
+        copyPen(src.getBottomPen(), dst.getBottomPen());
+    }
+
+    private static void copyPen(JRPen src, JRPen dst) {
+        dst.setLineWidth(src.getOwnLineWidth());
+        dst.setLineStyle(src.getOwnLineStyleValue());
+        dst.setLineColor(src.getOwnLineColor());
+    }
+
+    /** Текст без обрезки (установленный последним). */
+    public String text() {
+        return originalText;
+    }
+
     // Увеличивает высоту вплоть до максимальной, если текст не влезает.
     public XRText expandY(int maxheight) {
         int oldh = height();
@@ -4,6 +4,9 @@
  */
 package fbdbengine;
 
+import org.firebirdsql.gds.TransactionParameterBuffer;
+import org.firebirdsql.jdbc.FirebirdConnection;
+
 import java.sql.Array;
 import java.sql.Blob;
 import java.sql.CallableStatement;
@@ -31,6 +34,32 @@ import java.util.concurrent.Executor;
  */
 public class FB_Connection implements java.sql.Connection {
 
+    /**
+     * Профили параметров транзакций соединения.
+     */
+    public static enum TxProfile {
+
+        /**
+         * Параметры по умолчанию (по уровню изоляции соединения).
+         */
+        DEFAULT,
+        /**
+         * Только чтение, read committed (rec_version). Такая транзакция не удерживает маркер старейшей активной
+         * транзакции БД, поэтому длительные чтения отчётов не мешают сборке мусора.
+         */
+        READ_ONLY,
+        /**
+         * Короткая пишущая транзакция: read committed (rec_version), ожидание блокировок не дольше
+         * {@link #SHORT_WRITE_LOCK_TIMEOUT} сек.
+         */
+        SHORT_WRITE
+    }
+
+    /**
+     * Время ожидания блокировок для профиля {@link TxProfile#SHORT_WRITE} (сек).
+     */
+    public static final int SHORT_WRITE_LOCK_TIMEOUT = 10;
+
     /**
      * Ссылка на базу данных к которой создано соединение.
      */
@@ -40,6 +69,22 @@ public class FB_Connection implements java.sql.Connection {
      * имплементированными методами.
      */
     private final Connection connection;
+    /**
+     * Соединение пула (null - соединение не из пула).
+     */
+    private final FB_Pool.Entry poolEntry;
+    /**
+     * Признак закрытия соединения (для соединения из пула физическое соединение остаётся открытым).
+     */
+    private boolean isClosed = false;
+    /**
+     * Кеш подготовленных выражений (для соединения из пула - кеш физического соединения, null - не используется).
+     */
+    private final FB_StatementCache statements;
+    /**
+     * Текущий профиль параметров транзакций.
+     */
+    private TxProfile txProfile = TxProfile.DEFAULT;
 
     /**
      * Конструктор.
@@ -54,6 +99,8 @@ public class FB_Connection implements java.sql.Connection {
             throw new RuntimeException("Base is null! It must be defined!");
         }
         this.database = base;
+        this.poolEntry = null;
+        this.statements = null; // Соединение без пула закрывается после операции - кешировать выражения незачем.
         connection = database.getDatasource().getConnection(user, password);
         connection.setAutoCommit(base.isAutoCommit());
         connection.setHoldability(base.isResultHoldable()
@@ -61,6 +108,107 @@ public class FB_Connection implements java.sql.Connection {
                 : ResultSet.CLOSE_CURSORS_AT_COMMIT);
     }
 
+    /**
+     * Конструктор для соединения из пула.
+     *
+     * @param base
+     * @param entry
+     * @throws SQLException
+     */
+    FB_Connection(FB_Database base, FB_Pool.Entry entry) throws SQLException {
+        this.database = base;
+        this.poolEntry = entry;
+        this.statements = entry.statements;
+        connection = entry.connection;
+        try {
+            connection.setAutoCommit(base.isAutoCommit());
+            connection.setHoldability(base.isResultHoldable()
+                    ? ResultSet.HOLD_CURSORS_OVER_COMMIT
+                    : ResultSet.CLOSE_CURSORS_AT_COMMIT);
+        } catch (SQLException ex) {
+            base.getPool().release(entry, true);
+            throw ex;
+        }
+    }
+
+    /**
+     * Установка профиля параметров транзакций. Действует со следующей транзакции, поэтому устанавливается сразу после
+     * открытия соединения или после подтверждения/отката.
+     *
+     * @param profile Профиль.
+     * @return Соединение.
+     * @throws SQLException
+     */
+    public FB_Connection setTxProfile(TxProfile profile) throws SQLException {
+        if (profile == null) profile = TxProfile.DEFAULT;
+        if (profile == txProfile) return this;
+        FirebirdConnection fc = connection instanceof FirebirdConnection
+                ? (FirebirdConnection) connection : connection.unwrap(FirebirdConnection.class);
+        TransactionParameterBuffer tpb;
+        switch (profile) {
+            case READ_ONLY:
+                tpb = fc.createTransactionParameterBuffer();
+                tpb.addArgument(TransactionParameterBuffer.READ_COMMITTED);
+                tpb.addArgument(TransactionParameterBuffer.REC_VERSION);
+                tpb.addArgument(TransactionParameterBuffer.READ);
+                tpb.addArgument(TransactionParameterBuffer.NOWAIT);
+                break;
+            case SHORT_WRITE:
+                tpb = fc.createTransactionParameterBuffer();
+                tpb.addArgument(TransactionParameterBuffer.READ_COMMITTED);
+                tpb.addArgument(TransactionParameterBuffer.REC_VERSION);
+                tpb.addArgument(TransactionParameterBuffer.WRITE);
+                tpb.addArgument(TransactionParameterBuffer.WAIT);
+                tpb.addArgument(TransactionParameterBuffer.LOCK_TIMEOUT, SHORT_WRITE_LOCK_TIMEOUT);
+                break;
+            default:
+                tpb = fc.getTransactionParameters(connection.getTransactionIsolation());
+        }
+        fc.setTransactionParameters(tpb);
+        txProfile = profile;
+        return this;
+    }
+
+    public TxProfile getTxProfile() {
+        return txProfile;
+    }
+
+    /**
+     * Признак соединения из пула.
+     *
+     * @return
+     */
+    public boolean isPooled() {
+        return poolEntry != null;
+    }
+
+    /**
+     * Получение подготовленного выражения из кеша соединения.
+     *
+     * @param sql    Текст запроса.
+     * @param type   Тип результирующего набора.
+     * @param concur Тип взаимодействия результирующего набора.
+     * @param hold   Удержание результирующего набора после подтверждения.
+     * @return Выражение или null, если кеш не используется или такое выражение уже занято.
+     * @throws SQLException
+     */
+    PreparedStatement prepareCached(String sql, int type, int concur, int hold) throws SQLException {
+        if (statements == null) return null;
+        return statements.acquire(connection, sql, type, concur, hold);
+    }
+
+    /**
+     * Освобождение выражения запроса: выражение из кеша возвращается в кеш, остальные закрываются.
+     *
+     * @param ps Выражение.
+     * @throws SQLException
+     */
+    void releaseStatement(PreparedStatement ps) throws SQLException {
+        if (statements == null || !statements.release(ps)) {
+            if (!ps.isClosed()) ps.close();
+        }
+    }
+
     public FB_Database getDatabase() {
         return database;
     }
@@ -77,6 +225,30 @@ public class FB_Connection implements java.sql.Connection {
      * @throws SQLException
      */
     public void close(boolean iscommit) throws SQLException {
+        if (poolEntry != null) {
+            // Соединение пула: завершаем транзакцию и возвращаем физическое соединение в пул.
+            if (isClosed) return;
+            isClosed = true;
+            boolean broken = true;
+            try {
+                if (statements != null) statements.closeUsed(); // Незакрытые запросы.
+                if (!connection.isClosed()) {
+                    if (connection.getAutoCommit() == false) {
+                        if (iscommit) {
+                            connection.commit();
+                        } else {
+                            connection.rollback();
+                        }
+                    }
+                    // В пул соединение возвращается с параметрами транзакций по умолчанию.
+                    setTxProfile(TxProfile.DEFAULT);
+                    broken = false;
+                }
+            } finally {
+                database.getPool().release(poolEntry, broken);
+            }
+            return;
+        }
         if (connection != null && !connection.isClosed()) {
             if (connection.getAutoCommit() == false) {
                 if (iscommit) {
@@ -133,6 +305,25 @@ public class FB_Connection implements java.sql.Connection {
         return new FB_Query(this, sql).execute(parameters);
     }
 
+    /**
+     * Выполнение запроса пакетом для всех наборов параметров (без подтверждения). Jaybird 2.2 выполняет пакет по одному
+     * обращению к БД на каждый набор параметров - выигрыш только в однократной подготовке выражения.
+     *
+     * @param sql        Текст запроса (не должен возвращать набор результатов).
+     * @param parameters Наборы параметров.
+     * @return Кол-во изменённых записей по каждому набору параметров.
+     * @throws SQLException
+     */
+    public int[] executeBatch(String sql, Iterable<Object[]> parameters) throws SQLException {
+        FB_Query q = new FB_Query(this, sql);
+        try {
+            for (Object[] p : parameters) q.addBatch(p);
+            return q.executeBatch();
+        } finally {
+            q.closeSafe();
+        }
+    }
+
     ////////////////////////////////////////////////////////////////////////
     // <editor-fold defaultstate="collapsed" desc="Имплементация методов делегированием!">
     @Override
@@ -184,7 +375,7 @@ public class FB_Connection implements java.sql.Connection {
 
     @Override
     public boolean isClosed() throws SQLException {
-        return connection.isClosed();
+        return isClosed || connection.isClosed();
     }
 
     @Override
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2014, Aleksey Nikolaevich Dokshin. All right reserved.
+ * Contacts: dant.it@gmail.com, dokshin@list.ru.
+ */
+package fbdbengine;
+
+import java.io.Closeable;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Курсор по результатам выполненного запроса: записи читаются из БД по мере перебора (порциями по размеру фетча) и
+ * преобразуются в объекты. Курсор однократный, после перебора всех записей запрос закрывается автоматически, при
+ * досрочном прекращении перебора курсор должен быть закрыт (try-with-resources).
+ * <p>
+ * Ошибки БД при переборе передаются исключением {@link CursorException}.
+ *
+ * @author Докшин Алексей Николаевич <dant.it@gmail.com>
+ */
+public class FB_Cursor<T> implements Iterator<T>, Closeable {
+
+    /**
+     * Ошибка БД при переборе курсора.
+     */
+    @SuppressWarnings("serial")
+    public static class CursorException extends RuntimeException {
+
+        public CursorException(SQLException cause) {
+            super(cause.getMessage(), cause);
+        }
+
+        public SQLException getSQLException() {
+            return (SQLException) getCause();
+        }
+    }
+
+    private final FB_Query query;
+    private final FB_Query.RowMapper<T> mapper;
+    private T nextItem = null;
+    private boolean isFetched = false, isEnd = false;
+
+    FB_Cursor(FB_Query query, FB_Query.RowMapper<T> mapper) {
+        this.query = query;
+        this.mapper = mapper;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!isFetched && !isEnd) {
+            try {
+                if (query.next()) {
+                    nextItem = mapper.map(query);
+                    isFetched = true;
+                } else {
+                    close();
+                }
+            } catch (SQLException ex) {
+                close();
+                throw new CursorException(ex);
+            }
+        }
+        return isFetched;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        T item = nextItem;
+        nextItem = null;
+        isFetched = false;
+        return item;
+    }
+
+    /**
+     * Поток объектов курсора (закрытие потока закрывает курсор).
+     *
+     * @return Последовательный поток.
+     */
+    public Stream<T> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL),
+                false).onClose(this::close);
+    }
+
+    /**
+     * Закрытие курсора и запроса (без подтверждения изменений).
+     */
+    @Override
+    public void close() {
+        if (isEnd) return;
+        isEnd = true;
+        isFetched = false;
+        nextItem = null;
+        query.closeSafe();
+    }
+}
@@ -6,6 +6,14 @@ package fbdbengine;
 
 import java.io.Closeable;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.sql.DataSource;
 import org.firebirdsql.pool.FBSimpleDataSource;
 
@@ -70,6 +78,36 @@ public class FB_Database implements Closeable {
      * Автокоммит. Значение по умолчанию для создаваемых соединений.
      */
     private final boolean isAutoCommit;
+    /**
+     * Пул соединений (null - каждое соединение создаётся заново).
+     */
+    private FB_Pool pool = null;
+    /**
+     * Размер кеша подготовленных выражений соединения (0 - без кеширования).
+     */
+    private int statementCacheSize = 0;
+    private final FB_StatementCache.Stats statementStats = new FB_StatementCache.Stats();
+    /**
+     * Размер фетча по умолчанию для создаваемых запросов (0 - по умолчанию драйвера).
+     */
+    private int fetchSize = 0;
+    /**
+     * Статистика выполнения запросов.
+     */
+    private final FB_SqlStats sqlStats = new FB_SqlStats();
+    /**
+     * Исполнитель асинхронных запросов (создаётся при первом обращении).
+     */
+    private ThreadPoolExecutor asyncExecutor = null;
+    private int asyncThreads = 4, asyncQueueSize = 64;
+
+    /**
+     * Асинхронный запрос в собственном соединении.
+     */
+    @FunctionalInterface
+    public interface AsyncTask<T> {
+        T run(FB_Connection con) throws Exception;
+    }
 
     /**
      * Конструктор. Инициализация переменных, проверка наличия драйверов.
@@ -130,6 +168,16 @@ public class FB_Database implements Closeable {
      */
     @Override
     public void close() {
+        synchronized (this) {
+            if (asyncExecutor != null) {
+                asyncExecutor.shutdown();
+                asyncExecutor = null;
+            }
+        }
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
         if (dataSource != null) {
             // Необходимо было при использовании пула соединений для его освобождения!
             // При неиспользовании пула - соединения отпускаются сразу при закрытии соединения.
@@ -138,6 +186,190 @@ public class FB_Database implements Closeable {
         }
     }
 
+    /**
+     * Включение пула соединений для соединений с параметрами базы (см. {@link FB_Pool}).
+     *
+     * @param minsize          Минимальное кол-во соединений.
+     * @param maxsize          Максимальное кол-во соединений.
+     * @param idletimeout      Время простоя до закрытия соединения (мсек).
+     * @param borrowtimeout    Максимальное время ожидания свободного соединения (мсек).
+     * @param validateinterval Время простоя, после которого соединение проверяется перед выдачей (мсек).
+     * @param validationquery  Запрос проверки соединения.
+     */
+    public synchronized void enablePool(int minsize, int maxsize, long idletimeout, long borrowtimeout,
+                                        long validateinterval, String validationquery) {
+        if (pool != null) pool.close();
+        pool = new FB_Pool(this, minsize, maxsize, idletimeout, borrowtimeout, validateinterval, validationquery);
+        pool.start();
+    }
+
+    /**
+     * Установка параметров исполнителя асинхронных запросов. Каждая задача исполнителя открывает собственное соединение,
+     * поэтому при включенном пуле кол-во потоков следует согласовать с максимальным кол-вом соединений пула.
+     *
+     * @param threads   Кол-во потоков.
+     * @param queuesize Максимальная очередь задач (при переполнении задача выполняется в вызывающем потоке).
+     */
+    public synchronized void setAsyncExecutor(int threads, int queuesize) {
+        asyncThreads = Math.max(1, threads);
+        asyncQueueSize = Math.max(1, queuesize);
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdown();
+            asyncExecutor = null;
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getAsyncExecutor() {
+        if (asyncExecutor == null) {
+            AtomicInteger n = new AtomicInteger();
+            asyncExecutor = new ThreadPoolExecutor(asyncThreads, asyncThreads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(asyncQueueSize), (r) -> {
+                Thread t = new Thread(r, "FB_Database-async-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+            asyncExecutor.allowCoreThreadTimeOut(true);
+        }
+        return asyncExecutor;
+    }
+
+    /**
+     * Выполнение задачи на исполнителе асинхронных запросов (для задач, самостоятельно открывающих соединения).
+     *
+     * @param task Задача.
+     * @return Результат задачи (ошибка задачи - исключительное завершение с исходным исключением).
+     */
+    public <T> CompletableFuture<T> supplyAsync(Callable<T> task) {
+        CompletableFuture<T> f = new CompletableFuture<>();
+        try {
+            getAsyncExecutor().execute(() -> {
+                if (f.isDone()) return; // Отменена до начала выполнения.
+                try {
+                    f.complete(task.call());
+                } catch (Throwable ex) {
+                    f.completeExceptionally(ex);
+                }
+            });
+        } catch (Exception ex) {
+            f.completeExceptionally(ex);
+        }
+        return f;
+    }
+
+    /**
+     * Асинхронный запрос в собственном соединении. Соединение закрывается с откатом транзакции (если нужно сохранение
+     * данных - это надо сделать в теле задачи).
+     *
+     * @param profile Профиль транзакций соединения (null - по умолчанию).
+     * @param task    Задача.
+     * @return Результат задачи.
+     */
+    public <T> CompletableFuture<T> queryAsync(FB_Connection.TxProfile profile, AsyncTask<T> task) {
+        return supplyAsync(() -> {
+            FB_Connection con = connect();
+            try {
+                con.setTxProfile(profile);
+                return task.run(con);
+            } finally {
+                con.closeSafe();
+            }
+        });
+    }
+
+    public <T> CompletableFuture<T> queryAsync(AsyncTask<T> task) {
+        return queryAsync(null, task);
+    }
+
+    /**
+     * Асинхронная загрузка результатов запроса в список (транзакция только для чтения).
+     *
+     * @param sql        Текст запроса.
+     * @param mapper     Преобразование записи в объект.
+     * @param parameters Параметры запроса.
+     * @return Список объектов.
+     */
+    public <T> CompletableFuture<List<T>> queryAsync(String sql, FB_Query.RowMapper<T> mapper, Object... parameters) {
+        return queryAsync(FB_Connection.TxProfile.READ_ONLY, (con) -> {
+            ArrayList<T> list = new ArrayList<>();
+            FB_Query q = con.execute(sql, parameters);
+            try {
+                while (q.next()) list.add(mapper.map(q));
+            } finally {
+                q.closeSafe();
+            }
+            return list;
+        });
+    }
+
+    /**
+     * Пул соединений (null - не используется).
+     *
+     * @return
+     */
+    public FB_Pool getPool() {
+        return pool;
+    }
+
+    /**
+     * Установка размера кеша подготовленных выражений для новых соединений (0 - без кеширования). Кеш действует только
+     * при включенном пуле соединений: без пула соединение закрывается после каждой операции вместе с кешем.
+     *
+     * @param size Кол-во выражений в кеше соединения.
+     */
+    public void setStatementCacheSize(int size) {
+        statementCacheSize = Math.max(0, size);
+    }
+
+    /**
+     * Статистика выполнения запросов (по нормализованному тексту запроса).
+     *
+     * @return Статистика.
+     */
+    public FB_SqlStats getSqlStats() {
+        return sqlStats;
+    }
+
+    /**
+     * Установка размера фетча по умолчанию для создаваемых запросов.
+     *
+     * @param size Кол-во записей, считываемых из БД за одно обращение (0 - по умолчанию драйвера).
+     */
+    public void setFetchSize(int size) {
+        fetchSize = Math.max(0, size);
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * Создание кеша подготовленных выражений для нового соединения пула.
+     *
+     * @return Кеш или null, если кеширование отключено.
+     */
+    FB_StatementCache newStatementCache() {
+        return statementCacheSize > 0 ? new FB_StatementCache(statementCacheSize, statementStats) : null;
+    }
+
+    /**
+     * Состояние кешей подготовленных выражений.
+     *
+     * @return Строка состояния или null, если кеширование отключено (или не используется пул соединений).
+     */
+    public String getStatementCacheStats() {
+        return statementCacheSize > 0 && pool != null ? statementStats.toString() : null;
+    }
+
+    /**
+     * Состояние пула соединений.
+     *
+     * @return Строка состояния или null, если пул не используется.
+     */
+    public String getPoolStats() {
+        FB_Pool p = pool;
+        return p != null ? p.getStats() : null;
+    }
+
     public boolean isAutoCommit() {
         return isAutoCommit;
     }
@@ -164,6 +396,19 @@ public class FB_Database implements Closeable {
         return url;
     }
 
+    public String getUser() {
+        return user;
+    }
+
+    /**
+     * Только для классов пакета (подключение менеджера событий).
+     *
+     * @return
+     */
+    String getPassword() {
+        return password;
+    }
+
     /**
      * Проверка на работоспособность.
      *
@@ -187,6 +432,8 @@ public class FB_Database implements Closeable {
     }
 
     public FB_Connection connect() throws SQLException {
+        FB_Pool p = pool;
+        if (p != null) return new FB_Connection(this, p.borrow());
         return new FB_Connection(this, user, password);
     }
 
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2013, Aleksey Nikolaevich Dokshin. All right reserved.
+ * Contacts: dant.it@gmail.com, dokshin@list.ru.
+ */
+package fbdbengine;
+
+import java.io.Closeable;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.firebirdsql.event.DatabaseEvent;
+import org.firebirdsql.event.EventListener;
+import org.firebirdsql.event.FBEventManager;
+
+/**
+ * Получение событий БД (POST_EVENT) через отдельное подключение менеджера событий Jaybird.
+ * <p>
+ * Типичное использование: создание экземпляра для базы, регистрация обработчиков событий методом listen(), затем
+ * start(). Обработчики вызываются в потоке менеджера событий - должны выполняться быстро.
+ *
+ * @author Докшин Алексей Николаевич <dant.it@gmail.com>
+ */
+public class FB_Events implements Closeable {
+
+    /**
+     * Обработчик события БД.
+     */
+    @FunctionalInterface
+    public interface Listener {
+
+        public void run(String name, int count);
+    }
+
+    /** Служебное событие проверки подключения (не посылается - подписка на него только проверяет подключение). */
+    private static final String PROBE_EVENT = "FB_EVENTS_PROBE";
+
+    private final FB_Database base;
+    private final LinkedHashMap<String, Listener> listeners = new LinkedHashMap<>();
+    private FBEventManager manager = null;
+
+    public FB_Events(FB_Database base) {
+        this.base = base;
+    }
+
+    /**
+     * Регистрация обработчика события. Должна выполняться до start().
+     *
+     * @param name     Имя события (как в POST_EVENT).
+     * @param listener Обработчик.
+     * @return Указатель на объект.
+     */
+    public synchronized FB_Events listen(String name, Listener listener) {
+        listeners.put(name, listener);
+        return this;
+    }
+
+    /**
+     * Подключение к БД и подписка на зарегистрированные события.
+     *
+     * @throws java.sql.SQLException
+     */
+    public synchronized void start() throws SQLException {
+        if (manager != null) return;
+        // URL базы: хост[/порт]:путь к бд.
+        String url = base.getURL();
+        int pos = url.indexOf(':');
+        // Для Windows-пути вида C:\... хост не указан.
+        String host = pos > 1 ? url.substring(0, pos) : "localhost";
+        String path = pos > 1 ? url.substring(pos + 1) : url;
+        int port = 3050;
+        int ps = host.indexOf('/');
+        if (ps != -1) {
+            port = Integer.parseInt(host.substring(ps + 1));
+            host = host.substring(0, ps);
+        }
+
+        FBEventManager em = new FBEventManager();
+        em.setHost(host);
+        em.setPort(port);
+        em.setDatabase(path);
+        em.setUser(base.getUser());
+        em.setPassword(base.getPassword());
+        em.connect();
+        try {
+            for (Map.Entry<String, Listener> e : listeners.entrySet()) {
+                final Listener l = e.getValue();
+                em.addEventListener(e.getKey(), new EventListener() {
+                    @Override
+                    public void eventOccurred(DatabaseEvent event) {
+                        l.run(event.getEventName(), event.getEventCount());
+                    }
+                });
+            }
+        } catch (SQLException ex) {
+            try {
+                em.disconnect();
+            } catch (SQLException ignore) {
+            }
+            throw ex;
+        }
+        manager = em;
+    }
+
+    public synchronized boolean isStarted() {
+        return manager != null && manager.isConnected();
+    }
+
+    /**
+     * Проверка подключения менеджера событий. Менеджер не замечает разрыв подключения (перезапуск сервера, сеть) сам,
+     * поэтому выполняется подписка на служебное событие и её снятие - обмен с сервером.
+     *
+     * @return true - подключение работает, false - не подключен или подключение разорвано (нужен повторный start()).
+     */
+    public synchronized boolean check() {
+        if (!isStarted()) return false;
+        EventListener probe = new EventListener() {
+            @Override
+            public void eventOccurred(DatabaseEvent event) {
+            }
+        };
+        try {
+            manager.addEventListener(PROBE_EVENT, probe);
+            manager.removeEventListener(PROBE_EVENT, probe);
+            return true;
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Отключение от БД (подписки снимаются).
+     */
+    @Override
+    public synchronized void close() {
+        if (manager != null) {
+            try {
+                manager.disconnect();
+            } catch (SQLException ignore) {
+            }
+            manager = null;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2014, Aleksey Nikolaevich Dokshin. All right reserved.
+ * Contacts: dant.it@gmail.com, dokshin@list.ru.
+ */
+package fbdbengine;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Пул физических соединений к базе. Соединения FB_Connection, полученные через пул, при закрытии возвращают физическое
+ * соединение в пул (после отката/подтверждения транзакции).
+ * <p>
+ * Минимальное кол-во соединений создаётся при запуске и поддерживается фоновым потоком. Простаивающие дольше заданного
+ * времени соединения закрываются (кроме минимального кол-ва). Соединение, простаивавшее дольше интервала проверки,
+ * перед выдачей проверяется запросом проверки. Если все соединения заняты и достигнут максимум - запрос соединения
+ * ожидает освобождения не дольше заданного времени.
+ *
+ * @author Докшин Алексей Николаевич <dant.it@gmail.com>
+ */
+public class FB_Pool implements Closeable {
+
+    /**
+     * Физическое соединение пула.
+     */
+    static class Entry {
+
+        final Connection connection;
+        /** Кеш подготовленных выражений соединения (null - не используется). */
+        final FB_StatementCache statements;
+        final long created;
+        long lastUsed;
+
+        Entry(Connection connection, FB_StatementCache statements) {
+            this.connection = connection;
+            this.statements = statements;
+            this.created = System.currentTimeMillis();
+            this.lastUsed = created;
+        }
+    }
+
+    /** Интервал пополнения пула до минимума, если закрытие простаивающих соединений отключено (мсек). */
+    private static final long FILL_INTERVAL = 60000;
+
+    private final FB_Database base;
+    private final int minSize, maxSize;
+    private final long idleTimeout, borrowTimeout, validateInterval;
+    private final String validationQuery;
+
+    /** Свободные соединения (последнее возвращённое выдаётся первым). */
+    private final ArrayDeque<Entry> idle = new ArrayDeque<>();
+    /** Всего соединений (свободных, выданных и создаваемых). */
+    private int total = 0;
+    private boolean isClosed = false;
+    private Thread evictor = null;
+
+    // Счётчики.
+    private long borrows = 0, waits = 0, creates = 0, destroys = 0, timeouts = 0, invalids = 0;
+    private long waitMsec = 0;
+
+    /**
+     * Конструктор.
+     *
+     * @param base             База данных.
+     * @param minsize          Минимальное кол-во соединений.
+     * @param maxsize          Максимальное кол-во соединений.
+     * @param idletimeout      Время простоя, после которого соединение сверх минимума закрывается (мсек).
+     * @param borrowtimeout    Максимальное время ожидания свободного соединения (мсек).
+     * @param validateinterval Время простоя, после которого соединение проверяется перед выдачей (мсек).
+     * @param validationquery  Запрос проверки соединения.
+     */
+    public FB_Pool(FB_Database base, int minsize, int maxsize, long idletimeout, long borrowtimeout,
+                   long validateinterval, String validationquery) {
+        this.base = base;
+        this.minSize = Math.max(0, minsize);
+        this.maxSize = Math.max(1, Math.max(minsize, maxsize));
+        this.idleTimeout = idletimeout;
+        this.borrowTimeout = borrowtimeout;
+        this.validateInterval = validateinterval;
+        this.validationQuery = validationquery;
+    }
+
+    /**
+     * Запуск фонового обслуживания пула: создание минимального кол-ва соединений, затем периодически закрытие
+     * простаивающих соединений и пополнение пула до минимума (после закрытия по простою и закрытия неисправных).
+     */
+    public synchronized void start() {
+        if (evictor != null || (idleTimeout <= 0 && minSize == 0)) return;
+        evictor = new Thread(() -> {
+            try {
+                fill();
+                while (true) {
+                    Thread.sleep(idleTimeout > 0 ? Math.max(1000, idleTimeout / 2) : FILL_INTERVAL);
+                    if (idleTimeout > 0) evict();
+                    fill();
+                }
+            } catch (InterruptedException ignore) {
+            }
+        }, "FB_Pool-evictor");
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+
+    /**
+     * Получение физического соединения из пула.
+     *
+     * @return Соединение.
+     * @throws SQLException Если не удалось создать соединение или истекло время ожидания.
+     */
+    Entry borrow() throws SQLException {
+        long start = System.currentTimeMillis();
+        boolean waited = false;
+        while (true) {
+            Entry e = null;
+            boolean iscreate = false;
+            synchronized (this) {
+                while (true) {
+                    if (isClosed) throw new SQLException("Пул соединений закрыт!");
+                    e = idle.pollFirst();
+                    if (e != null) break;
+                    if (total < maxSize) {
+                        total++;
+                        iscreate = true;
+                        break;
+                    }
+                    long rest = borrowTimeout - (System.currentTimeMillis() - start);
+                    if (rest <= 0) {
+                        timeouts++;
+                        throw new SQLException("Нет свободных соединений к БД (ожидание " + borrowTimeout + " мсек)!");
+                    }
+                    if (!waited) {
+                        waited = true;
+                        waits++;
+                    }
+                    try {
+                        wait(rest);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Ожидание соединения прервано!", ex);
+                    }
+                }
+            }
+
+            if (iscreate) {
+                try {
+                    e = new Entry(base.getDatasource().getConnection(base.getUser(), base.getPassword()),
+                            base.newStatementCache());
+                } catch (SQLException ex) {
+                    synchronized (this) {
+                        total--;
+                        notifyAll();
+                    }
+                    throw ex;
+                }
+                synchronized (this) {
+                    creates++;
+                }
+            } else if (System.currentTimeMillis() - e.lastUsed > validateInterval && !isValid(e)) {
+                destroy(e);
+                synchronized (this) {
+                    invalids++;
+                }
+                continue;
+            }
+
+            synchronized (this) {
+                borrows++;
+                if (waited) waitMsec += System.currentTimeMillis() - start;
+            }
+            return e;
+        }
+    }
+
+    /**
+     * Возврат физического соединения в пул. Транзакция соединения уже должна быть завершена.
+     *
+     * @param e      Соединение.
+     * @param broken Признак ошибки соединения (будет закрыто).
+     */
+    void release(Entry e, boolean broken) {
+        boolean isok = !broken;
+        if (isok) {
+            try {
+                isok = !e.connection.isClosed();
+            } catch (SQLException ex) {
+                isok = false;
+            }
+        }
+        synchronized (this) {
+            if (isok && !isClosed) {
+                e.lastUsed = System.currentTimeMillis();
+                idle.addFirst(e);
+                notifyAll();
+                return;
+            }
+        }
+        destroy(e);
+    }
+
+    private boolean isValid(Entry e) {
+        try (Statement st = e.connection.createStatement(); ResultSet rs = st.executeQuery(validationQuery)) {
+            rs.next();
+            if (!e.connection.getAutoCommit()) e.connection.rollback();
+            return true;
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    private void destroy(Entry e) {
+        if (e.statements != null) e.statements.close();
+        try {
+            e.connection.close();
+        } catch (Exception ignore) {
+        }
+        synchronized (this) {
+            total--;
+            destroys++;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Закрытие соединений, простаивающих дольше заданного времени (сверх минимального кол-ва).
+     */
+    void evict() {
+        long time = System.currentTimeMillis() - idleTimeout;
+        ArrayDeque<Entry> list = new ArrayDeque<>();
+        synchronized (this) {
+            // Самые давние - в конце очереди.
+            Iterator<Entry> it = idle.descendingIterator();
+            while (it.hasNext() && total - list.size() > minSize) {
+                Entry e = it.next();
+                if (e.lastUsed >= time) break;
+                it.remove();
+                list.add(e);
+            }
+        }
+        for (Entry e : list) destroy(e);
+    }
+
+    /**
+     * Создание соединений до минимального кол-ва. Ошибка подключения не выбрасывается - пул пополняется при следующем
+     * обслуживании или по запросам соединений.
+     */
+    void fill() {
+        while (true) {
+            synchronized (this) {
+                if (isClosed || total >= minSize) return;
+                total++;
+            }
+            Entry e;
+            try {
+                e = new Entry(base.getDatasource().getConnection(base.getUser(), base.getPassword()),
+                        base.newStatementCache());
+            } catch (SQLException ex) {
+                synchronized (this) {
+                    total--;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                creates++;
+                if (!isClosed) {
+                    idle.addLast(e);
+                    notifyAll();
+                    continue;
+                }
+            }
+            destroy(e); // Пул закрыт во время создания соединения.
+            return;
+        }
+    }
+
+    /**
+     * Закрытие пула и всех свободных соединений (выданные закрываются при возврате).
+     */
+    @Override
+    public void close() {
+        ArrayDeque<Entry> list;
+        synchronized (this) {
+            isClosed = true;
+            list = new ArrayDeque<>(idle);
+            idle.clear();
+            notifyAll();
+            if (evictor != null) evictor.interrupt();
+            evictor = null;
+        }
+        for (Entry e : list) destroy(e);
+    }
+
+    /**
+     * Состояние пула: соединения и счётчики.
+     *
+     * @return Строка состояния.
+     */
+    public synchronized String getStats() {
+        return String.format("соединений %d/%d (свободно %d), выдано %d, ожиданий %d (%d мсек), таймаутов %d, "
+                        + "создано %d, закрыто %d, непрошедших проверку %d",
+                total, maxSize, idle.size(), borrows, waits, waitMsec, timeouts, creates, destroys, invalids);
+    }
+}
@@ -15,6 +15,7 @@ import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.util.Date;
+import java.util.stream.Stream;
 //import javafx.beans.property.Property;
 
 /**
@@ -27,6 +28,14 @@ import java.util.Date;
  */
 public class FB_Query implements Closeable {
 
+    /**
+     * Преобразование текущей записи набора результатов запроса в объект.
+     */
+    @FunctionalInterface
+    public interface RowMapper<T> {
+        T map(FB_Query q) throws SQLException;
+    }
+
     private FB_Database base;
     // Соединение с БД.
     private FB_Connection con;
@@ -62,6 +71,19 @@ public class FB_Query implements Closeable {
     //       false - результаты уничтожаются после commit.
     // в случае true при выполнении запроса происходит полный фетч в кеш (!)
     private boolean isResultHold;
+    // Кол-во записей, считываемых из БД за одно обращение (0 - по умолчанию драйвера).
+    private int fetchSize;
+    // Запись с индексами полей для преобразователя FB_Row (определяются один раз для набора результатов).
+    private FB_Row row;
+    // Кол-во наборов параметров, добавленных в пакет и ещё не выполненных.
+    private int batchCount;
+    // Профиль транзакций собственного соединения (null - по умолчанию).
+    private FB_Connection.TxProfile txProfile;
+    // Статистика запроса (null - не ведётся) и накопленные время чтения записей (нсек) и кол-во записей.
+    private FB_SqlStats.Entry stats;
+    private long fetchNanos, fetchRows;
+    // Порция чтения записей драйвером, если размер порции не задан (как в Jaybird).
+    private static final int DEFAULT_FETCH_BATCH = 400;
 
     /**
      * Служебный комбинированный корструктор запроса. Если указано внешнее соединения, то используется оно. В противном
@@ -102,6 +124,7 @@ public class FB_Query implements Closeable {
         this.paramIndex = 0;
         this.resultType = ResultSet.TYPE_FORWARD_ONLY;
         this.resultConcur = ResultSet.CONCUR_READ_ONLY;
+        this.fetchSize = this.base.getFetchSize();
     }
 
     FB_Query(FB_Database base, String sql) throws SQLException {
@@ -140,6 +163,7 @@ public class FB_Query implements Closeable {
     public synchronized FB_Connection getConnection() throws SQLException {
         if (con == null && !isExternalConnection) {
             con = base.connect();
+            if (txProfile != null) con.setTxProfile(txProfile);
             con.setHoldability(isResultHold
                     ? ResultSet.HOLD_CURSORS_OVER_COMMIT
                     : ResultSet.CLOSE_CURSORS_AT_COMMIT);
@@ -186,6 +210,39 @@ public class FB_Query implements Closeable {
         return this;
     }
 
+    /**
+     * Устанавливает удержание результатов после commit (действует, если запрос ещё не подготовлен).
+     *
+     * @param ishold Флаг: true - результаты удерживаются (полный фетч в кеш), false - курсор закрывается при commit.
+     * @return Указатель на запрос.
+     */
+    public FB_Query setResultHold(boolean ishold) {
+        isResultHold = ishold;
+        return this;
+    }
+
+    /**
+     * Устанавливает кол-во записей, считываемых из БД за одно обращение (действует, если запрос ещё не подготовлен).
+     *
+     * @param size Размер фетча (0 - по умолчанию драйвера).
+     * @return Указатель на запрос.
+     */
+    public FB_Query setFetchSize(int size) {
+        fetchSize = Math.max(0, size);
+        return this;
+    }
+
+    /**
+     * Устанавливает профиль транзакций собственного соединения запроса (действует, если соединение ещё не открыто).
+     *
+     * @param profile Профиль.
+     * @return Указатель на запрос.
+     */
+    public FB_Query setTxProfile(FB_Connection.TxProfile profile) {
+        txProfile = profile;
+        return this;
+    }
+
     public FB_Query setSql(String sql) {
         this.sql = sql;
         this.isPrepared = false;
@@ -200,12 +257,45 @@ public class FB_Query implements Closeable {
      */
     public synchronized FB_Query prepare() throws SQLException {
         if (!isPrepared) {
-            ps = getConnection().prepareStatement(sql, resultType, resultConcur);
+            releaseStatement();
+            FB_Connection c = getConnection();
+            int hold = isResultHold ? ResultSet.HOLD_CURSORS_OVER_COMMIT : ResultSet.CLOSE_CURSORS_AT_COMMIT;
+            // Выражение из кеша соединения, если оно там есть и не занято другим запросом.
+            ps = c.prepareCached(sql, resultType, resultConcur, hold);
+            if (ps == null) ps = c.prepareStatement(sql, resultType, resultConcur, hold);
+            if (fetchSize > 0) ps.setFetchSize(fetchSize);
+            stats = base.getSqlStats().entry(FB_SqlStats.normalize(sql));
             isPrepared = true;
         }
         return this;
     }
 
+    /**
+     * Закрытие набора результатов и освобождение выражения (выражение из кеша соединения возвращается в кеш).
+     *
+     * @throws java.sql.SQLException
+     */
+    private void releaseStatement() throws SQLException {
+        flushFetchStats();
+        if (rs != null && !rs.isClosed()) {
+            rs.close();
+        }
+        rs = null;
+        row = null;
+        if (ps != null) {
+            PreparedStatement p = ps;
+            ps = null;
+            if (batchCount > 0 && !p.isClosed()) p.clearBatch(); // Выражение может вернуться в кеш.
+            batchCount = 0;
+            if (fetchSize > 0 && !p.isClosed()) p.setFetchSize(0); // Выражение может вернуться в кеш.
+            if (con != null) {
+                con.releaseStatement(p);
+            } else if (!p.isClosed()) {
+                p.close();
+            }
+        }
+    }
+
     /**
      * Проверка значения и при необходимости конвертация в тип верный для передачи в качестве входного параметра
      * выражению запроса к БД. В текущий момент это корверсия дат: java.util.Date -> java.sql.Date.
@@ -329,7 +419,17 @@ public class FB_Query implements Closeable {
         if (parameters.length > 0) {
             setParameters(parameters);
         }
-        if (ps.execute()) {
+        flushFetchStats();
+        long time = System.nanoTime();
+        boolean isrs;
+        try {
+            isrs = ps.execute();
+        } catch (SQLException ex) {
+            if (stats != null) stats.exec(System.nanoTime() - time, true);
+            throw ex;
+        }
+        if (stats != null) stats.exec(System.nanoTime() - time, false);
+        if (isrs) {
             rs = ps.getResultSet();
             upd = -1;
         } else {
@@ -340,6 +440,109 @@ public class FB_Query implements Closeable {
         return this;
     }
 
+    /**
+     * Передача накопленных времени чтения и кол-ва записей в статистику запроса.
+     */
+    private void flushFetchStats() {
+        if (stats != null && (fetchNanos > 0 || fetchRows > 0)) stats.fetch(fetchNanos, fetchRows);
+        fetchNanos = fetchRows = 0;
+    }
+
+    /**
+     * Добавление набора параметров в пакет выражения (выполняется {@link #executeBatch()}).
+     * Запрос пакета не должен возвращать набор результатов.
+     *
+     * @param parameters Параметры запроса.
+     * @return Указатель на запрос.
+     * @throws java.sql.SQLException
+     */
+    public synchronized FB_Query addBatch(Object... parameters) throws SQLException {
+        setParameters(parameters);
+        ps.addBatch();
+        batchCount++;
+        return this;
+    }
+
+    /**
+     * Выполнение пакета выражения. Кол-во изменённых записей доступно через {@link #getUpdateCount()}.
+     * <p>
+     * ВНИМАНИЕ! При ошибке любого набора параметров выдаётся исключение {@link java.sql.BatchUpdateException}, изменения
+     * следует отменить откатом транзакции.
+     *
+     * @return Кол-во изменённых записей по каждому набору параметров.
+     * @throws java.sql.SQLException
+     */
+    public synchronized int[] executeBatch() throws SQLException {
+        prepare();
+        int[] res;
+        long time = System.nanoTime();
+        try {
+            res = batchCount > 0 ? ps.executeBatch() : new int[0];
+        } catch (SQLException ex) {
+            if (stats != null) stats.exec(System.nanoTime() - time, true);
+            throw ex;
+        } finally {
+            batchCount = 0;
+        }
+        if (stats != null) stats.exec(System.nanoTime() - time, false);
+        rs = null;
+        upd = 0;
+        for (int n : res) if (n > 0) upd += n;
+        isExecuted = true;
+        return res;
+    }
+
+    public int getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * Выполнение запроса и открытие курсора по результатам. Если запрос ещё не подготовлен, то набор результатов
+     * открывается только для чтения вперёд и без удержания после commit (записи читаются из БД по мере перебора).
+     * Курсор закрывает запрос (и собственное соединение запроса) по завершении перебора или при закрытии.
+     *
+     * @param mapper     Преобразование записи в объект.
+     * @param parameters Параметры запроса.
+     * @return Курсор.
+     * @throws java.sql.SQLException
+     */
+    public synchronized <T> FB_Cursor<T> cursor(RowMapper<T> mapper, Object... parameters) throws SQLException {
+        if (!isPrepared) {
+            resultType = ResultSet.TYPE_FORWARD_ONLY;
+            resultConcur = ResultSet.CONCUR_READ_ONLY;
+            isResultHold = false;
+        }
+        execute(parameters);
+        if (rs == null) throw new SQLException("Query: statement has no result set!");
+        return new FB_Cursor<>(this, mapper);
+    }
+
+    /**
+     * Выполнение запроса и получение потока объектов по результатам (см. {@link #cursor(RowMapper, Object...)}).
+     * Поток должен быть закрыт (try-with-resources), если перебран не до конца.
+     *
+     * @param mapper     Преобразование записи в объект.
+     * @param parameters Параметры запроса.
+     * @return Поток объектов.
+     * @throws java.sql.SQLException
+     */
+    public <T> Stream<T> stream(RowMapper<T> mapper, Object... parameters) throws SQLException {
+        return cursor(mapper, parameters).stream();
+    }
+
+    /**
+     * Текущая запись набора результатов для преобразователя {@link FB_Row#mapper(FB_Row.Mapper, String...)}.
+     * Индексы полей определяются при первом обращении к набору результатов.
+     *
+     * @param columns Имена полей преобразователя.
+     * @return Запись.
+     * @throws java.sql.SQLException
+     */
+    FB_Row row(String[] columns) throws SQLException {
+        if (row == null || row.rs != rs || row.columns != columns) row = new FB_Row(rs, columns);
+        return row;
+    }
+
     /**
      * Подтверждение изменений в соединении запроса.
      * <p>
@@ -417,12 +620,7 @@ public class FB_Query implements Closeable {
      * @throws java.sql.SQLException
      */
     public synchronized void close(boolean iscommit) throws SQLException {
-        if (rs != null && !rs.isClosed()) {
-            rs.close();
-        }
-        if (ps != null && !ps.isClosed()) {
-            ps.close();
-        }
+        releaseStatement();
         if (!isExternalConnection && con != null && !con.isClosed()) {
             con.close(iscommit);
         }
@@ -510,7 +708,19 @@ public class FB_Query implements Closeable {
     }
 
     public boolean next() throws SQLException {
-        return rs.next();
+        if (stats == null) return rs.next();
+        // Время измеряется только на границе порции чтения (запрос записей с сервера), остальные записи порции уже в
+        // буфере драйвера - замер каждой записи стоил бы больше, чем её получение из буфера.
+        boolean res;
+        if (fetchRows % (fetchSize > 0 ? fetchSize : DEFAULT_FETCH_BATCH) == 0) {
+            long time = System.nanoTime();
+            res = rs.next();
+            fetchNanos += System.nanoTime() - time;
+        } else {
+            res = rs.next();
+        }
+        if (res) fetchRows++;
+        return res;
     }
 
     public Date getDate(int index) throws SQLException {
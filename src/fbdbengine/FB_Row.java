@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2014, Aleksey Nikolaevich Dokshin. All right reserved.
+ * Contacts: dant.it@gmail.com, dokshin@list.ru.
+ */
+package fbdbengine;
+
+import util.DateTools;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * Текущая запись набора результатов с доступом к полям по порядковому номеру в списке имён полей преобразователя.
+ * Индексы полей в наборе результатов определяются один раз для набора (а не поиском по имени для каждого поля каждой
+ * записи), числовые значения читаются без упаковки в объекты.
+ * <p>
+ * Типичное использование:<br>
+ * <pre>
+ * static final FB_Query.RowMapper&lt;Sale&gt; SALE = FB_Row.mapper(
+ *         r -&gt; new Sale(r.getInteger(0), r.getLong(1, 0)), "IACCTYPE", "DBSUMMA");
+ * ...
+ * while (q.next()) list.add(SALE.map(q));
+ * </pre>
+ * Преобразователь не хранит состояния и может использоваться из разных потоков, индексы хранятся в запросе.
+ *
+ * @author Докшин Алексей Николаевич <dant.it@gmail.com>
+ */
+public final class FB_Row {
+
+    /**
+     * Преобразование записи в объект.
+     */
+    @FunctionalInterface
+    public interface Mapper<T> {
+        T map(FB_Row r) throws SQLException;
+    }
+
+    /**
+     * Создание преобразователя записей запроса в объекты.
+     *
+     * @param mapper  Преобразование записи (поля - по номеру в списке имён, начиная с 0).
+     * @param columns Имена полей.
+     * @return Преобразователь для {@link FB_Query#cursor(FB_Query.RowMapper, Object...)} и т.п.
+     */
+    public static <T> FB_Query.RowMapper<T> mapper(Mapper<T> mapper, String... columns) {
+        return (q) -> mapper.map(q.row(columns));
+    }
+
+    final String[] columns;
+    final ResultSet rs;
+    private final int[] index;
+
+    FB_Row(ResultSet rs, String[] columns) throws SQLException {
+        this.rs = rs;
+        this.columns = columns;
+        this.index = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) index[i] = rs.findColumn(columns[i]);
+    }
+
+    public int getInt(int col, int ifnull) throws SQLException {
+        int v = rs.getInt(index[col]);
+        return rs.wasNull() ? ifnull : v;
+    }
+
+    public long getLong(int col, long ifnull) throws SQLException {
+        long v = rs.getLong(index[col]);
+        return rs.wasNull() ? ifnull : v;
+    }
+
+    public double getDouble(int col, double ifnull) throws SQLException {
+        double v = rs.getDouble(index[col]);
+        return rs.wasNull() ? ifnull : v;
+    }
+
+    public Integer getInteger(int col) throws SQLException {
+        int v = rs.getInt(index[col]);
+        return rs.wasNull() ? null : v;
+    }
+
+    public Long getLong(int col) throws SQLException {
+        long v = rs.getLong(index[col]);
+        return rs.wasNull() ? null : v;
+    }
+
+    public String getString(int col) throws SQLException {
+        return rs.getString(index[col]);
+    }
+
+    public LocalDate getLocalDate(int col) throws SQLException {
+        return DateTools.asLocalDate(rs.getDate(index[col]));
+    }
+
+    public LocalDateTime getLocalDateTime(int col) throws SQLException {
+        return DateTools.asLocalDateTime(rs.getDate(index[col]));
+    }
+}
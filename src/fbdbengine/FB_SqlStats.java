@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2014, Aleksey Nikolaevich Dokshin. All right reserved.
+ * Contacts: dant.it@gmail.com, dokshin@list.ru.
+ */
+package fbdbengine;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Статистика выполнения запросов базы по нормализованному тексту запроса (литералы заменены на "?", пробелы сжаты):
+ * кол-во выполнений, гистограмма времени выполнения, время и кол-во считанных записей, кол-во ошибок.
+ *
+ * @author Докшин Алексей Николаевич <dant.it@gmail.com>
+ */
+public class FB_SqlStats {
+
+    /** Границы интервалов гистограммы времени выполнения (мсек). */
+    private static final long[] BOUNDS = {1, 10, 100, 1000, 10000};
+    /** Максимальное кол-во различных запросов (остальные учитываются общей записью). */
+    private static final int MAX_ENTRIES = 500;
+    private static final String OTHER = "(прочие запросы)";
+
+    /**
+     * Статистика запроса.
+     */
+    public static class Entry {
+
+        public final String sql;
+        private long count, errors, rows, fetches;
+        private long execNanos, maxNanos, fetchNanos;
+        private final long[] histogram = new long[BOUNDS.length + 1];
+
+        Entry(String sql) {
+            this.sql = sql;
+        }
+
+        synchronized void exec(long nanos, boolean iserror) {
+            count++;
+            if (iserror) errors++;
+            execNanos += nanos;
+            if (nanos > maxNanos) maxNanos = nanos;
+            long ms = nanos / 1000000;
+            int i = 0;
+            while (i < BOUNDS.length && ms >= BOUNDS[i]) i++;
+            histogram[i]++;
+        }
+
+        synchronized void fetch(long nanos, long rowcount) {
+            fetches++;
+            fetchNanos += nanos;
+            rows += rowcount;
+        }
+
+        /** Общее время (выполнение и чтение записей, нсек). */
+        public synchronized long getTotalNanos() {
+            return execNanos + fetchNanos;
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder h = new StringBuilder();
+            for (long n : histogram) h.append(h.length() == 0 ? "" : "/").append(n);
+            return String.format("всего %d мсек, вып. %d (ош. %d), ср. %d мсек, макс. %d мсек [%s], "
+                            + "чтение %d мсек, записей %d | %s",
+                    getTotalNanos() / 1000000, count, errors, count == 0 ? 0 : execNanos / count / 1000000,
+                    maxNanos / 1000000, h, fetchNanos / 1000000, rows, sql);
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean isEnabled = true;
+
+    public boolean isEnabled() {
+        return isEnabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        isEnabled = enabled;
+    }
+
+    /**
+     * Нормализация текста запроса: строковые и числовые литералы заменяются на "?", последовательности пробельных
+     * символов - на один пробел.
+     *
+     * @param sql Текст запроса.
+     * @return Нормализованный текст.
+     */
+    public static String normalize(String sql) {
+        if (sql == null) return "";
+        StringBuilder sb = new StringBuilder(sql.length());
+        int n = sql.length();
+        for (int i = 0; i < n; i++) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                // Строковый литерал (удвоенная кавычка - часть литерала).
+                i++;
+                while (i < n && !(sql.charAt(i) == '\'' && (i + 1 >= n || sql.charAt(i + 1) != '\''))) {
+                    if (sql.charAt(i) == '\'') i++;
+                    i++;
+                }
+                sb.append('?');
+            } else if (Character.isDigit(c) && (sb.length() == 0 || !isIdentChar(sb.charAt(sb.length() - 1)))) {
+                // Числовой литерал (цифры в идентификаторах не заменяются).
+                while (i + 1 < n && (Character.isDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.')) i++;
+                sb.append('?');
+            } else if (Character.isWhitespace(c)) {
+                if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ') sb.append(' ');
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString().trim();
+    }
+
+    private static boolean isIdentChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+    /**
+     * Запись статистики запроса.
+     *
+     * @param sql Нормализованный текст запроса.
+     * @return Запись (null - статистика отключена).
+     */
+    Entry entry(String sql) {
+        if (!isEnabled) return null;
+        Entry e = entries.get(sql);
+        if (e == null) {
+            String key = entries.size() < MAX_ENTRIES ? sql : OTHER;
+            e = entries.computeIfAbsent(key, Entry::new);
+        }
+        return e;
+    }
+
+    /**
+     * Запросы с наибольшим общим временем.
+     *
+     * @param count Кол-во запросов.
+     * @return Строки статистики (формат см. {@link Entry#toString()}).
+     */
+    public String[] getTop(int count) {
+        ArrayList<Entry> list = new ArrayList<>(entries.values());
+        list.sort((a, b) -> Long.compare(b.getTotalNanos(), a.getTotalNanos()));
+        int n = Math.min(count, list.size());
+        String[] res = new String[n];
+        for (int i = 0; i < n; i++) res[i] = list.get(i).toString();
+        return res;
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+}
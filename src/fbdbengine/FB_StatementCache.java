@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2014, Aleksey Nikolaevich Dokshin. All right reserved.
+ * Contacts: dant.it@gmail.com, dokshin@list.ru.
+ */
+package fbdbengine;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Кеш подготовленных выражений физического соединения (LRU). Ключ - текст запроса, тип, вид взаимодействия и
+ * удержание результирующего набора. Выражение выдаётся из кеша только одному запросу, если оно уже используется (например,
+ * вложенный запрос с тем же текстом), то выражение подготавливается заново без кеширования.
+ *
+ * @author Докшин Алексей Николаевич <dant.it@gmail.com>
+ */
+public class FB_StatementCache {
+
+    /**
+     * Общие счётчики кешей соединений базы.
+     */
+    public static class Stats {
+
+        final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), busy = new AtomicLong(),
+                evictions = new AtomicLong();
+
+        @Override
+        public String toString() {
+            long h = hits.get(), m = misses.get();
+            return String.format("попаданий %d, промахов %d (%d%%), занятых %d, вытеснено %d",
+                    h, m, h + m == 0 ? 0 : m * 100 / (h + m), busy.get(), evictions.get());
+        }
+    }
+
+    private static class Item {
+
+        final PreparedStatement ps;
+        boolean inUse;
+
+        Item(PreparedStatement ps) {
+            this.ps = ps;
+        }
+    }
+
+    private final int maxSize;
+    private final Stats stats;
+    /** Выражения в порядке использования (последнее использованное - в конце). */
+    private final LinkedHashMap<String, Item> items = new LinkedHashMap<>(16, 0.75f, true);
+    /** Выданные из кеша выражения. */
+    private final IdentityHashMap<PreparedStatement, Item> used = new IdentityHashMap<>();
+
+    /**
+     * Конструктор.
+     *
+     * @param maxsize Максимальное кол-во выражений в кеше.
+     * @param stats   Счётчики.
+     */
+    public FB_StatementCache(int maxsize, Stats stats) {
+        this.maxSize = Math.max(1, maxsize);
+        this.stats = stats;
+    }
+
+    private static String key(String sql, int type, int concur, int hold) {
+        return type + ":" + concur + ":" + hold + ":" + sql;
+    }
+
+    /**
+     * Получение подготовленного выражения из кеша или подготовка нового с помещением в кеш.
+     *
+     * @param con    Физическое соединение.
+     * @param sql    Текст запроса.
+     * @param type   Тип результирующего набора.
+     * @param concur Тип взаимодействия результирующего набора.
+     * @param hold   Удержание результирующего набора после подтверждения.
+     * @return Выражение или null, если такое выражение уже используется (следует подготовить без кеширования).
+     * @throws SQLException
+     */
+    public synchronized PreparedStatement acquire(Connection con, String sql, int type, int concur, int hold)
+            throws SQLException {
+        String key = key(sql, type, concur, hold);
+        Item it = items.get(key);
+        if (it != null) {
+            if (it.inUse) {
+                stats.busy.incrementAndGet();
+                return null;
+            }
+            if (!it.ps.isClosed()) {
+                stats.hits.incrementAndGet();
+                it.inUse = true;
+                used.put(it.ps, it);
+                return it.ps;
+            }
+            items.remove(key);
+        }
+        stats.misses.incrementAndGet();
+        it = new Item(con.prepareStatement(sql, type, concur, hold));
+        it.inUse = true;
+        items.put(key, it);
+        used.put(it.ps, it);
+        trim();
+        return it.ps;
+    }
+
+    /**
+     * Возврат выражения в кеш. Результирующий набор выражения уже должен быть закрыт.
+     *
+     * @param ps Выражение.
+     * @return true - выражение из кеша, false - выражение не из кеша (должно быть закрыто вызывающим).
+     */
+    public synchronized boolean release(PreparedStatement ps) {
+        Item it = used.remove(ps);
+        if (it == null) return false;
+        it.inUse = false;
+        try {
+            ps.clearParameters();
+        } catch (SQLException ex) {
+            items.values().remove(it);
+            closeSafe(ps);
+        }
+        trim();
+        return true;
+    }
+
+    /**
+     * Вытеснение давно не используемых выражений сверх максимального кол-ва (используемые не вытесняются).
+     */
+    private void trim() {
+        Iterator<Item> iter = items.values().iterator();
+        while (items.size() > maxSize && iter.hasNext()) {
+            Item it = iter.next();
+            if (it.inUse) continue;
+            iter.remove();
+            closeSafe(it.ps);
+            stats.evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Закрытие выражений, не возвращённых в кеш (при возврате соединения в пул).
+     */
+    public synchronized void closeUsed() {
+        for (Map.Entry<PreparedStatement, Item> e : used.entrySet()) {
+            items.values().remove(e.getValue());
+            closeSafe(e.getKey());
+        }
+        used.clear();
+    }
+
+    /**
+     * Закрытие всех выражений кеша.
+     */
+    public synchronized void close() {
+        for (Item it : new ArrayList<>(items.values())) closeSafe(it.ps);
+        items.clear();
+        used.clear();
+    }
+
+    public synchronized int size() {
+        return items.size();
+    }
+
+    private static void closeSafe(PreparedStatement ps) {
+        try {
+            ps.close();
+        } catch (Exception ignore) {
+        }
+    }
+}
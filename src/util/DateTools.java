@@ -18,25 +18,28 @@ import java.util.TimeZone;
 public class DateTools {
 
     /**
-     * Предопределенный формат для вывода даты с номером года 2 знака.
+     * Предопределенный формат для вывода даты с номером года 2 знака (у каждого потока свой, формат не потокобезопасен).
      */
-    public static SimpleDateFormat formatShort = new SimpleDateFormat("dd.MM.yy");
+    private static final ThreadLocal<SimpleDateFormat> formatShort =
+            ThreadLocal.withInitial(() -> new SimpleDateFormat("dd.MM.yy"));
     /**
-     * Предопределенный формат для вывода даты с номером года 4 знака.
+     * Предопределенный формат для вывода даты с номером года 4 знака (у каждого потока свой, формат не потокобезопасен).
      */
-    public static SimpleDateFormat formatFull = new SimpleDateFormat("dd.MM.yyyy");
+    private static final ThreadLocal<SimpleDateFormat> formatFull =
+            ThreadLocal.withInitial(() -> new SimpleDateFormat("dd.MM.yyyy"));
 
     /**
-     * Возвращает формат для преобразования даты в строку в соответствии с флагом.
+     * Возвращает формат для преобразования даты в строку в соответствии с флагом. Формат принадлежит текущему потоку и
+     * не должен передаваться в другие потоки.
      *
      * @param isShort Флаг - короткий формат (true) или длинный (false).
      * @return Форматер.
      */
     public static SimpleDateFormat getFormat(boolean isShort) {
         if (isShort) {
-            return formatShort;
+            return formatShort.get();
         } else {
-            return formatFull;
+            return formatFull.get();
         }
     }
 
@@ -15,43 +15,44 @@ import java.text.NumberFormat;
  */
 public class NumberTools {
 
-    /** Предопределенный формат для вывода с точностью 0 знаков после запятой. Без триад. */
-    public static NumberFormat FMT_N0 = new DecimalFormat("#0");
-    /** Предопределенный формат для вывода с точностью 0 знаков после запятой. С триадами. */
-    public static NumberFormat FMT_N0T = new DecimalFormat("#,##0");
-    /** Предопределенный формат для вывода с точностью 1 знак после запятой. Без триад. */
-    public static NumberFormat FMT_N1 = new DecimalFormat("#0.0");
-    /** Предопределенный формат для вывода с точностью 1 знак после запятой. С триадами. */
-    public static NumberFormat FMT_N1T = new DecimalFormat("#,##0.0");
-    /** Предопределенный формат для вывода с точностью 2 знака после запятой. Без триад. */
-    public static NumberFormat FMT_N2 = new DecimalFormat("#0.00");
-    /** Предопределенный формат для вывода с точностью 2 знака после запятой. С триадами. */
-    public static NumberFormat FMT_N2T = new DecimalFormat("#,##0.00");
-    /** Предопределенный формат для вывода с точностью 3 знака после запятой. Без триад. */
-    public static NumberFormat FMT_N3 = new DecimalFormat("#0.000");
-    /** Предопределенный формат для вывода с точностью 3 знака после запятой. С триадами. */
-    public static NumberFormat FMT_N3T = new DecimalFormat("#,##0.000");
+    /** Образец формата для вывода с точностью 0 знаков после запятой. Без триад. */
+    private static final NumberFormat FMT_N0 = new DecimalFormat("#0");
+    /** Образец формата для вывода с точностью 0 знаков после запятой. С триадами. */
+    private static final NumberFormat FMT_N0T = new DecimalFormat("#,##0");
+    /** Образец формата для вывода с точностью 1 знак после запятой. Без триад. */
+    private static final NumberFormat FMT_N1 = new DecimalFormat("#0.0");
+    /** Образец формата для вывода с точностью 1 знак после запятой. С триадами. */
+    private static final NumberFormat FMT_N1T = new DecimalFormat("#,##0.0");
+    /** Образец формата для вывода с точностью 2 знака после запятой. Без триад. */
+    private static final NumberFormat FMT_N2 = new DecimalFormat("#0.00");
+    /** Образец формата для вывода с точностью 2 знака после запятой. С триадами. */
+    private static final NumberFormat FMT_N2T = new DecimalFormat("#,##0.00");
+    /** Образец формата для вывода с точностью 3 знака после запятой. Без триад. */
+    private static final NumberFormat FMT_N3 = new DecimalFormat("#0.000");
+    /** Образец формата для вывода с точностью 3 знака после запятой. С триадами. */
+    private static final NumberFormat FMT_N3T = new DecimalFormat("#,##0.000");
 
     /**
-     * Возвращает форматер для заданного кол-ва знаков после зяпятой и призанака использования триад.
+     * Копии образцов форматов для текущего потока (форматы не потокобезопасны, сами образцы недоступны снаружи и только
+     * копируются, для форматирования используется {@link #getFormat(int, boolean)}).
+     */
+    private static final ThreadLocal<NumberFormat[]> FORMATS = ThreadLocal.withInitial(() -> new NumberFormat[]{
+            (NumberFormat) FMT_N0.clone(), (NumberFormat) FMT_N0T.clone(),
+            (NumberFormat) FMT_N1.clone(), (NumberFormat) FMT_N1T.clone(),
+            (NumberFormat) FMT_N2.clone(), (NumberFormat) FMT_N2T.clone(),
+            (NumberFormat) FMT_N3.clone(), (NumberFormat) FMT_N3T.clone()});
+
+    /**
+     * Возвращает форматер для заданного кол-ва знаков после зяпятой и призанака использования триад. Форматер
+     * принадлежит текущему потоку и не должен передаваться в другие потоки.
      *
      * @param digits   Кол-во знаков после запятой (0-3).
      * @param istriads Флаг использования триад: true - с триадами, false - без триад.
      * @return Форматер.
      */
     public static NumberFormat getFormat(int digits, boolean istriads) {
-        switch (digits) {
-            case 0:
-                return istriads ? FMT_N0T : FMT_N0;
-            case 1:
-                return istriads ? FMT_N1T : FMT_N1;
-            case 2:
-                return istriads ? FMT_N2T : FMT_N2;
-            case 3:
-                return istriads ? FMT_N3T : FMT_N3;
-            default:
-                return istriads ? FMT_N0T : FMT_N0;
-        }
+        if (digits < 0 || digits > 3) digits = 0;
+        return FORMATS.get()[digits * 2 + (istriads ? 1 : 0)];
     }
 
     /**
@@ -0,0 +1,161 @@
+package app.model;
+
+import app.ExError;
+import fbdbengine.FB_Connection;
+import fbdbengine.FB_Database;
+import fbdbengine.FB_Query;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Проверка совместной обработки одной очереди заявок двумя узлами (аренда заявок) на локальной тестовой БД Firebird.
+ * БД создаётся скриптами sql/test/request_standin.sql и sql/request_lease.sql, заявки теста пересоздаются при каждом
+ * запуске.
+ * <p>
+ * Запуск: java -cp "classes:test-classes:lib/*" app.model.RequestLeaseTest host:alias user password
+ */
+public class RequestLeaseTest {
+
+    /** Кол-во заявок в очереди. */
+    private static final int COUNT = 20;
+    /** Срок аренды (сек). */
+    private static final int LEASE = 3;
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Параметры: host:alias user password");
+            System.exit(2);
+        }
+        FB_Database db = new FB_Database(false, args[0], args[1], args[2], "UTF-8", false);
+        try {
+            run(db);
+        } finally {
+            db.close();
+        }
+        System.out.println(failures == 0 ? "OK" : "ОШИБОК: " + failures);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void run(FB_Database db) throws Exception {
+        reset(db);
+        AppModel a = new AppModel(db, "node-a", LEASE);
+        AppModel b = new AppModel(db, "node-b", LEASE);
+
+        // 1. Одновременный захват: узлы получают непересекающиеся части очереди, вместе - всю очередь.
+        CompletableFuture<List<Request>> fa = CompletableFuture.supplyAsync(() -> load(a, COUNT / 2));
+        CompletableFuture<List<Request>> fb = CompletableFuture.supplyAsync(() -> load(b, COUNT));
+        List<Request> la = fa.get(), lb = fb.get();
+        Set<Integer> ida = ids(la), idb = ids(lb);
+        check(!la.isEmpty() && !lb.isEmpty(), "оба узла захватили заявки (%d, %d)", la.size(), lb.size());
+        check(disjoint(ida, idb), "узлы захватили разные заявки");
+        check(ida.size() + idb.size() == COUNT, "захвачена вся очередь (%d из %d)", ida.size() + idb.size(), COUNT);
+
+        // 2. Продление: пока узел продлевает аренду (дольше её срока), другой узел его заявки не получает.
+        long end = System.currentTimeMillis() + LEASE * 2000L + 500;
+        while (System.currentTimeMillis() < end) {
+            a.renewLeases();
+            b.renewLeases();
+            check(disjoint(ida, ids(load(b, COUNT))), "продлеваемые заявки узла A не захвачены узлом B");
+            Thread.sleep(LEASE * 1000L / 3);
+        }
+
+        // 3. Узел A сохраняет половину своих заявок, остальные "зависают" (аренда не продлевается).
+        List<Request> done = new ArrayList<>(la.subList(0, la.size() / 2));
+        List<Request> lost = new ArrayList<>(la.subList(la.size() / 2, la.size()));
+        for (Request req : done) check(finish(a, req), "узел A сохранил заявку №%d", req.getId());
+
+        // 4. По истечении аренды заявки A захватывает узел B, обработка на A прерывается, сохранить A их не может.
+        Budget budget = new Budget(0, 0);
+        for (Request req : lost) a.attachLease(req, budget);
+        Thread.sleep(LEASE * 1000L + 1500);
+        Set<Integer> taken = ids(load(b, COUNT));
+        check(taken.containsAll(ids(lost)), "узел B захватил заявки с истекшей арендой");
+        check(disjoint(taken, ids(done)), "сохраненные заявки повторно не выдаются");
+        a.renewLeases();
+        check(budget.getExceeded() != null, "обработка заявок с потерянной арендой на узле A прервана");
+        for (Request req : lost) check(!finish(a, req), "узел A не сохранил заявку №%d с потерянной арендой", req.getId());
+
+        // 5. Узел B сохраняет свои и перехваченные заявки, состояние каждой заявки сохранено ровно один раз.
+        for (Request req : lb) check(finish(b, req), "узел B сохранил заявку №%d", req.getId());
+        for (Request req : lost) check(finish(b, req), "узел B сохранил перехваченную заявку №%d", req.getId());
+        checkProcessedOnce(db);
+    }
+
+    private static List<Request> load(AppModel model, int count) {
+        try {
+            return model.loadRequests(Request.State.PROCESSING, count);
+        } catch (ExError ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static boolean finish(AppModel model, Request req) {
+        req.setState(Request.State.FINISHED, null);
+        try {
+            model.updateRequestProcess(req);
+            return true;
+        } catch (ExError ex) {
+            return false;
+        }
+    }
+
+    private static void reset(FB_Database db) throws Exception {
+        FB_Connection con = db.connect();
+        try {
+            con.execute("DELETE FROM WP_REQUEST_LEASE").closeSafe();
+            con.execute("DELETE FROM WP_REQUEST").closeSafe();
+            for (int i = 1; i <= COUNT; i++) {
+                con.execute("INSERT INTO WP_REQUEST (ID, IDUSER, IDDCLIENT, IDDSUB, DTCREATE, ITYPE, ISUBTYPE, ISTATE)"
+                                + " VALUES (?, 1, ?, 0, DATEADD(? SECOND TO CURRENT_TIMESTAMP), ?, ?, ?)",
+                        i, i % 3, i - COUNT, Request.Type.REPORT.id, Request.ReportType.CARD.id,
+                        Request.State.PROCESSING.id).closeSafe();
+            }
+            con.commit();
+        } finally {
+            FB_Connection.closeSafe(con);
+        }
+    }
+
+    private static void checkProcessedOnce(FB_Database db) throws Exception {
+        FB_Connection con = db.connect();
+        try {
+            FB_Query q = con.execute("SELECT ID, ISTATE, IPROCESSCOUNT FROM WP_REQUEST ORDER BY ID");
+            int n = 0;
+            while (q.next()) {
+                n++;
+                check(q.getInteger("IPROCESSCOUNT") == 1 && q.getInteger("ISTATE") == Request.State.FINISHED.id,
+                        "заявка №%d сохранена один раз (сохранений %d)", q.getInteger("ID"), q.getInteger("IPROCESSCOUNT"));
+            }
+            q.closeSafe();
+            check(n == COUNT, "все заявки на месте (%d)", n);
+            q = con.execute("SELECT COUNT(*) AS N FROM WP_REQUEST_LEASE");
+            check(q.next() && q.getInteger("N") == 0, "аренды освобождены");
+            q.closeSafe();
+        } finally {
+            FB_Connection.closeSafe(con);
+        }
+    }
+
+    private static Set<Integer> ids(List<Request> list) {
+        Set<Integer> res = new HashSet<>();
+        for (Request req : list) res.add(req.getId());
+        return res;
+    }
+
+    private static boolean disjoint(Set<Integer> a, Set<Integer> b) {
+        for (Integer id : a) if (b.contains(id)) return false;
+        return true;
+    }
+
+    private static void check(boolean cond, String fmt, Object... args) {
+        if (cond) return;
+        failures++;
+        System.out.println("ОШИБКА: " + String.format(fmt, args));
+    }
+}
@@ -0,0 +1,145 @@
+package app.model;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Проверка постраничной загрузки транзакций {@link TransactionPager} без БД: процедура WP_REPORT_CLIENTTRANS_PAGE и
+ * загрузка FIRST/SKIP заменены выборкой из списка в памяти с той же семантикой (порядок ключа, продолжение с
+ * повтором последней транзакции).
+ * <p>
+ * Проверяется: при уникальном ключе все транзакции выдаются ровно один раз по порядку и только по ключу (в т.ч. при
+ * многих транзакциях с одинаковым временем и при удалении последней транзакции страницы между страницами); при
+ * повторе или пустом ключе загрузка продолжается по смещению и выдаёт все транзакции.
+ * <p>
+ * Запуск: java -cp "classes:test-classes:lib/*" app.model.TransactionPagerTest
+ */
+public class TransactionPagerTest {
+
+    private static final Comparator<Transaction> KEY = Comparator
+            .comparing(Transaction::getStart, Comparator.nullsFirst(Comparator.naturalOrder()))
+            .thenComparing(Transaction::getIddAzs, Comparator.nullsFirst(Comparator.naturalOrder()))
+            .thenComparing(Transaction::getIdd, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        List<Transaction> unique = data(25000, 0);
+
+        FakeModel m = new FakeModel(unique);
+        check("уникальный ключ", m, unique, 1000, true);
+
+        m = new FakeModel(unique);
+        m.deleteAt = 3; // Последняя транзакция третьей страницы удаляется до загрузки четвёртой.
+        check("удаление последней транзакции страницы", m, unique, 1000, true);
+
+        List<Transaction> dup = new ArrayList<>(unique);
+        dup.add(copy(unique.get(2999), false)); // Повтор ключа на границе страниц.
+        dup.sort(KEY);
+        check("повтор ключа на границе", new FakeModel(dup), dup, 1000, false);
+
+        List<Transaction> dupIn = new ArrayList<>(unique);
+        dupIn.add(copy(unique.get(12345), false)); // Повтор ключа внутри страницы.
+        dupIn.sort(KEY);
+        check("повтор ключа внутри страницы", new FakeModel(dupIn), dupIn, 1000, false);
+
+        List<Transaction> empty = new ArrayList<>(unique);
+        empty.add(copy(unique.get(20000), true)); // Пустая АЗС.
+        empty.sort(KEY);
+        check("пустой ключ", new FakeModel(empty), empty, 1000, false);
+
+        System.out.println(failures == 0 ? "OK" : "ОШИБОК: " + failures);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void check(String name, FakeModel m, List<Transaction> expected, int limit, boolean keyset)
+            throws Exception {
+        TransactionPager pager = m.pageClientTransactions(1, 1, 0, null, null, null, null);
+        ArrayList<Transaction> all = new ArrayList<>();
+        while (true) {
+            ArrayList<Transaction> page = pager.next(limit);
+            all.addAll(page);
+            if (page.size() < limit) break;
+        }
+        boolean ok = all.equals(expected) && (m.skipCalls == 0) == keyset;
+        if (!ok) failures++;
+        System.out.printf("%s: %s (выдано %d из %d, страниц по ключу %d, по смещению %d)%n", name,
+                ok ? "OK" : "ОШИБКА", all.size(), expected.size(), m.keyCalls, m.skipCalls);
+    }
+
+    /** Транзакции в порядке ключа (по несколько транзакций разных АЗС с одинаковым временем). */
+    private static List<Transaction> data(int count, long seed) {
+        Random rnd = new Random(seed);
+        ArrayList<Transaction> list = new ArrayList<>(count);
+        LocalDateTime dt = LocalDateTime.of(2018, 1, 1, 0, 0);
+        for (int i = 0; i < count; i++) {
+            if (rnd.nextInt(4) == 0) dt = dt.plusSeconds(1 + rnd.nextInt(300));
+            list.add(new Transaction(dt, dt.plusMinutes(3), "000100001", "Карта", 1 + rnd.nextInt(1000000),
+                    1 + rnd.nextInt(20), 1, 1, 1, 100L, 100L, 100L, 100L));
+        }
+        list.sort(KEY);
+        // Ключ должен быть уникален - повторы (случайные совпадения номеров) убираем.
+        for (int i = list.size() - 1; i > 0; i--) {
+            if (KEY.compare(list.get(i), list.get(i - 1)) == 0) list.remove(i);
+        }
+        return list;
+    }
+
+    /** Копия транзакции с тем же ключом (или без АЗС). */
+    private static Transaction copy(Transaction t, boolean noazs) {
+        return new Transaction(t.getStart(), t.getEnd(), t.getCardIdd(), t.getCardInfo(), t.getIdd(),
+                noazs ? null : t.getIddAzs(), t.getIddTrk(), 1, 1, 1L, 1L, 1L, 1L);
+    }
+
+    /** Модель с транзакциями в памяти. */
+    private static class FakeModel extends AppModel {
+
+        private final List<Transaction> data;
+        int keyCalls = 0, skipCalls = 0;
+        /** Номер страницы по ключу, после которой из данных удаляется последняя выданная транзакция (0 - нет). */
+        int deleteAt = 0;
+
+        FakeModel(List<Transaction> data) {
+            super(null, "", 0);
+            this.data = new ArrayList<>(data);
+        }
+
+        @Override
+        ArrayList<Transaction> loadClientTransactionsPage(Integer iddfirm, Integer iddclient, Integer iddsub,
+                                                          LocalDate dtstart, LocalDate dtend, Integer iddazs,
+                                                          String iddcard, Transaction after, int limit) {
+            if (keyCalls++ == deleteAt && deleteAt > 0) data.remove(after);
+            ArrayList<Transaction> list = new ArrayList<>();
+            for (Transaction t : data) {
+                if (list.size() >= limit) break;
+                // Условие процедуры (сравнение с NULL - ложь).
+                if (after == null || gt(t.getStart(), after.getStart()) || (eq(t.getStart(), after.getStart())
+                        && (gt(t.getIddAzs(), after.getIddAzs()) || (eq(t.getIddAzs(), after.getIddAzs())
+                        && (gt(t.getIdd(), after.getIdd()) || eq(t.getIdd(), after.getIdd())))))) {
+                    list.add(t);
+                }
+            }
+            return list;
+        }
+
+        private static <T extends Comparable<T>> boolean gt(T a, T b) {
+            return a != null && b != null && a.compareTo(b) > 0;
+        }
+
+        private static <T extends Comparable<T>> boolean eq(T a, T b) {
+            return a != null && b != null && a.compareTo(b) == 0;
+        }
+
+        @Override
+        public ArrayList<Transaction> loadClientTransactions(Integer iddfirm, Integer iddclient, Integer iddsub,
+                                                             LocalDate dtstart, LocalDate dtend, Integer iddazs,
+                                                             String iddcard, int offset, int limit, String sort) {
+            skipCalls++;
+            return new ArrayList<>(data.subList(Math.min(offset, data.size()), Math.min(offset + limit, data.size())));
+        }
+    }
+}
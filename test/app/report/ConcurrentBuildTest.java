@@ -0,0 +1,247 @@
+package app.report;
+
+import app.ExError;
+import app.model.Firm;
+import app.model.Oil;
+import app.model.Transaction;
+import app.report.engine.XRBand;
+import app.report.engine.XRBandProto;
+import app.report.engine.XRBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static app.model.Helper.*;
+
+/**
+ * Проверка одновременного построения отчётов в одной JVM: N отчётов строятся и экспортируются в PDF параллельно
+ * (несколько раундов), результат каждого должен побайтно совпасть с результатом последовательного построения того же
+ * отчёта. Отчёты строятся по данным в памяти (БД не нужна) таблицей того же устройства, что и в отчёте по транзакциям:
+ * группировки, прототип строки, параллельная подготовка строк, общий кеш измерения текста, форматирование чисел и дат.
+ * <p>
+ * В PDF отличаются от запуска к запуску только время создания, идентификатор документа и префиксы подмножеств
+ * шрифтов - перед сравнением они заменяются постоянными значениями.
+ * <p>
+ * Запуск: java -cp "classes:test-classes:lib/*" app.report.ConcurrentBuildTest [отчётов [строк [раундов]]]
+ */
+public class ConcurrentBuildTest {
+
+    private static final LocalDateTime TIME = LocalDateTime.of(2018, 2, 1, 12, 0, 0);
+
+    public static void main(String[] args) throws Exception {
+        int reports = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int rows = args.length > 1 ? Integer.parseInt(args[1]) : 3000;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        BaseReport.setPrepareThreads(4);
+
+        // Эталон - последовательное построение (с пустым кешем измерения).
+        XRBuilder.measureCache.clear();
+        byte[][] serial = new byte[reports][];
+        for (int i = 0; i < reports; i++) serial[i] = render(i, rows);
+        for (int i = 1; i < reports; i++) {
+            if (Arrays.equals(serial[0], serial[i])) throw new AssertionError("Отчёты теста должны различаться!");
+        }
+
+        int failures = 0;
+        ExecutorService pool = Executors.newFixedThreadPool(reports);
+        try {
+            for (int r = 0; r < rounds; r++) {
+                XRBuilder.measureCache.clear(); // Кеш заполняется одновременно всеми отчётами.
+                List<Future<byte[]>> res = new ArrayList<>();
+                for (int i = 0; i < reports; i++) {
+                    final int n = i;
+                    res.add(pool.submit(() -> render(n, rows)));
+                }
+                for (int i = 0; i < reports; i++) {
+                    if (!Arrays.equals(serial[i], res.get(i).get())) {
+                        failures++;
+                        System.out.printf("ОШИБКА: раунд %d, отчёт %d отличается от последовательного построения%n", r + 1, i);
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+            BaseReport.setPrepareThreads(1);
+        }
+        System.out.printf("Отчётов %d x %d строк, раундов %d, кеш метрик: %s%n", reports, rows, rounds,
+                XRBuilder.measureCache.getStats());
+        System.out.println(failures == 0 ? "OK" : "ОШИБОК: " + failures);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /** Построение и экспорт отчёта в PDF (с заменой меняющихся от запуска к запуску данных). */
+    private static byte[] render(int n, int rows) throws Exception {
+        TestReport report = new TestReport(n, rows);
+        ByteArrayOutputStream outs = new ByteArrayOutputStream();
+        try {
+            report.build().exportToPDF(outs);
+        } finally {
+            report.dispose();
+        }
+        return normalize(outs.toByteArray());
+    }
+
+    private static byte[] normalize(byte[] pdf) {
+        String s = new String(pdf, StandardCharsets.ISO_8859_1)
+                .replaceAll("/(CreationDate|ModDate)\\s*\\([^)]*\\)", "/$1()")
+                .replaceAll("/ID\\s*\\[\\s*<[0-9A-Fa-f]*>\\s*<[0-9A-Fa-f]*>\\s*]", "/ID[]")
+                .replaceAll("/[A-Z]{6}\\+", "/SUBSET+");
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /** Данные отчёта (свои для каждого номера отчёта). */
+    private static List<Transaction> data(int n, int rows) {
+        Random rnd = new Random(n);
+        Oil[] oils = Oil.values();
+        ArrayList<Transaction> list = new ArrayList<>(rows);
+        LocalDateTime dt = TIME.minusDays(30);
+        for (int i = 0; i < rows; i++) {
+            dt = dt.plusSeconds(60 + rnd.nextInt(600));
+            String card = String.format("%09d", 100000 + rnd.nextInt(8) * 1111 + n);
+            long price = 3500 + rnd.nextInt(2000), volume = 1000 + rnd.nextInt(80000);
+            list.add(new Transaction(dt, dt.plusMinutes(3), card, "Карта " + card.substring(3) + (i % 7 == 0
+                    ? " (водитель с очень длинной фамилией, не помещающейся в одну строку ячейки)" : ""),
+                    i, 1 + rnd.nextInt(20), 1 + rnd.nextInt(6), oils[rnd.nextInt(oils.length)].id, 1,
+                    price, volume, volume, price * volume / 1000));
+        }
+        // Порядок группировок отчёта: по карте, по н/п, по времени.
+        list.sort((a, b) -> {
+            int c = a.getCardTitle().compareTo(b.getCardTitle());
+            if (c == 0) c = Integer.compare(a.getOil().id, b.getOil().id);
+            return c != 0 ? c : a.getStart().compareTo(b.getStart());
+        });
+        return list;
+    }
+
+    private static final BaseReport.RGroup<Transaction, String> GROUP_CARD =
+            new BaseReport.RGroup<>(1, "IDDCARD", Transaction::getCardTitle);
+    private static final BaseReport.RGroup<Transaction, Oil> GROUP_OIL =
+            new BaseReport.RGroup<>(2, "IDDOIL", Transaction::getOil);
+
+    /** Отчёт по транзакциям из памяти. */
+    private static class TestReport extends BaseReport<TestReport> {
+
+        private final int num, rows;
+
+        TestReport(int num, int rows) {
+            super(Firm.values()[num % Firm.values().length], "Транзакции по картам клиента");
+            this.num = num;
+            this.rows = rows;
+            this.createTime = TIME;
+        }
+
+        @Override
+        protected void buildBody() throws ExError {
+            headerDetailText = "Тестовый клиент №" + num + "\nза период c " + fmtDate8(TIME.toLocalDate().minusDays(30))
+                    + " по " + fmtDate8(TIME.toLocalDate());
+            newPage(num % 2 == 0 ? XRBuilder.pageFormat_A4_PORTRAIT : XRBuilder.pageFormat_A4_LANDSCAPE);
+            new Table(num % 3 == 0 ? RGroup.NO : GROUP_CARD, num % 3 == 2 ? GROUP_OIL : RGroup.NO).build();
+        }
+
+        private class Table extends BaseReportTable<Transaction> {
+
+            private long allVol, allSum, groupVol, groupSum;
+
+            Table(RGroup<Transaction, ? extends Comparable> group, RGroup<Transaction, ? extends Comparable> subgroup) {
+                super(group, subgroup);
+            }
+
+            @Override
+            protected void setupCols(int... w) {
+                super.setupCols(90, 60, 50, 35, 35, 55, 70, 80);
+                detailProto = new XRBandProto(new XRBand().style(tableDetailStyle).cols(colsW).rows(10)
+                        .addGX(crText("").center())
+                        .addGX(crText("").left())
+                        .addGX(crText("").center())
+                        .addGX(crText("").center())
+                        .addGX(crText("").center())
+                        .addGX(crText(""))
+                        .addGX(crText(""))
+                        .addGX(crText(""))
+                        .pack());
+            }
+
+            @Override
+            protected void onGroupChanged() {
+                groupVol = groupSum = 0;
+            }
+
+            @Override
+            protected void onDetail(Transaction it) {
+                allVol += it.getVolume();
+                allSum += it.getSumma();
+                groupVol += it.getVolume();
+                groupSum += it.getSumma();
+            }
+
+            @Override
+            protected void buildHead() {
+                fill(new XRBand().style(tableHeadStyle).cols(colsW).rows(15)
+                        .addGX(crText("Дата"))
+                        .addGX(crText("Карта"))
+                        .addGX(crText("Н/П"))
+                        .addGX(crText("АЗС"))
+                        .addGX(crText("ТРК"))
+                        .addGX(crText("Цена, р."))
+                        .addGX(crText("Кол-во, л."))
+                        .addGX(crText("Сумма, р."))
+                        .pack());
+            }
+
+            @Override
+            protected void buildGroupHead(Transaction it) {
+                fill(new XRBand().style(tableGroupStyle).cols(colsW).rows(12)
+                        .addGX(colsW.length, crText(getGroupHeadTitle(it) + ": " + it.getCardInfo()).left())
+                        .pack());
+            }
+
+            @Override
+            protected void buildGroupSummary(Transaction it) {
+                fill(new XRBand().style(tableGroupStyle).cols(colsW).rows(12)
+                        .addGX(6, crText(getGroupSummaryTitle(it)).lwT(0f).transparent().right())
+                        .addGX(crText(fmtN2(groupVol)))
+                        .addGX(crText(fmtN2(groupSum)))
+                        .pack());
+            }
+
+            @Override
+            protected void buildSubGroupHead(Transaction it) {
+                fill(new XRBand().style(tableSubGroupStyle).cols(colsW).rows(11)
+                        .addGX(crText("").lwTB(0f, 0f).transparent())
+                        .addGX(colsW.length - 1, crText(it.getOil().getTitle()).left())
+                        .pack());
+            }
+
+            @Override
+            protected XRBand prepareDetail(Transaction it, int n) {
+                return detailProto.stamp(fmtDT86(it.getStart()), it.getCardInfo(), it.getOil().getAbbreviation(),
+                        "" + it.getIddAzs(), "" + it.getIddTrk(), fmtN2(it.getPrice()), fmtN3(it.getVolume()),
+                        fmtN2(it.getSumma()));
+            }
+
+            @Override
+            protected void buildSummary() {
+                fill(new XRBand().style(tableSumaryStyle).cols(colsW).rows(14)
+                        .addGX(6, crText(getSummaryTitle()).left())
+                        .addGX(crText(fmtN3(allVol)))
+                        .addGX(crText(fmtN2(allSum)))
+                        .pack());
+            }
+
+            @Override
+            protected ArrayList<Transaction> loadData(int skip, int limit) {
+                List<Transaction> all = data(num, rows);
+                return new ArrayList<>(all.subList(Math.min(skip, all.size()), Math.min(skip + limit, all.size())));
+            }
+        }
+    }
+}
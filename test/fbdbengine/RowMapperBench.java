@@ -0,0 +1,156 @@
+package fbdbengine;
+
+import app.model.Transaction;
+import org.firebirdsql.gds.ISCConstants;
+import org.firebirdsql.gds.XSQLVAR;
+import org.firebirdsql.jdbc.FBResultSet;
+import util.DateTools;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Микротест преобразования записей: преобразователь {@link FB_Row} (индексы полей определяются один раз для набора,
+ * числа без упаковки) против прежнего чтения полей по имени для каждой записи (как в FB_Query.getXXX(name)).
+ * Записи - транзакции клиента (те же поля и типы, что у WP_REPORT_CLIENTTRANS).
+ * <p>
+ * БД не нужна: набор результатов - набор Jaybird по записям в памяти (тот же класс и те же findColumn/getXXX, что и у
+ * набора из БД, без сетевого чтения). Поэтому измеряется только разница преобразования, без времени чтения из БД.
+ * <p>
+ * Запуск: java -cp "classes:test-classes:lib/*" fbdbengine.RowMapperBench [записей [проходов]]
+ */
+public class RowMapperBench {
+
+    private static final String[] COLUMNS = {"DTSTART", "DTEND", "IDDCARD", "CCARD", "IDD", "IDDAZS", "IDDTRK",
+            "IDDOIL", "IACCTYPE", "DBPRICE", "DBVOLREQ", "DBVOLUME", "DBSUMMA"};
+
+    /** Тот же преобразователь, что и у транзакций в AppModel. */
+    private static final FB_Row.Mapper<Transaction> MAPPER = r -> new Transaction(
+            r.getLocalDateTime(0), r.getLocalDateTime(1), r.getString(2), r.getString(3),
+            r.getInteger(4), r.getInteger(5), r.getInteger(6), r.getInteger(7), r.getInteger(8),
+            r.getLong(9, 0), r.getLong(10, 0), r.getLong(11, 0), r.getLong(12, 0));
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int passes = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        XSQLVAR[] vars = vars();
+        ArrayList<byte[][]> data = data(vars, rows);
+
+        // Прогрев (JIT), затем проходы по очереди, чтобы фон машины влиял на оба способа одинаково.
+        for (int i = 0; i < passes; i++) {
+            byName(new FBResultSet(vars, data));
+            indexed(new FBResultSet(vars, data));
+        }
+        long tName = 0, tIndex = 0, sName = 0, sIndex = 0;
+        for (int i = 0; i < passes; i++) {
+            long t = System.nanoTime();
+            sName += byName(new FBResultSet(vars, data));
+            tName += System.nanoTime() - t;
+            t = System.nanoTime();
+            sIndex += indexed(new FBResultSet(vars, data));
+            tIndex += System.nanoTime() - t;
+        }
+        if (sName != sIndex) throw new AssertionError("Результаты преобразования различаются!");
+
+        double total = (double) rows * passes;
+        System.out.printf("Записей %d x %d проходов%n", rows, passes);
+        System.out.printf("по имени:  %8.1f нс/запись%n", tName / total);
+        System.out.printf("по индексу: %7.1f нс/запись (%.2f раза быстрее)%n", tIndex / total, (double) tName / tIndex);
+    }
+
+    /** Прежнее преобразование: поиск поля по имени для каждого поля каждой записи, числа - объектами. */
+    private static long byName(ResultSet rs) throws SQLException {
+        long sum = 0;
+        while (rs.next()) {
+            sum += checksum(new Transaction(
+                    DateTools.asLocalDateTime(rs.getDate("DTSTART")),
+                    DateTools.asLocalDateTime(rs.getDate("DTEND")),
+                    rs.getString("IDDCARD"),
+                    rs.getString("CCARD"),
+                    (Integer) rs.getObject("IDD"),
+                    (Integer) rs.getObject("IDDAZS"),
+                    (Integer) rs.getObject("IDDTRK"),
+                    (Integer) rs.getObject("IDDOIL"),
+                    (Integer) rs.getObject("IACCTYPE"),
+                    (Long) rs.getObject("DBPRICE"),
+                    (Long) rs.getObject("DBVOLREQ"),
+                    (Long) rs.getObject("DBVOLUME"),
+                    (Long) rs.getObject("DBSUMMA")));
+        }
+        rs.close();
+        return sum;
+    }
+
+    /** Преобразование FB_Row: индексы полей определяются один раз для набора (как в FB_Query.row). */
+    private static long indexed(ResultSet rs) throws SQLException {
+        long sum = 0;
+        FB_Row row = null;
+        while (rs.next()) {
+            if (row == null) row = new FB_Row(rs, COLUMNS);
+            sum += checksum(MAPPER.map(row));
+        }
+        rs.close();
+        return sum;
+    }
+
+    private static long checksum(Transaction it) {
+        return it.getStart().getSecond() + it.getCardTitle().length() + it.getIdd() + it.getIddAzs() + it.getSumma();
+    }
+
+    private static XSQLVAR[] vars() {
+        XSQLVAR[] vars = new XSQLVAR[COLUMNS.length];
+        for (int i = 0; i < vars.length; i++) {
+            XSQLVAR v = new XSQLVAR();
+            v.sqlname = v.aliasname = COLUMNS[i];
+            v.relname = v.relaliasname = "WP_REPORT_CLIENTTRANS";
+            if (i < 2) {
+                v.sqltype = ISCConstants.SQL_TIMESTAMP;
+                v.sqllen = 8;
+            } else if (i < 4) {
+                v.sqltype = ISCConstants.SQL_VARYING;
+                v.sqllen = 64;
+            } else if (i < 9) {
+                v.sqltype = ISCConstants.SQL_LONG;
+                v.sqllen = 4;
+            } else {
+                v.sqltype = ISCConstants.SQL_INT64;
+                v.sqllen = 8;
+            }
+            vars[i] = v;
+        }
+        return vars;
+    }
+
+    private static ArrayList<byte[][]> data(XSQLVAR[] vars, int rows) {
+        Random rnd = new Random(1);
+        ArrayList<byte[][]> list = new ArrayList<>(rows);
+        LocalDateTime dt = LocalDateTime.of(2018, 1, 1, 0, 0);
+        for (int i = 0; i < rows; i++) {
+            dt = dt.plusSeconds(60 + rnd.nextInt(600));
+            String card = String.format("%09d", 100000 + rnd.nextInt(500));
+            byte[][] r = new byte[vars.length][];
+            r[0] = vars[0].encodeTimestamp(Timestamp.valueOf(dt));
+            r[1] = vars[1].encodeTimestamp(Timestamp.valueOf(dt.plusMinutes(3)));
+            r[2] = card.getBytes(StandardCharsets.UTF_8);
+            r[3] = ("Карта " + card).getBytes(StandardCharsets.UTF_8);
+            r[4] = vars[4].encodeInt(i);
+            r[5] = vars[5].encodeInt(1 + rnd.nextInt(20));
+            r[6] = vars[6].encodeInt(1 + rnd.nextInt(6));
+            r[7] = vars[7].encodeInt(1 + rnd.nextInt(5));
+            r[8] = rnd.nextInt(10) == 0 ? null : vars[8].encodeInt(1);
+            long price = 3500 + rnd.nextInt(2000), volume = 1000 + rnd.nextInt(80000);
+            r[9] = vars[9].encodeLong(price);
+            r[10] = vars[10].encodeLong(volume);
+            r[11] = vars[11].encodeLong(volume);
+            r[12] = vars[12].encodeLong(price * volume / 1000);
+            list.add(r);
+        }
+        return list;
+    }
+}